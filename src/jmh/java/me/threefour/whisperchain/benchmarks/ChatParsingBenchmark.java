@@ -0,0 +1,80 @@
+package me.threefour.whisperchain.benchmarks;
+
+import me.threefour.whisperchain.managers.PlayerIndex;
+import me.threefour.whisperchain.utils.WhisperPrefixScanner;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work {@code ChatListener.onPlayerChat} does on every chat line: scan for a whisper
+ * prefix and resolve the recipients, or check a normal line for a mention
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatParsingBenchmark {
+
+    private static final int ONLINE_PLAYERS = 200;
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    @Param({"1", "4", "16"})
+    public int recipients;
+
+    private WhisperPrefixScanner scanner;
+    private PlayerIndex index;
+    private String whisper;
+    private String chat;
+
+    @Setup
+    public void setup() {
+        List<Player> players = StubPlayers.createMany(ONLINE_PLAYERS);
+        index = StubPlayers.index(players);
+        scanner = new WhisperPrefixScanner("@");
+
+        StringBuilder line = new StringBuilder("@");
+        for (int i = 0; i < recipients; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            // Mix exact names and prefixes, as players type them
+            String name = players.get(i * 7 % ONLINE_PLAYERS).getName();
+            line.append(i % 2 == 0 ? name : name.substring(0, name.length() - 1));
+        }
+        String body = Messages.ofLength(messageLength);
+        whisper = line.append(' ').append(body).toString();
+        chat = body;
+    }
+
+    @Benchmark
+    public Set<Player> parseWhisper() {
+        WhisperPrefixScanner.Match match = scanner.scan(whisper);
+        Set<Player> resolved = new LinkedHashSet<>();
+        index.resolveAll(match.recipients(), resolved);
+        return resolved;
+    }
+
+    @Benchmark
+    public boolean scanPlainChat() {
+        return scanner.scan(chat) == null && scanner.containsMention(chat);
+    }
+}
@@ -0,0 +1,56 @@
+package me.threefour.whisperchain.benchmarks;
+
+import me.threefour.whisperchain.utils.Encryption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Encryption#encrypt} and {@link Encryption#decrypt} round trips by message length
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    @Param({"16", "256", "2048"})
+    public int messageLength;
+
+    private Encryption encryption;
+    private SecretKey key;
+    private String message;
+    private String encrypted;
+
+    @Setup
+    public void setup() {
+        encryption = new Encryption();
+        key = encryption.getPlayerKey(UUID.randomUUID());
+        message = Messages.ofLength(messageLength);
+        encrypted = encryption.encrypt(message, key);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return encryption.encrypt(message, key);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return encryption.decrypt(encrypted, key);
+    }
+}
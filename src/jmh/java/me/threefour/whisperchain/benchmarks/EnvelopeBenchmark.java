@@ -0,0 +1,69 @@
+package me.threefour.whisperchain.benchmarks;
+
+import me.threefour.whisperchain.utils.Encryption;
+import me.threefour.whisperchain.utils.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group whisper encryption, {@link Encryption#sealEnvelope}, by message length and recipient count
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+    @Param({"16", "256", "2048"})
+    public int messageLength;
+
+    @Param({"1", "8", "32"})
+    public int recipients;
+
+    private Encryption encryption;
+    private byte[] plaintext;
+    private Map<UUID, SecretKey> recipientKeys;
+    private Envelope envelope;
+    private UUID firstRecipient;
+
+    @Setup
+    public void setup() {
+        encryption = new Encryption();
+        plaintext = Messages.ofLength(messageLength).getBytes(StandardCharsets.UTF_8);
+        recipientKeys = new HashMap<>();
+        for (int i = 0; i < recipients; i++) {
+            UUID uuid = UUID.randomUUID();
+            recipientKeys.put(uuid, encryption.getPlayerKey(uuid));
+            firstRecipient = uuid;
+        }
+        envelope = encryption.sealEnvelope(plaintext, recipientKeys);
+    }
+
+    @Benchmark
+    public Envelope seal() {
+        return encryption.sealEnvelope(plaintext, recipientKeys);
+    }
+
+    @Benchmark
+    public byte[] open() {
+        return encryption.openEnvelope(envelope, firstRecipient, recipientKeys.get(firstRecipient));
+    }
+}
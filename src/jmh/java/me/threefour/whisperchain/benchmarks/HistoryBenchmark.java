@@ -0,0 +1,75 @@
+package me.threefour.whisperchain.benchmarks;
+
+import me.threefour.whisperchain.storage.ConversationKey;
+import me.threefour.whisperchain.storage.ConversationStore;
+import me.threefour.whisperchain.storage.HistoryEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory history as {@code ChatManager.storeMessage} and {@code ChatManager.getChatHistory}
+ * use it, by history depth. Runs with several threads so stripe contention shows up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class HistoryBenchmark {
+
+    private static final int CONVERSATIONS = 1024;
+
+    @Param({"10", "100", "1000"})
+    public int historyDepth;
+
+    private ConversationStore store;
+    private ConversationKey[] keys;
+    private String message;
+
+    @Setup
+    public void setup() {
+        store = new ConversationStore(historyDepth);
+        keys = new ConversationKey[CONVERSATIONS];
+        message = Messages.ofLength(64);
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            keys[i] = ConversationKey.of(UUID.randomUUID(), UUID.randomUUID());
+            for (int j = 0; j < historyDepth; j++) {
+                store.append(keys[i], new HistoryEntry(j, keys[i].low(), "player", message));
+            }
+        }
+    }
+
+    @Benchmark
+    public void storeMessage() {
+        ConversationKey key = keys[ThreadLocalRandom.current().nextInt(CONVERSATIONS)];
+        store.append(key, new HistoryEntry(System.currentTimeMillis(), key.low(), "player", message));
+    }
+
+    @Benchmark
+    public List<String> getChatHistory() {
+        List<HistoryEntry> entries = store.read(keys[ThreadLocalRandom.current().nextInt(CONVERSATIONS)]);
+        List<String> messages = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            messages.add(entry.format());
+        }
+        return messages;
+    }
+}
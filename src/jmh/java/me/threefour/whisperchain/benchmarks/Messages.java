@@ -0,0 +1,29 @@
+package me.threefour.whisperchain.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Deterministic message text for benchmarks
+ */
+final class Messages {
+
+    private static final String WORDS = "the quick brown fox jumps over lazy dog meet me at spawn bring diamonds ";
+
+    private Messages() {
+    }
+
+    /**
+     * Build a chat-like message of exactly the given length
+     * @param length The number of characters
+     * @return The message
+     */
+    static String ofLength(int length) {
+        Random random = new Random(length);
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            int start = random.nextInt(WORDS.length());
+            builder.append(WORDS, start, Math.min(WORDS.length(), start + length - builder.length()));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package me.threefour.whisperchain.benchmarks;
+
+import me.threefour.whisperchain.managers.PlayerIndex;
+import org.bukkit.entity.Player;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Online {@link Player}s without a server, for benchmarks.
+ * <p>
+ * Each stub answers its name, UUID and online state, treats every permission check as denied
+ * and swallows any message sent to it. Anything else returns a default value.
+ */
+public final class StubPlayers {
+
+    private StubPlayers() {
+    }
+
+    /**
+     * Create an online stub player
+     * @param name The player's name
+     * @return The stub
+     */
+    public static Player create(String name) {
+        UUID uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes());
+        return (Player) Proxy.newProxyInstance(StubPlayers.class.getClassLoader(), new Class<?>[] { Player.class },
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getName" -> name;
+                case "getUniqueId" -> uuid;
+                case "isOnline" -> true;
+                case "getPlayer" -> proxy;
+                case "hashCode" -> uuid.hashCode();
+                case "equals" -> proxy == args[0];
+                case "toString" -> "StubPlayer{" + name + "}";
+                default -> defaultValue(method.getReturnType());
+            });
+    }
+
+    /**
+     * Create a batch of stub players named {@code player0}, {@code player1}, ...
+     * @param count The number of players
+     * @return The stubs
+     */
+    public static List<Player> createMany(int count) {
+        List<Player> players = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            players.add(create("player" + i));
+        }
+        return players;
+    }
+
+    /**
+     * Build a player index holding the given players
+     * @param players The players to index
+     * @return The index
+     */
+    public static PlayerIndex index(List<Player> players) {
+        PlayerIndex index = new PlayerIndex();
+        for (Player player : players) {
+            index.add(player);
+        }
+        return index;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
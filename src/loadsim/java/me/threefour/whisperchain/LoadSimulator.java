@@ -0,0 +1,353 @@
+package me.threefour.whisperchain;
+
+import io.papermc.paper.chat.ChatRenderer;
+import io.papermc.paper.event.player.AsyncChatEvent;
+import me.threefour.whisperchain.loadsim.DeliveryTracker;
+import me.threefour.whisperchain.loadsim.SimPlayer;
+import me.threefour.whisperchain.loadsim.SimPlugins;
+import me.threefour.whisperchain.loadsim.SimServer;
+import me.threefour.whisperchain.metrics.Histogram;
+import me.threefour.whisperchain.metrics.Metrics;
+import net.kyori.adventure.chat.SignedMessage;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.stream.Stream;
+
+/**
+ * Headless load test: runs the real plugin against thousands of simulated players.
+ * <p>
+ * Each worker thread drives its own share of the players, the way each connection's chat is
+ * handled in order, and picks a random action for a random one of them in a tight loop: public
+ * chat, {@code @name} and {@code @a,b,c} whispers, {@code /whisper} commands, whisper mode and
+ * leaving or rejoining. Chat events are fired on the worker like Paper's async chat; joins, quits
+ * and commands are handed to the simulated main thread and waited for.
+ * <p>
+ * Usage: {@code LoadSimulator [--players 5000] [--threads 16] [--seconds 60] [--rate-limit] [--offline-mail]}
+ */
+public final class LoadSimulator {
+
+    private enum Action {
+        CHAT, MENTION, GROUP_MENTION, COMMAND, GROUP_COMMAND, WHISPER_MODE, QUIT, JOIN
+    }
+
+    private final int playerCount;
+    private final int threadCount;
+    private final int seconds;
+    private final boolean rateLimit;
+    private final boolean offlineMail;
+
+    private final SimServer server;
+    private final DeliveryTracker tracker;
+    private final LongAdder[] actions = new LongAdder[Action.values().length];
+    private final LongAdder warnings = new LongAdder();
+    private final List<SimPlayer> players;
+    private WhisperChain plugin;
+
+    private LoadSimulator(int playerCount, int threadCount, int seconds, boolean rateLimit, boolean offlineMail) {
+        this.playerCount = playerCount;
+        this.threadCount = threadCount;
+        this.seconds = seconds;
+        this.rateLimit = rateLimit;
+        this.offlineMail = offlineMail;
+        this.server = new SimServer(4);
+        this.tracker = server.getTracker();
+        this.players = server.createPlayers(playerCount);
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = 5000;
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int seconds = 60;
+        boolean rateLimit = false;
+        boolean offlineMail = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--players" -> players = Integer.parseInt(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--rate-limit" -> rateLimit = true;
+                case "--offline-mail" -> offlineMail = true;
+                default -> {
+                    System.err.println("Usage: LoadSimulator [--players n] [--threads n] [--seconds n] [--rate-limit] [--offline-mail]");
+                    System.exit(2);
+                }
+            }
+        }
+
+        new LoadSimulator(players, threads, seconds, rateLimit, offlineMail).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        Path dataFolder = Files.createTempDirectory("whisperchain-loadsim");
+        try {
+            Bukkit.setServer(server.asServer());
+            enable(dataFolder);
+
+            System.out.printf(Locale.ROOT, "Joining %d players...%n", playerCount);
+            for (SimPlayer player : players) {
+                join(player);
+            }
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long heapBefore = settledHeap(memory);
+
+            System.out.printf(Locale.ROOT, "Running %d threads for %d s...%n", threadCount, seconds);
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> workers = new ArrayList<>(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                List<SimPlayer> share = new ArrayList<>();
+                for (int j = i; j < players.size(); j += threadCount) {
+                    share.add(players.get(j));
+                }
+                Thread worker = new Thread(() -> drive(share, deadline), "LoadSim Worker " + i);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - started;
+
+            awaitDeliveries();
+            long heapAfter = settledHeap(memory);
+            report(elapsed, heapBefore, heapAfter);
+        } finally {
+            if (plugin != null) {
+                server.callSync(() -> {
+                    plugin.onDisable();
+                    return null;
+                });
+            }
+            server.shutdown();
+            try (Stream<Path> files = Files.walk(dataFolder)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private void enable(Path dataFolder) throws Exception {
+        this.plugin = SimPlugins.create(WhisperChain.class, server, "loadsim", dataFolder);
+
+        // The defaults from the jar, minus whatever would get in the way of measuring
+        plugin.getConfig().set("rate-limit.recipients-per-second", rateLimit ? 2 : 0);
+        plugin.getConfig().set("advanced.message-offline-players", offlineMail);
+        plugin.getConfig().set("storage.snapshot-interval", 0);
+        plugin.saveConfig();
+
+        plugin.getLogger().addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getThrown() != null) {
+                    server.reportException(record.getThrown());
+                } else if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    warnings.increment();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        server.callSync(() -> {
+            plugin.onEnable();
+            return null;
+        });
+    }
+
+    private void drive(List<SimPlayer> share, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+            SimPlayer player = share.get(random.nextInt(share.size()));
+            try {
+                if (!player.isOnline()) {
+                    join(player);
+                    continue;
+                }
+                act(player, random);
+            } catch (ExecutionException e) {
+                server.reportException(e.getCause());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                server.reportException(e);
+            }
+        }
+    }
+
+    private void act(SimPlayer player, ThreadLocalRandom random) throws Exception {
+        int roll = random.nextInt(100);
+        if (roll < 40) {
+            // Players in whisper mode send their chat privately, so time it like any other whisper
+            boolean whispering = plugin.getChatListener().isInWhisperMode(player.getUniqueId());
+            chat(player, "the quick brown fox jumps over the lazy dog"
+                + (whispering ? " " + tracker.tag(player.getUniqueId()) : ""));
+            record(Action.CHAT);
+        } else if (roll < 65) {
+            chat(player, "@" + randomName(random) + " meet me at spawn " + tracker.tag(player.getUniqueId()));
+            record(Action.MENTION);
+        } else if (roll < 75) {
+            chat(player, "@" + randomNames(random) + " raid at dawn " + tracker.tag(player.getUniqueId()));
+            record(Action.GROUP_MENTION);
+        } else if (roll < 85) {
+            command(player, "/w " + randomName(random) + " got a minute? " + tracker.tag(player.getUniqueId()));
+            record(Action.COMMAND);
+        } else if (roll < 90) {
+            command(player, "/w group " + randomNames(random) + " trade later " + tracker.tag(player.getUniqueId()));
+            record(Action.GROUP_COMMAND);
+        } else if (roll < 95) {
+            command(player, "/w mode");
+            record(Action.WHISPER_MODE);
+        } else {
+            quit(player);
+        }
+    }
+
+    private String randomName(ThreadLocalRandom random) {
+        return players.get(random.nextInt(players.size())).getName();
+    }
+
+    private String randomNames(ThreadLocalRandom random) {
+        int count = 2 + random.nextInt(4);
+        StringBuilder names = new StringBuilder(randomName(random));
+        for (int i = 1; i < count; i++) {
+            names.append(',').append(randomName(random));
+        }
+        return names.toString();
+    }
+
+    private void chat(SimPlayer player, String message) {
+        Component component = Component.text(message);
+        server.callEvent(new AsyncChatEvent(true, player.asPlayer(), Set.of(), ChatRenderer.defaultRenderer(),
+            component, component, SignedMessage.system(message, component)));
+    }
+
+    private void command(SimPlayer player, String line) throws Exception {
+        callSync(new PlayerCommandPreprocessEvent(player.asPlayer(), line));
+    }
+
+    private void join(SimPlayer player) throws Exception {
+        player.setOnline(true);
+        callSync(new PlayerJoinEvent(player.asPlayer(), Component.empty()));
+        record(Action.JOIN);
+    }
+
+    private void quit(SimPlayer player) throws Exception {
+        callSync(new PlayerQuitEvent(player.asPlayer(), Component.empty(), PlayerQuitEvent.QuitReason.DISCONNECTED));
+        player.setOnline(false);
+        record(Action.QUIT);
+    }
+
+    private void callSync(Event event) throws Exception {
+        server.callSync(() -> {
+            server.callEvent(event);
+            return null;
+        });
+    }
+
+    private void record(Action action) {
+        actions[action.ordinal()].increment();
+    }
+
+    /**
+     * Wait until queued whispers stop arriving, for at most ten seconds
+     */
+    private void awaitDeliveries() throws InterruptedException {
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        long last = -1;
+        while (System.nanoTime() < giveUp) {
+            long delivered = tracker.delivered();
+            if (delivered == last) {
+                return;
+            }
+            last = delivered;
+            Thread.sleep(500);
+        }
+    }
+
+    private static long settledHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private void report(long elapsedNanos, long heapBefore, long heapAfter) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long total = 0;
+        for (LongAdder count : actions) {
+            total += count.sum();
+        }
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%d players, %d threads, %.1f s%n", playerCount, threadCount, elapsedSeconds);
+        System.out.printf(Locale.ROOT, "Throughput:        %,.0f actions/s (%,d total)%n", total / elapsedSeconds, total);
+        for (Action action : Action.values()) {
+            System.out.printf(Locale.ROOT, "  %-15s %,d%n", action.name().toLowerCase(Locale.ROOT), actions[action.ordinal()].sum());
+        }
+
+        Histogram.Snapshot latency = tracker.latency();
+        System.out.printf(Locale.ROOT, "Whispers:          %,d sent, %,d delivered (%,.0f/s), %,d never seen%n",
+            tracker.sent(), tracker.delivered(), tracker.delivered() / elapsedSeconds, tracker.outstanding());
+        System.out.printf(Locale.ROOT, "End-to-end:        p50 %s  p99 %s  p99.9 %s  mean %s%n",
+            micros(latency.percentile(50)), micros(latency.percentile(99)), micros(latency.percentile(99.9)),
+            micros((long) latency.mean()));
+
+        Metrics metrics = plugin.getMetrics();
+        System.out.printf(Locale.ROOT, "Plugin:            %,d whispers, %,d rate limited, encrypt p99 %d µs, history %,d messages%n",
+            metrics.getWhispersSent(), metrics.getWhispersRateLimited(), metrics.getEncryptLatencyP99(),
+            metrics.getHistoryMessages());
+
+        System.out.printf(Locale.ROOT, "Heap:              %,d KiB -> %,d KiB (%+,d KiB)%n",
+            heapBefore / 1024, heapAfter / 1024, (heapAfter - heapBefore) / 1024);
+
+        Map<String, LongAdder> exceptions = server.getExceptionCounts();
+        System.out.printf(Locale.ROOT, "Warnings logged:   %,d%n", warnings.sum());
+        if (exceptions.isEmpty()) {
+            System.out.println("Exceptions:        none");
+        } else {
+            System.out.println("Exceptions:");
+            exceptions.forEach((type, count) -> System.out.printf(Locale.ROOT, "  %,8d %s%n", count.sum(), type));
+            server.getFirstStackTraces().forEach((type, trace) -> {
+                System.out.println();
+                System.out.print(trace);
+            });
+        }
+    }
+
+    private static String micros(long micros) {
+        return micros >= 10_000 ? String.format(Locale.ROOT, "%.1f ms", micros / 1000.0) : micros + " µs";
+    }
+}
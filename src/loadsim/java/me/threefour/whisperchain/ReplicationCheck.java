@@ -0,0 +1,146 @@
+package me.threefour.whisperchain;
+
+import me.threefour.whisperchain.loadsim.SimPlayer;
+import me.threefour.whisperchain.loadsim.SimPlugins;
+import me.threefour.whisperchain.loadsim.SimServer;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Checks history replication end to end with two servers in one JVM, joined over the loopback
+ * transport.
+ * <p>
+ * Alice whispers Bob on server A and server B has to end up with the same conversation. Then
+ * B restarts while A keeps going, and B has to catch up from where it stopped: if it copied
+ * everything again, the conversation would show duplicates.
+ * <p>
+ * Usage: {@code ReplicationCheck}. Exits with 1 if a check fails.
+ */
+public final class ReplicationCheck {
+
+    private static final int BEFORE_RESTART = 20;
+    private static final int DURING_RESTART = 15;
+
+    private final SimServer serverA = new SimServer(2);
+    private final SimServer serverB = new SimServer(2);
+    private final List<String> expected = new ArrayList<>();
+    private SimPlayer alice;
+    private SimPlayer bob;
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = new ReplicationCheck().run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        Path dataFolder = Files.createTempDirectory("whisperchain-replication");
+        WhisperChain pluginA = null;
+        WhisperChain pluginB = null;
+        try {
+            Bukkit.setServer(serverA.asServer());
+            List<SimPlayer> players = serverA.createPlayers(2);
+            this.alice = players.get(0);
+            this.bob = players.get(1);
+
+            pluginA = enable(serverA, dataFolder.resolve("a"), "node-a");
+            pluginB = enable(serverB, dataFolder.resolve("b"), "node-b");
+            for (SimPlayer player : players) {
+                player.setOnline(true);
+                serverA.callSync(() -> {
+                    serverA.callEvent(new PlayerJoinEvent(player.asPlayer(), Component.empty()));
+                    return null;
+                });
+            }
+
+            whisper(pluginA, "before restart", BEFORE_RESTART);
+            boolean copied = check("B has A's history", pluginB);
+
+            long offset = pluginB.getReplicator().getOffset("node-a");
+            disable(serverB, pluginB);
+            pluginB = null;
+            whisper(pluginA, "during restart", DURING_RESTART);
+            pluginB = enable(serverB, dataFolder.resolve("b"), "node-b");
+            System.out.printf("B restarted at offset %d of node-a%n", offset);
+            boolean caughtUp = check("B caught up without copying again", pluginB);
+            return copied && caughtUp;
+        } finally {
+            if (pluginB != null) {
+                disable(serverB, pluginB);
+            }
+            if (pluginA != null) {
+                disable(serverA, pluginA);
+            }
+            serverA.shutdown();
+            serverB.shutdown();
+            try (Stream<Path> files = Files.walk(dataFolder)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private WhisperChain enable(SimServer server, Path dataFolder, String nodeId) throws Exception {
+        WhisperChain plugin = SimPlugins.create(WhisperChain.class, server, "replication-check", dataFolder);
+
+        plugin.getConfig().set("network.enabled", true);
+        plugin.getConfig().set("network.node-id", nodeId);
+        // Both servers share one network key, as a real network would after copying it around
+        plugin.getConfig().set("network.key-file", dataFolder.resolveSibling("network.key").toString());
+        plugin.getConfig().set("network.replicate-history", true);
+        plugin.getConfig().set("rate-limit.recipients-per-second", 0);
+        plugin.getConfig().set("storage.snapshot-interval", 0);
+        plugin.saveConfig();
+
+        server.callSync(() -> {
+            plugin.onEnable();
+            return null;
+        });
+        return plugin;
+    }
+
+    private static void disable(SimServer server, WhisperChain plugin) throws Exception {
+        server.callSync(() -> {
+            plugin.onDisable();
+            return null;
+        });
+    }
+
+    private void whisper(WhisperChain plugin, String text, int count) {
+        for (int i = 0; i < count; i++) {
+            String message = text + " " + i;
+            plugin.getChatManager().sendWhisper(alice.asPlayer(), List.of(bob.asPlayer()), message).join();
+            expected.add(alice.getName() + ": " + message);
+        }
+    }
+
+    /**
+     * Wait up to five seconds for a server's copy of the conversation to match what was sent
+     */
+    private boolean check(String description, WhisperChain plugin) throws InterruptedException {
+        UUID aliceId = alice.getUniqueId();
+        UUID bobId = bob.getUniqueId();
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<String> history = plugin.getChatManager().getChatHistory(aliceId, bobId);
+        while (!history.equals(expected) && history.size() <= expected.size() && System.nanoTime() < giveUp) {
+            Thread.sleep(50);
+            history = plugin.getChatManager().getChatHistory(aliceId, bobId);
+        }
+
+        boolean passed = history.equals(expected);
+        System.out.printf("%s %s (%d of %d messages)%n", passed ? "PASS" : "FAIL", description, history.size(), expected.size());
+        if (!passed) {
+            System.out.println("  expected " + expected);
+            System.out.println("  got      " + history);
+        }
+        return passed;
+    }
+}
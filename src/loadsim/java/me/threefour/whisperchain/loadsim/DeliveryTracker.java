@@ -0,0 +1,81 @@
+package me.threefour.whisperchain.loadsim;
+
+import me.threefour.whisperchain.metrics.Histogram;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures end-to-end whisper latency.
+ * <p>
+ * Every simulated whisper ends with a {@code #sequence} tag. The time from handing the chat or
+ * command event to the plugin until the first recipient other than the sender sees the tag is
+ * one latency sample, in microseconds.
+ */
+public final class DeliveryTracker {
+
+    private record Pending(UUID sender, long sentNanos) {
+    }
+
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final LongAdder delivered = new LongAdder();
+    private final Histogram latency = new Histogram();
+
+    /**
+     * Start timing a whisper
+     * @param sender The player sending it
+     * @return The tag to put at the end of the message
+     */
+    public String tag(UUID sender) {
+        long sequence = nextSequence.incrementAndGet();
+        pending.put(sequence, new Pending(sender, System.nanoTime()));
+        return "#" + sequence;
+    }
+
+    /**
+     * Look for whisper tags in a message a player received
+     * @param recipient The player who received it
+     * @param text The plain text of the message
+     */
+    void received(UUID recipient, String text) {
+        int hash = text.indexOf('#');
+        while (hash >= 0) {
+            int end = hash + 1;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                end++;
+            }
+            if (end > hash + 1 && end - hash <= 19) {
+                Long sequence = Long.parseLong(text, hash + 1, end, 10);
+                Pending whisper = pending.get(sequence);
+                if (whisper != null && !whisper.sender().equals(recipient) && pending.remove(sequence, whisper)) {
+                    latency.record((System.nanoTime() - whisper.sentNanos()) / 1000);
+                    delivered.increment();
+                }
+            }
+            hash = text.indexOf('#', end);
+        }
+    }
+
+    public long sent() {
+        return nextSequence.get();
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return Whispers nobody has seen yet: still queued, rate limited, rejected or sent to someone who left
+     */
+    public int outstanding() {
+        return pending.size();
+    }
+
+    public Histogram.Snapshot latency() {
+        return latency.snapshot();
+    }
+}
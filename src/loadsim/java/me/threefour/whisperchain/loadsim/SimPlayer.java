@@ -0,0 +1,129 @@
+package me.threefour.whisperchain.loadsim;
+
+import net.kyori.adventure.text.ComponentLike;
+import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
+import org.bukkit.entity.Player;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A synthetic player. Only identity, online state and receiving messages are simulated;
+ * anything else the plugin asks a player answers with an empty default.
+ */
+public final class SimPlayer implements InvocationHandler {
+
+    private final String name;
+    private final UUID uniqueId;
+    private final SimServer server;
+    private final Player proxy;
+    private final LongAdder messagesReceived = new LongAdder();
+    private volatile boolean online;
+
+    SimPlayer(String name, SimServer server) {
+        this.name = name;
+        // Same derivation as an offline-mode server
+        this.uniqueId = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+        this.server = server;
+        this.proxy = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class}, this);
+    }
+
+    public Player asPlayer() {
+        return proxy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getUniqueId() {
+        return uniqueId;
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    public void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public Object invoke(Object self, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getName":
+                return name;
+            case "getUniqueId":
+                return uniqueId;
+            case "isOnline":
+            case "isConnected":
+                return online;
+            case "getPlayer":
+                return online ? proxy : null;
+            case "getServer":
+                return server.asServer();
+            case "sendMessage":
+                receive(args);
+                return null;
+            case "hashCode":
+                return uniqueId.hashCode();
+            case "equals":
+                return self == args[0];
+            case "toString":
+                return "SimPlayer{" + name + "}";
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private void receive(Object[] args) {
+        messagesReceived.increment();
+        // Whatever the overload, the message is the last argument
+        Object message = args[args.length - 1];
+        String text;
+        if (message instanceof ComponentLike component) {
+            text = PlainTextComponentSerializer.plainText().serialize(component.asComponent());
+        } else if (message instanceof String[] lines) {
+            text = String.join("\n", lines);
+        } else {
+            text = String.valueOf(message);
+        }
+        server.getTracker().received(uniqueId, text);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        return 0d;
+    }
+}
@@ -0,0 +1,51 @@
+package me.threefour.whisperchain.loadsim;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import sun.reflect.ReflectionFactory;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+
+/**
+ * Builds plugins outside of a running server.
+ * <p>
+ * A plugin's own constructor refuses to run unless a plugin class loader loaded it, and
+ * {@link JavaPlugin}'s test constructor is only reachable from a subclass constructor. So the
+ * plugin is allocated the way deserialization does it: as an instance of the plugin class, but
+ * initialized by {@link JavaPlugin}'s test constructor alone. The plugin class must not rely on
+ * field initializers or its constructor, which the plugin classes here don't.
+ */
+public final class SimPlugins {
+
+    private SimPlugins() {
+    }
+
+    /**
+     * Create a plugin attached to a simulated server
+     * @param type The plugin class
+     * @param server The server the plugin runs on
+     * @param version The version to describe the plugin with
+     * @param dataFolder The plugin's data folder
+     * @return The plugin, not yet enabled
+     */
+    @SuppressWarnings({"deprecation", "removal"})
+    public static <T extends JavaPlugin> T create(Class<T> type, SimServer server, String version, Path dataFolder) {
+        try {
+            Constructor<JavaPlugin> init = JavaPlugin.class.getDeclaredConstructor(
+                JavaPluginLoader.class, PluginDescriptionFile.class, File.class, File.class);
+            Constructor<?> constructor = ReflectionFactory.getReflectionFactory().newConstructorForSerialization(type, init);
+            JavaPluginLoader loader = new JavaPluginLoader(server.asServer());
+            return type.cast(constructor.newInstance(loader,
+                new PluginDescriptionFile(type.getSimpleName(), version, type.getName()),
+                dataFolder.toFile(), dataFolder.resolve(type.getSimpleName() + ".jar").toFile()));
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Can't create " + type.getName() + " outside of a server", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Can't create " + type.getName() + " outside of a server", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package me.threefour.whisperchain.loadsim;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BukkitScheduler} backed by two executors: one thread standing in for the server's
+ * main thread and a small pool for async tasks. One tick is 50 ms of wall time, and tasks
+ * that fail are counted as exceptions instead of being logged.
+ */
+final class SimScheduler implements InvocationHandler {
+
+    private static final long TICK_MILLIS = 50;
+
+    private final SimServer server;
+    private final ScheduledExecutorService main;
+    private final ScheduledExecutorService async;
+    private final Map<Integer, SimTask> tasks = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTaskId = new AtomicInteger();
+    private final BukkitScheduler proxy;
+    private volatile Thread mainThread;
+
+    SimScheduler(SimServer server, int asyncThreads) {
+        this.server = server;
+        this.main = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Server thread");
+            thread.setDaemon(true);
+            mainThread = thread;
+            return thread;
+        });
+        AtomicInteger asyncCount = new AtomicInteger();
+        this.async = Executors.newScheduledThreadPool(asyncThreads, runnable -> {
+            Thread thread = new Thread(runnable, "Craft Scheduler Thread - " + asyncCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.proxy = (BukkitScheduler) Proxy.newProxyInstance(BukkitScheduler.class.getClassLoader(),
+            new Class<?>[]{BukkitScheduler.class}, this);
+    }
+
+    BukkitScheduler asScheduler() {
+        return proxy;
+    }
+
+    boolean isMainThread() {
+        return Thread.currentThread() == mainThread;
+    }
+
+    <T> T callSync(Callable<T> task) throws Exception {
+        if (isMainThread()) {
+            return task.call();
+        }
+        return main.submit(task).get();
+    }
+
+    void shutdown() {
+        main.shutdownNow();
+        async.shutdownNow();
+    }
+
+    @Override
+    public Object invoke(Object self, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "runTask":
+                return schedule((Plugin) args[0], (Runnable) args[1], true, 0, -1);
+            case "runTaskAsynchronously":
+                return schedule((Plugin) args[0], (Runnable) args[1], false, 0, -1);
+            case "runTaskLater":
+                return schedule((Plugin) args[0], (Runnable) args[1], true, (long) args[2], -1);
+            case "runTaskLaterAsynchronously":
+                return schedule((Plugin) args[0], (Runnable) args[1], false, (long) args[2], -1);
+            case "runTaskTimer":
+                return schedule((Plugin) args[0], (Runnable) args[1], true, (long) args[2], (long) args[3]);
+            case "runTaskTimerAsynchronously":
+                return schedule((Plugin) args[0], (Runnable) args[1], false, (long) args[2], (long) args[3]);
+            case "cancelTask":
+                SimTask task = tasks.get((int) args[0]);
+                if (task != null) {
+                    task.cancel();
+                }
+                return null;
+            case "cancelTasks":
+                tasks.values().forEach(SimTask::cancel);
+                return null;
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "equals":
+                return self == args[0];
+            case "toString":
+                return "SimScheduler";
+            default:
+                throw new UnsupportedOperationException("BukkitScheduler." + method.getName() + " is not simulated");
+        }
+    }
+
+    private BukkitTask schedule(Plugin owner, Runnable runnable, boolean sync, long delayTicks, long periodTicks) {
+        SimTask task = new SimTask(nextTaskId.incrementAndGet(), owner, sync);
+        ScheduledExecutorService executor = sync ? main : async;
+        Runnable guarded = () -> {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                // Keep repeating tasks alive like the real scheduler does, but count the failure
+                server.reportException(t);
+            }
+        };
+
+        // Like the real scheduler, nothing runs before the next tick
+        long delay = Math.max(1, delayTicks) * TICK_MILLIS;
+        if (periodTicks < 0) {
+            task.future = executor.schedule(() -> {
+                tasks.remove(task.getTaskId());
+                guarded.run();
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            long period = Math.max(1, periodTicks) * TICK_MILLIS;
+            task.future = executor.scheduleAtFixedRate(guarded, delay, period, TimeUnit.MILLISECONDS);
+        }
+        tasks.put(task.getTaskId(), task);
+        return task;
+    }
+
+    private final class SimTask implements BukkitTask {
+
+        private final int id;
+        private final Plugin owner;
+        private final boolean sync;
+        private volatile Future<?> future;
+
+        SimTask(int id, Plugin owner, boolean sync) {
+            this.id = id;
+            this.owner = owner;
+            this.sync = sync;
+        }
+
+        @Override
+        public int getTaskId() {
+            return id;
+        }
+
+        @Override
+        public Plugin getOwner() {
+            return owner;
+        }
+
+        @Override
+        public boolean isSync() {
+            return sync;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            Future<?> current = future;
+            return current != null && current.isCancelled();
+        }
+
+        @Override
+        public void cancel() {
+            tasks.remove(id);
+            Future<?> current = future;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package me.threefour.whisperchain.loadsim;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandMap;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * An in-process stand-in for the server: players, a scheduler, a command map that accepts
+ * everything and an event bus that calls {@link EventHandler} methods in priority order.
+ * <p>
+ * Every exception thrown out of a listener or a scheduled task is counted by type instead of
+ * being logged, and the first stack trace of each type is kept for the report.
+ */
+public final class SimServer implements InvocationHandler {
+
+    private record RegisteredHandler(Listener listener, Method method, EventHandler annotation) {
+    }
+
+    private final Logger logger = Logger.getLogger("LoadSim");
+    private final Map<UUID, SimPlayer> playersById = new ConcurrentHashMap<>();
+    private final Map<String, SimPlayer> playersByName = new ConcurrentHashMap<>();
+    private volatile List<RegisteredHandler> handlers = List.of();
+    private final Map<String, LongAdder> exceptionCounts = new ConcurrentHashMap<>();
+    private final Map<String, String> firstStackTraces = new ConcurrentHashMap<>();
+    private final DeliveryTracker tracker = new DeliveryTracker();
+    private final SimScheduler scheduler;
+    private final Server proxy;
+    private final PluginManager pluginManager;
+    private final CommandMap commandMap;
+
+    public SimServer(int asyncThreads) {
+        this.scheduler = new SimScheduler(this, asyncThreads);
+        this.proxy = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[]{Server.class}, this);
+        this.pluginManager = (PluginManager) Proxy.newProxyInstance(PluginManager.class.getClassLoader(),
+            new Class<?>[]{PluginManager.class}, this::invokePluginManager);
+        this.commandMap = (CommandMap) Proxy.newProxyInstance(CommandMap.class.getClassLoader(),
+            new Class<?>[]{CommandMap.class}, (self, method, args) -> method.getReturnType() == boolean.class ? true : null);
+    }
+
+    public Server asServer() {
+        return proxy;
+    }
+
+    /**
+     * Run something on the simulated main thread and wait for it
+     */
+    public <T> T callSync(Callable<T> task) throws Exception {
+        return scheduler.callSync(task);
+    }
+
+    public DeliveryTracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * Create players that have never joined
+     * @param count How many players to create
+     * @return The new players
+     */
+    public List<SimPlayer> createPlayers(int count) {
+        List<SimPlayer> created = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SimPlayer player = new SimPlayer(String.format(Locale.ROOT, "Sim%05d", i), this);
+            playersById.put(player.getUniqueId(), player);
+            playersByName.put(player.getName().toLowerCase(Locale.ROOT), player);
+            created.add(player);
+        }
+        return created;
+    }
+
+    /**
+     * Fire an event at every registered handler that takes it, in priority order
+     * @param event The event to fire
+     */
+    public void callEvent(Event event) {
+        for (RegisteredHandler handler : handlers) {
+            if (!handler.method().getParameterTypes()[0].isInstance(event)) {
+                continue;
+            }
+            if (handler.annotation().ignoreCancelled() && event instanceof Cancellable cancellable && cancellable.isCancelled()) {
+                continue;
+            }
+            try {
+                handler.method().invoke(handler.listener(), event);
+            } catch (InvocationTargetException e) {
+                reportException(e.getCause());
+            } catch (IllegalAccessException e) {
+                reportException(e);
+            }
+        }
+    }
+
+    /**
+     * Count an exception the plugin let escape
+     * @param throwable The exception
+     */
+    public void reportException(Throwable throwable) {
+        String type = throwable.getClass().getName();
+        exceptionCounts.computeIfAbsent(type, k -> new LongAdder()).increment();
+        firstStackTraces.computeIfAbsent(type, k -> {
+            StringWriter trace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(trace));
+            return trace.toString();
+        });
+    }
+
+    public Map<String, LongAdder> getExceptionCounts() {
+        return exceptionCounts;
+    }
+
+    public Map<String, String> getFirstStackTraces() {
+        return firstStackTraces;
+    }
+
+    @Override
+    public Object invoke(Object self, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getOnlinePlayers":
+                return onlinePlayers();
+            case "getPlayer":
+            case "getPlayerExact":
+                SimPlayer player = args[0] instanceof UUID uuid ? playersById.get(uuid)
+                    : playersByName.get(((String) args[0]).toLowerCase(Locale.ROOT));
+                return player != null && player.isOnline() ? player.asPlayer() : null;
+            case "getOfflinePlayerIfCached":
+                SimPlayer known = playersByName.get(((String) args[0]).toLowerCase(Locale.ROOT));
+                return known != null ? known.asPlayer() : null;
+            case "getOfflinePlayer":
+                SimPlayer byId = args[0] instanceof UUID uuid ? playersById.get(uuid) : null;
+                return byId != null ? byId.asPlayer() : null;
+            case "getPluginManager":
+                return pluginManager;
+            case "getCommandMap":
+                return commandMap;
+            case "getScheduler":
+                return scheduler.asScheduler();
+            case "getLogger":
+                return logger;
+            case "isPrimaryThread":
+                return scheduler.isMainThread();
+            case "getName":
+                return "LoadSim";
+            case "getVersion":
+            case "getBukkitVersion":
+            case "getMinecraftVersion":
+                return "1.21.5";
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "equals":
+                return self == args[0];
+            case "toString":
+                return "SimServer";
+            default:
+                throw new UnsupportedOperationException("Server." + method.getName() + " is not simulated");
+        }
+    }
+
+    private List<Player> onlinePlayers() {
+        List<Player> online = new ArrayList<>();
+        for (SimPlayer player : playersById.values()) {
+            if (player.isOnline()) {
+                online.add(player.asPlayer());
+            }
+        }
+        return online;
+    }
+
+    private Object invokePluginManager(Object self, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "registerEvents":
+                registerEvents((Listener) args[0]);
+                return null;
+            case "callEvent":
+                callEvent((Event) args[0]);
+                return null;
+            case "getPlugins":
+                return new Plugin[0];
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "equals":
+                return self == args[0];
+            default:
+                return null;
+        }
+    }
+
+    private synchronized void registerEvents(Listener listener) {
+        List<RegisteredHandler> all = new ArrayList<>(handlers);
+        for (Method method : listener.getClass().getMethods()) {
+            EventHandler annotation = method.getAnnotation(EventHandler.class);
+            if (annotation != null && method.getParameterCount() == 1 && Event.class.isAssignableFrom(method.getParameterTypes()[0])) {
+                all.add(new RegisteredHandler(listener, method, annotation));
+            }
+        }
+        all.sort(Comparator.comparingInt(handler -> handler.annotation().priority().ordinal()));
+        handlers = List.copyOf(all);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
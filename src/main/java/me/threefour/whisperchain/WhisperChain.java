@@ -1,34 +1,205 @@
 package me.threefour.whisperchain;
 
+import me.threefour.whisperchain.commands.WhisperChainCommand;
+import me.threefour.whisperchain.commands.WhisperCommand;
 import me.threefour.whisperchain.listeners.ChatListener;
 import me.threefour.whisperchain.managers.ChatManager;
+import me.threefour.whisperchain.managers.MessageFormats;
+import me.threefour.whisperchain.managers.PlayerIndex;
+import me.threefour.whisperchain.managers.SecureCommandManager;
+import me.threefour.whisperchain.metrics.Metrics;
+import me.threefour.whisperchain.network.HistoryReplicator;
+import me.threefour.whisperchain.network.LoopbackTransport;
+import me.threefour.whisperchain.network.WhisperRouter;
+import me.threefour.whisperchain.storage.StateSnapshot;
 import me.threefour.whisperchain.utils.Encryption;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.crypto.SecretKey;
+import javax.management.JMException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Level;
 
 public final class WhisperChain extends JavaPlugin {
 
+    private Metrics metrics;
     private ChatManager chatManager;
     private Encryption encryption;
     private ChatListener chatListener;
+    private SecureCommandManager secureCommandManager;
+    private MessageFormats messageFormats;
+    private PlayerIndex playerIndex;
+    private StateSnapshot stateSnapshot;
+    private WhisperRouter router;
+    private HistoryReplicator replicator;
+    private BukkitTask checkpointTask;
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        this.messageFormats = new MessageFormats(getConfig());
+        
+        this.metrics = new Metrics();
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            getLogger().log(Level.WARNING, "Failed to publish metrics over JMX", e);
+        }
+        
         // Initialize managers
-        this.encryption = new Encryption();
+        this.playerIndex = new PlayerIndex();
+        for (Player player : getServer().getOnlinePlayers()) {
+            playerIndex.add(player);
+        }
+        this.encryption = new Encryption(metrics);
+        if (getConfig().getBoolean("encryption.derive-player-keys", false)) {
+            loadMasterSecret();
+        }
         this.chatManager = new ChatManager(this);
         
-        // Initialize and register listeners
         this.chatListener = new ChatListener(this);
+        
+        // Restore state from the last shutdown and checkpoint it periodically
+        this.stateSnapshot = openStateSnapshot();
+        if (stateSnapshot != null) {
+            long started = System.nanoTime();
+            if (stateSnapshot.restore()) {
+                getLogger().info("Restored saved state in " + (System.nanoTime() - started) / 1_000_000 + " ms.");
+            }
+            long interval = getConfig().getLong("storage.snapshot-interval", 5) * 60 * 20;
+            if (interval > 0) {
+                this.checkpointTask = getServer().getScheduler().runTaskTimerAsynchronously(this, stateSnapshot::save, interval, interval);
+            }
+        }
+        
+        // Reach players on the other servers behind the proxy
+        if (getConfig().getBoolean("network.enabled", false)) {
+            startRouter();
+        }
+        
+        // Register listeners and commands once state is in place
         getServer().getPluginManager().registerEvents(this.chatListener, this);
+        this.secureCommandManager = new SecureCommandManager(this);
+        WhisperCommand whisperCommand = new WhisperCommand(this);
+        secureCommandManager.registerSecureCommand("whisper", "Send an encrypted private message",
+            "/whisper <player> <message>", Arrays.asList("w", "msg", "tell"), whisperCommand, whisperCommand, true);
+        getServer().getCommandMap().register(getName(), new WhisperChainCommand(this));
         
         getLogger().info("WhisperChain has been enabled! Use @player to send an encrypted message.");
     }
 
+    private StateSnapshot openStateSnapshot() {
+        boolean encryptStorage = getConfig().getBoolean("encryption.encrypt-storage", true);
+        try {
+            return new StateSnapshot(this, getDataFolder().toPath().resolve("state.bin"),
+                encryption.loadKeyFile(getDataFolder().toPath().resolve("storage.key"), encryptStorage), encryptStorage);
+        } catch (IOException | IllegalArgumentException e) {
+            // Without the key the snapshot could only be written in the clear
+            getLogger().log(Level.SEVERE, "Failed to load storage.key, state will not be saved across restarts", e);
+            return null;
+        }
+    }
+
+    private void loadMasterSecret() {
+        File file = new File(getDataFolder(), getConfig().getString("encryption.master-secret-file", "master.key"));
+        try {
+            encryption.deriveKeysFrom(encryption.loadKeyFile(file.toPath(), true),
+                getConfig().getInt("encryption.key-cache-size", 1024));
+        } catch (IOException | IllegalArgumentException e) {
+            getLogger().log(Level.SEVERE, "Failed to load the master secret from " + file + ", generating keys per player instead", e);
+        }
+    }
+
+    private void startRouter() {
+        String transport = getConfig().getString("network.transport", "loopback");
+        if (!"loopback".equalsIgnoreCase(transport)) {
+            getLogger().warning("Unknown network transport " + transport + ", whispers will not reach other servers");
+            return;
+        }
+        
+        SecretKey networkKey;
+        Path keyFile = getDataFolder().toPath().resolve(getConfig().getString("network.key-file", "network.key"));
+        try {
+            networkKey = encryption.loadKeyFile(keyFile, true);
+        } catch (IOException | IllegalArgumentException e) {
+            getLogger().log(Level.SEVERE, "Failed to load the network key from " + keyFile + ", whispers will not reach other servers", e);
+            return;
+        }
+        
+        WhisperRouter router = new WhisperRouter(this, getConfig().getString("network.node-id", "server-1"), networkKey, new LoopbackTransport());
+        // The replicator has to hook into the router before it joins, or it misses who is already there
+        if (getConfig().getBoolean("network.replicate-history", false) && getConfig().getBoolean("chat-history.enabled", true)) {
+            startReplicator(router);
+        }
+        try {
+            router.start();
+            this.router = router;
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Failed to join the network, whispers will not reach other servers", e);
+            if (replicator != null) {
+                replicator.shutdown();
+                this.replicator = null;
+            }
+        }
+    }
+
+    private void startReplicator(WhisperRouter router) {
+        try {
+            boolean encryptStorage = getConfig().getBoolean("encryption.encrypt-storage", true);
+            HistoryReplicator replicator = new HistoryReplicator(this, router, getDataFolder().toPath().resolve("replication"),
+                getConfig().getInt("chat-history.retention-days", 30),
+                encryption.loadKeyFile(getDataFolder().toPath().resolve("storage.key"), encryptStorage), encryptStorage);
+            replicator.start();
+            this.replicator = replicator;
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Failed to open the replication log, history will not be shared with other servers", e);
+        }
+    }
+
     @Override
     public void onDisable() {
+        // Finish queued commands first, while everything they use is still running
+        if (secureCommandManager != null) {
+            secureCommandManager.shutdown();
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel();
+        }
+        // Finish queued whispers while the router can still forward them
+        if (chatManager != null) {
+            chatManager.finishWhispers();
+        }
+        // Send what is still queued for other servers and stop taking their whispers
+        if (router != null) {
+            router.shutdown();
+        }
+        // Let the last whispers land in history before it is snapshotted
+        if (chatManager != null) {
+            chatManager.shutdown();
+        }
+        // After the chat manager, so the last whispers reach the outbox
+        if (replicator != null) {
+            replicator.shutdown();
+        }
+        if (stateSnapshot != null) {
+            stateSnapshot.save();
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        
         getLogger().info("WhisperChain has been disabled!");
     }
     
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public ChatManager getChatManager() {
         return chatManager;
     }
@@ -40,4 +211,32 @@ public final class WhisperChain extends JavaPlugin {
     public ChatListener getChatListener() {
         return chatListener;
     }
+    
+    public SecureCommandManager getSecureCommandManager() {
+        return secureCommandManager;
+    }
+    
+    public MessageFormats getMessageFormats() {
+        return messageFormats;
+    }
+    
+    public PlayerIndex getPlayerIndex() {
+        return playerIndex;
+    }
+    
+    /**
+     * Get the router for whispers to other servers
+     * @return The router, or null if the network is disabled
+     */
+    public WhisperRouter getRouter() {
+        return router;
+    }
+    
+    /**
+     * Get the replicator that shares chat history with other servers
+     * @return The replicator, or null if history replication is disabled
+     */
+    public HistoryReplicator getReplicator() {
+        return replicator;
+    }
 }
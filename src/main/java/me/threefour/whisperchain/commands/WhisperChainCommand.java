@@ -0,0 +1,111 @@
+package me.threefour.whisperchain.commands;
+
+import me.threefour.whisperchain.WhisperChain;
+import me.threefour.whisperchain.metrics.Histogram;
+import me.threefour.whisperchain.metrics.Metrics;
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Admin command, {@code /whisperchain stats}, showing what the plugin is doing and what it costs
+ */
+public class WhisperChainCommand extends Command {
+
+    public static final String ADMIN_PERMISSION = "whisperchain.admin";
+    private static final List<String> SUBCOMMANDS = List.of("stats");
+
+    private final WhisperChain plugin;
+
+    public WhisperChainCommand(WhisperChain plugin) {
+        super("whisperchain", "WhisperChain administration", "/whisperchain stats", List.of("wchain"));
+        this.plugin = plugin;
+        setPermission(ADMIN_PERMISSION);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+        if (!testPermission(sender)) {
+            return true;
+        }
+
+        if (args.length == 0 || !args[0].equalsIgnoreCase("stats")) {
+            sender.sendMessage(ChatColor.RED + "Usage: /" + commandLabel + " stats");
+            return true;
+        }
+
+        showStats(sender);
+        return true;
+    }
+
+    private void showStats(CommandSender sender) {
+        Metrics metrics = plugin.getMetrics();
+        Histogram.Snapshot fanOut = metrics.getFanOut();
+        Histogram.Snapshot encrypt = metrics.getEncryptLatency();
+        Histogram.Snapshot decrypt = metrics.getDecryptLatency();
+
+        sender.sendMessage(ChatColor.DARK_PURPLE + "====== " + ChatColor.LIGHT_PURPLE + "WhisperChain Stats"
+            + ChatColor.DARK_PURPLE + " ====== " + ChatColor.GRAY + "(up " + formatDuration(metrics.getUptimeSeconds()) + ")");
+        sender.sendMessage(line("Whispers", metrics.getWhispersSent() + " sent, "
+            + String.format(Locale.ROOT, "%.2f", metrics.getWhispersPerSecond()) + "/s, "
+            + metrics.getWhispersRateLimited() + " rate limited"));
+        sender.sendMessage(line("Fan-out", metrics.getRecipientsReached() + " recipients, p50 "
+            + fanOut.percentile(50) + ", p99 " + fanOut.percentile(99) + ", max " + fanOut.percentile(100)));
+        sender.sendMessage(line("Encrypt", latency(encrypt)));
+        sender.sendMessage(line("Decrypt", latency(decrypt)));
+        sender.sendMessage(line("History", metrics.getHistoryConversations() + " conversations, "
+            + metrics.getHistoryMessages() + " messages, ~" + formatBytes(metrics.getHistoryBytes())));
+        sender.sendMessage(line("Log filter", metrics.getLogLinesFiltered() + " command lines hidden"));
+    }
+
+    private static String line(String label, String value) {
+        return ChatColor.LIGHT_PURPLE + label + ChatColor.GRAY + ": " + ChatColor.WHITE + value;
+    }
+
+    private static String latency(Histogram.Snapshot snapshot) {
+        if (snapshot.count() == 0) {
+            return "no samples";
+        }
+        return "p50 " + formatNanos(snapshot.percentile(50))
+            + ", p99 " + formatNanos(snapshot.percentile(99))
+            + ", p999 " + formatNanos(snapshot.percentile(99.9))
+            + " (" + snapshot.count() + " samples)";
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format(Locale.ROOT, "%.1fµs", nanos / 1e3);
+        }
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+    }
+
+    private static String formatDuration(double seconds) {
+        long total = (long) seconds;
+        return total / 3600 + "h " + (total % 3600) / 60 + "m " + total % 60 + "s";
+    }
+
+    @Override
+    public List<String> tabComplete(CommandSender sender, String alias, String[] args) {
+        if (args.length != 1 || !sender.hasPermission(ADMIN_PERMISSION)) {
+            return Collections.emptyList();
+        }
+        return SUBCOMMANDS.stream().filter(sub -> sub.startsWith(args[0].toLowerCase(Locale.ROOT))).toList();
+    }
+}
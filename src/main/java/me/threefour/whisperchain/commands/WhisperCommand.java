@@ -2,8 +2,18 @@ package me.threefour.whisperchain.commands;
 
 import me.threefour.whisperchain.WhisperChain;
 import me.threefour.whisperchain.listeners.ChatListener;
+import me.threefour.whisperchain.network.RemotePlayer;
+import me.threefour.whisperchain.storage.HistoryEntry;
+import me.threefour.whisperchain.storage.HistoryIndex;
+import me.threefour.whisperchain.storage.HistoryPage;
+import me.threefour.whisperchain.utils.MessageTemplate;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.format.NamedTextColor;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -12,18 +22,48 @@ import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Handles /whisper and its aliases. Everything here only touches thread-safe state, so the
+ * command is registered as async-safe and runs off the main thread.
+ */
 public class WhisperCommand implements CommandExecutor, TabCompleter {
 
+    private static final List<String> SUBCOMMANDS = List.of("help", "mode", "history", "reply", "group");
+    private static final int MAX_COMPLETIONS = 50;
+    private static final int MAX_SEARCH_RESULTS = 10;
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final Component HELP = Component.join(JoinConfiguration.newlines(),
+        MessageTemplate.compile("&5====== &dWhisperChain Help&5 ======").render(),
+        helpLine("/whisper <player> <message>", "Send a private message"),
+        helpLine("/whisper <player1,player2> <message>", "Send to multiple players"),
+        helpLine("/whisper group <player1,player2> <message>", "Send to a group"),
+        helpLine("/whisper mode", "Toggle whisper mode (all messages go to last recipient)"),
+        helpLine("/whisper reply <message>", "Reply to the last person who messaged you"),
+        helpLine("/whisper history <player> [page]", "View chat history with a player"),
+        helpLine("/whisper history search <words> [since:7d]", "Search all your chat history"),
+        helpLine("/whisper help", "Show this help message"));
+    private static final MessageTemplate HISTORY_HEADER = MessageTemplate.compile("&5====== &dChat with {player} &5(page {page}/{pages}) ======", "player", "page", "pages");
+    private static final MessageTemplate HISTORY_LINE = MessageTemplate.compile("&7{line}", "line");
+    private static final MessageTemplate SEARCH_HEADER = MessageTemplate.compile("&5====== &dMessages matching {query}&5 ======", "query");
+    private static final MessageTemplate SEARCH_LINE = MessageTemplate.compile("&8{age} &7{line}", "age", "line");
+    
     private final WhisperChain plugin;
     
     public WhisperCommand(WhisperChain plugin) {
         this.plugin = plugin;
     }
     
+    private static Component helpLine(String usage, String description) {
+        return Component.textOfChildren(Component.text(usage, NamedTextColor.LIGHT_PURPLE),
+            Component.text(" - " + description, NamedTextColor.GRAY));
+    }
+    
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         if (!(sender instanceof Player)) {
@@ -49,11 +89,28 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
                 toggleWhisperMode(player);
                 break;
             case "history":
+                // Before the usage check, so a bare "search" gets the search usage, not a player lookup
+                if (args.length > 1 && args[1].equalsIgnoreCase("search")) {
+                    searchChatHistory(player, Arrays.copyOfRange(args, 2, args.length));
+                    break;
+                }
                 if (args.length < 2) {
-                    player.sendMessage(ChatColor.RED + "Usage: /whisper history <player>");
+                    player.sendMessage(ChatColor.RED + "Usage: /whisper history <player> [page]");
                     return true;
                 }
-                showChatHistory(player, args[1]);
+                int page = 1;
+                if (args.length > 2) {
+                    try {
+                        page = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException e) {
+                        page = 0;
+                    }
+                    if (page < 1) {
+                        player.sendMessage(ChatColor.RED + "Invalid page: " + args[2]);
+                        return true;
+                    }
+                }
+                showChatHistory(player, args[1], page);
                 break;
             case "reply":
                 if (args.length < 2) {
@@ -81,7 +138,8 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
      * Process a whisper command with recipient(s) and message
      */
     private void processWhisperCommand(Player sender, String[] args) {
-        List<Player> recipients = new ArrayList<>();
+        Set<OfflinePlayer> recipients = new LinkedHashSet<>();
+        Set<RemotePlayer> remote = new LinkedHashSet<>();
         String message = null;
         
         // Look for message delimiter
@@ -102,14 +160,14 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
             
             // First argument is recipient(s)
             String recipientArg = args[0];
-            parseRecipients(recipientArg, recipients);
+            parseRecipients(recipientArg, recipients, remote);
             
             // Rest is message
             message = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
         } else {
             // Parse all recipients before the -m flag
             for (int i = 0; i < messageIndex - 1; i++) {
-                parseRecipients(args[i], recipients);
+                parseRecipients(args[i], recipients, remote);
             }
             
             // Everything after -m is the message
@@ -119,7 +177,7 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
         }
         
         // Validate we have both recipients and a message
-        if (recipients.isEmpty()) {
+        if (recipients.isEmpty() && remote.isEmpty()) {
             sender.sendMessage(ChatColor.RED + "No valid recipients found.");
             return;
         }
@@ -129,97 +187,111 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
+        if (!plugin.getChatManager().tryChargeWhisper(sender, recipients.size() + remote.size())) {
+            return;
+        }
+        
         // Send the whisper
-        plugin.getChatManager().sendWhisper(sender, recipients, message);
+        List<OfflinePlayer> recipientList = new ArrayList<>(recipients);
+        plugin.getChatManager().sendWhisper(sender, recipientList, List.copyOf(remote), message);
         
         // Set reply target if only one recipient
-        if (recipients.size() == 1) {
-            plugin.getChatListener().setReplyTarget(sender.getUniqueId(), recipients.get(0).getUniqueId());
+        if (recipientList.size() == 1 && remote.isEmpty()) {
+            plugin.getChatListener().setReplyTarget(sender.getUniqueId(), recipientList.get(0).getUniqueId());
+        } else if (remote.size() == 1 && recipientList.isEmpty()) {
+            plugin.getChatListener().setReplyTarget(sender.getUniqueId(), remote.iterator().next().uniqueId());
         }
     }
     
     /**
-     * Parse recipients from a comma-separated string or single name
+     * Parse recipients from a comma-separated string or single name, here or on other servers
      */
-    private void parseRecipients(String input, List<Player> recipients) {
-        if (input.contains(",")) {
-            // Multiple players separated by commas
-            String[] playerNames = input.split(",");
-            for (String name : playerNames) {
-                Player recipient = Bukkit.getPlayer(name.trim());
-                if (recipient != null && !recipients.contains(recipient)) {
-                    recipients.add(recipient);
-                }
-            }
-        } else {
-            // Single player name
-            Player recipient = Bukkit.getPlayer(input.trim());
-            if (recipient != null && !recipients.contains(recipient)) {
-                recipients.add(recipient);
-            }
-        }
+    private void parseRecipients(String input, Set<OfflinePlayer> recipients, Set<RemotePlayer> remote) {
+        plugin.getChatManager().resolveRecipients(input, recipients, remote);
     }
     
     /**
      * Send a whisper to a group of players
      */
     private void sendGroupWhisper(Player sender, String recipientList, String message) {
-        List<Player> recipients = new ArrayList<>();
-        parseRecipients(recipientList, recipients);
+        Set<OfflinePlayer> recipients = new LinkedHashSet<>();
+        Set<RemotePlayer> remote = new LinkedHashSet<>();
+        parseRecipients(recipientList, recipients, remote);
         
-        if (recipients.isEmpty()) {
+        if (recipients.isEmpty() && remote.isEmpty()) {
             sender.sendMessage(ChatColor.RED + "No valid recipients found.");
             return;
         }
         
+        if (!plugin.getChatManager().tryChargeWhisper(sender, recipients.size() + remote.size())) {
+            return;
+        }
+        
         // Send the whisper
-        plugin.getChatManager().sendWhisper(sender, recipients, message);
+        plugin.getChatManager().sendWhisper(sender, new ArrayList<>(recipients), List.copyOf(remote), message);
         
         // Don't set reply target for group messages as it would be ambiguous
     }
     
+    /**
+     * Complete /whisper arguments from the player index. Safe to call off the main thread,
+     * which is how {@link me.threefour.whisperchain.managers.SecureCommandManager} serves it.
+     */
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
         List<String> completions = new ArrayList<>();
+        String last = args[args.length - 1];
         
         if (args.length == 1) {
-            // Subcommands
-            completions.add("help");
-            completions.add("mode");
-            completions.add("history");
-            completions.add("reply");
-            completions.add("group");
-            
-            // Player names
-            completions.addAll(Bukkit.getOnlinePlayers().stream()
-                .map(Player::getName)
-                .collect(Collectors.toList()));
+            // Subcommands, then player names or comma lists of them
+            for (String subCommand : SUBCOMMANDS) {
+                if (subCommand.regionMatches(true, 0, last, 0, last.length())) {
+                    completions.add(subCommand);
+                }
+            }
+            completeNames(last, true, completions);
         } else if (args.length == 2) {
-            if (args[0].equalsIgnoreCase("history") || args[0].equalsIgnoreCase("group")) {
-                // Player names for history/group
-                completions.addAll(Bukkit.getOnlinePlayers().stream()
-                    .map(Player::getName)
-                    .collect(Collectors.toList()));
-            } else if (!args[0].equalsIgnoreCase("help") && !args[0].equalsIgnoreCase("mode")) {
+            if (args[0].equalsIgnoreCase("history")) {
+                if ("search".regionMatches(true, 0, last, 0, last.length())) {
+                    completions.add("search");
+                }
+                completeNames(last, false, completions);
+            } else if (args[0].equalsIgnoreCase("group")) {
+                completeNames(last, true, completions);
+            } else if (!args[0].equalsIgnoreCase("help") && !args[0].equalsIgnoreCase("mode")
+                    && "-m".startsWith(last)) {
                 // Add -m as a suggestion for the message flag
                 completions.add("-m");
             }
         }
         
-        return completions.stream()
-            .filter(s -> s.toLowerCase().startsWith(args[args.length - 1].toLowerCase()))
-            .collect(Collectors.toList());
+        return completions;
+    }
+    
+    /**
+     * Add player names matching the token. In a comma list only the segment after the last
+     * comma is completed, and the earlier names are kept in front of each suggestion.
+     */
+    private void completeNames(String token, boolean allowList, List<String> completions) {
+        int room = MAX_COMPLETIONS - completions.size();
+        if (room <= 0) {
+            return;
+        }
+        
+        int comma = allowList ? token.lastIndexOf(',') : -1;
+        if (comma < 0) {
+            completions.addAll(plugin.getPlayerIndex().complete(token, room));
+            return;
+        }
+        
+        String head = token.substring(0, comma + 1);
+        for (String name : plugin.getPlayerIndex().complete(token.substring(comma + 1), room)) {
+            completions.add(head + name);
+        }
     }
     
     private void showHelp(Player player) {
-        player.sendMessage(ChatColor.DARK_PURPLE + "====== " + ChatColor.LIGHT_PURPLE + "WhisperChain Help" + ChatColor.DARK_PURPLE + " ======");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper <player> <message>" + ChatColor.GRAY + " - Send a private message");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper <player1,player2> <message>" + ChatColor.GRAY + " - Send to multiple players");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper group <player1,player2> <message>" + ChatColor.GRAY + " - Send to a group");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper mode" + ChatColor.GRAY + " - Toggle whisper mode (all messages go to last recipient)");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper reply <message>" + ChatColor.GRAY + " - Reply to the last person who messaged you");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper history <player>" + ChatColor.GRAY + " - View chat history with a player");
-        player.sendMessage(ChatColor.LIGHT_PURPLE + "/whisper help" + ChatColor.GRAY + " - Show this help message");
+        player.sendMessage(HELP);
     }
     
     private void toggleWhisperMode(Player player) {
@@ -237,28 +309,136 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
         }
     }
     
-    private void showChatHistory(Player player, String targetName) {
-        Player target = Bukkit.getPlayer(targetName);
+    /**
+     * Show one page of history, newest page first, as a single message with buttons to page
+     * through the rest
+     */
+    private void showChatHistory(Player player, String targetName, int page) {
+        Player target = plugin.getPlayerIndex().find(targetName);
         
         if (target == null) {
             player.sendMessage(ChatColor.RED + "Player not found: " + targetName);
             return;
         }
         
-        List<String> history = plugin.getChatManager().getChatHistory(player.getUniqueId(), target.getUniqueId());
+        int offset = (int) Math.min(Integer.MAX_VALUE, (long) (page - 1) * HISTORY_PAGE_SIZE);
+        HistoryPage history = plugin.getChatManager().getChatHistoryPage(player.getUniqueId(), target.getUniqueId(), offset, HISTORY_PAGE_SIZE);
         
-        if (history.isEmpty()) {
+        if (history.total() == 0) {
             player.sendMessage(ChatColor.YELLOW + "No chat history with " + target.getName());
             return;
         }
+        int pages = (history.total() + HISTORY_PAGE_SIZE - 1) / HISTORY_PAGE_SIZE;
+        if (history.entries().isEmpty()) {
+            player.sendMessage(ChatColor.RED + "There " + (pages == 1 ? "is only 1 page" : "are only " + pages + " pages") + " of chat history with " + target.getName());
+            return;
+        }
         
-        player.sendMessage(ChatColor.DARK_PURPLE + "====== " + ChatColor.LIGHT_PURPLE + "Chat with " + target.getName() + ChatColor.DARK_PURPLE + " ======");
+        List<Component> lines = new ArrayList<>(history.entries().size() + 2);
+        lines.add(HISTORY_HEADER.render(target.getName(), Integer.toString(page), Integer.toString(pages)));
+        // The page comes newest first; show it in the order it was said
+        for (int i = history.entries().size() - 1; i >= 0; i--) {
+            lines.add(HISTORY_LINE.render(history.entries().get(i).format()));
+        }
+        if (pages > 1) {
+            String command = "/whisper history " + target.getName() + " ";
+            lines.add(Component.textOfChildren(
+                pageButton("« Newer", history.hasNewer() ? command + (page - 1) : null),
+                Component.text("   "),
+                pageButton("Older »", history.hasOlder() ? command + (page + 1) : null)));
+        }
+        player.sendMessage(Component.join(JoinConfiguration.newlines(), lines));
+    }
+    
+    private static Component pageButton(String label, String command) {
+        if (command == null) {
+            return Component.text(label, NamedTextColor.DARK_GRAY);
+        }
+        return Component.text(label, NamedTextColor.LIGHT_PURPLE).clickEvent(ClickEvent.runCommand(command));
+    }
+    
+    /**
+     * Search every conversation the player took part in. Commands run off the main thread, so
+     * the search doesn't hold up the server
+     */
+    private void searchChatHistory(Player player, String[] words) {
+        if (!plugin.getChatManager().isHistorySearchable()) {
+            player.sendMessage(ChatColor.RED + "Chat history search is disabled.");
+            return;
+        }
+        
+        long since = 0;
+        List<String> queryWords = new ArrayList<>();
+        for (String word : words) {
+            if (word.regionMatches(true, 0, "since:", 0, 6)) {
+                long duration = parseDuration(word.substring(6));
+                if (duration < 0) {
+                    player.sendMessage(ChatColor.RED + "Invalid time: " + word.substring(6) + ". Use for example 30m, 12h or 7d");
+                    return;
+                }
+                since = System.currentTimeMillis() - duration;
+            } else {
+                queryWords.add(word);
+            }
+        }
+        if (queryWords.isEmpty()) {
+            player.sendMessage(ChatColor.RED + "Usage: /whisper history search <words> [since:7d]");
+            return;
+        }
         
-        // Show last 10 messages
-        int startIndex = Math.max(0, history.size() - 10);
-        for (int i = startIndex; i < history.size(); i++) {
-            player.sendMessage(ChatColor.GRAY + history.get(i));
+        String query = String.join(" ", queryWords);
+        List<HistoryIndex.Posting> results = plugin.getChatManager().searchHistory(player.getUniqueId(), query, since, MAX_SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            player.sendMessage(ChatColor.YELLOW + "No messages matching " + query);
+            return;
+        }
+        
+        List<Component> lines = new ArrayList<>(results.size() + 1);
+        lines.add(SEARCH_HEADER.render(query));
+        long now = System.currentTimeMillis();
+        for (HistoryIndex.Posting result : results) {
+            HistoryEntry entry = result.entry();
+            lines.add(SEARCH_LINE.render(formatAge(now - entry.timestamp()), entry.format()));
+        }
+        player.sendMessage(Component.join(JoinConfiguration.newlines(), lines));
+    }
+    
+    /**
+     * Parse a duration such as {@code 30m}, {@code 12h} or {@code 7d}
+     * @return The duration in milliseconds, or -1 if it isn't valid
+     */
+    private static long parseDuration(String text) {
+        if (text.length() < 2) {
+            return -1;
+        }
+        TimeUnit unit = switch (Character.toLowerCase(text.charAt(text.length() - 1))) {
+            case 's' -> TimeUnit.SECONDS;
+            case 'm' -> TimeUnit.MINUTES;
+            case 'h' -> TimeUnit.HOURS;
+            case 'd' -> TimeUnit.DAYS;
+            default -> null;
+        };
+        if (unit == null) {
+            return -1;
         }
+        try {
+            long amount = Long.parseLong(text, 0, text.length() - 1, 10);
+            return amount < 0 ? -1 : unit.toMillis(amount);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static String formatAge(long millis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        if (minutes < 1) {
+            return "just now";
+        }
+        if (minutes < 60) {
+            return minutes + "m ago";
+        }
+        long hours = minutes / 60;
+        return hours < 24 ? hours + "h ago" : hours / 24 + "d ago";
     }
     
     private void replyToLastMessage(Player player, String message) {
@@ -276,13 +456,27 @@ public class WhisperCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
-        Player target = Bukkit.getPlayer(targetUUID);
+        OfflinePlayer target = plugin.getPlayerIndex().get(targetUUID);
+        RemotePlayer remoteTarget = target == null && plugin.getRouter() != null ?
+            plugin.getRouter().getDirectory().get(targetUUID) : null;
         
-        if (target == null || !target.isOnline()) {
+        if (remoteTarget != null) {
+            // They are on another server now
+            if (plugin.getChatManager().tryChargeWhisper(player, 1)) {
+                plugin.getChatManager().sendWhisper(player, List.of(), List.of(remoteTarget), message);
+            }
+            return;
+        } else if (target == null && plugin.getChatManager().canMessageOffline()) {
+            // The pipeline leaves it in their mailbox
+            target = Bukkit.getOfflinePlayer(targetUUID);
+        } else if (target == null) {
             player.sendMessage(ChatColor.RED + "The player you were talking to is no longer online.");
             return;
         }
         
+        if (!plugin.getChatManager().tryChargeWhisper(player, 1)) {
+            return;
+        }
         plugin.getChatManager().sendWhisper(player, List.of(target), message);
     }
 } 
\ No newline at end of file
@@ -1,78 +1,114 @@
 package me.threefour.whisperchain.listeners;
 
+import io.papermc.paper.event.player.AsyncChatEvent;
 import me.threefour.whisperchain.WhisperChain;
-import org.bukkit.Bukkit;
+import me.threefour.whisperchain.network.RemotePlayer;
+import me.threefour.whisperchain.utils.WhisperPrefixScanner;
+import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.player.AsyncPlayerChatEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class ChatListener implements Listener {
 
     private final WhisperChain plugin;
-    private final Map<UUID, Boolean> inWhisperMode = new HashMap<>();
-    private final Map<UUID, UUID> replyTarget = new HashMap<>();
-    private final Pattern mentionPattern = Pattern.compile("@([\\w]+)");
-    private final Pattern privateMessagePattern = Pattern.compile("@([\\w,]+)\\s+(.+)");
+    private final Map<UUID, Boolean> inWhisperMode = new ConcurrentHashMap<>();
+    private final Map<UUID, ReplyTarget> replyTarget = new ConcurrentHashMap<>();
+    private final WhisperPrefixScanner scanner;
+    private final long replyTargetMaxAge;
     
     public ChatListener(WhisperChain plugin) {
         this.plugin = plugin;
+        this.replyTargetMaxAge = TimeUnit.DAYS.toMillis(Math.max(1, plugin.getConfig().getInt("storage.reply-target-days", 7)));
+        
+        // Whispers start with @ unless the server picked another prefix
+        String prefix = plugin.getConfig().getBoolean("advanced.use-at-symbol", true) ?
+            "@" : plugin.getConfig().getString("advanced.custom-prefix", "!");
+        this.scanner = new WhisperPrefixScanner(prefix == null || prefix.isEmpty() ? "@" : prefix);
     }
     
-    @EventHandler
+    @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
+        plugin.getPlayerIndex().add(player);
         
         // Generate encryption key for the player if doesn't exist
         plugin.getEncryption().getPlayerKey(player.getUniqueId());
         
+        // Hand over whispers sent while they were away, off the main thread
+        plugin.getChatManager().deliverMail(player);
+        
+        // Let the other servers route whispers for them here
+        if (plugin.getRouter() != null) {
+            plugin.getRouter().announceJoin(player);
+        }
+        
         // Set default state
         inWhisperMode.put(player.getUniqueId(), false);
         
         // Send welcome message with instructions
+        String prefix = scanner.getPrefix();
         player.sendMessage(ChatColor.LIGHT_PURPLE + "Welcome to WhisperChain!" + 
                         ChatColor.GRAY + " To send an encrypted message, use: " + 
-                        ChatColor.WHITE + "@playername Your secret message");
+                        ChatColor.WHITE + prefix + "playername Your secret message");
         player.sendMessage(ChatColor.GRAY + "You can message multiple players with: " + 
-                        ChatColor.WHITE + "@player1,player2,player3 Your secret message");
+                        ChatColor.WHITE + prefix + "player1,player2,player3 Your secret message");
     }
     
-    @EventHandler
+    @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
         UUID playerUUID = event.getPlayer().getUniqueId();
+        plugin.getPlayerIndex().remove(event.getPlayer());
+        if (plugin.getRouter() != null) {
+            plugin.getRouter().announceQuit(event.getPlayer());
+        }
         
-        // Clean up temporary chat state
+        // Clean up temporary chat state. The reply target is kept so /whisper reply
+        // still works after a reconnect or a restart, until it is storage.reply-target-days old
         inWhisperMode.remove(playerUUID);
-        replyTarget.remove(playerUUID);
+        plugin.getChatManager().endSessions(playerUUID);
     }
     
     @EventHandler(priority = EventPriority.HIGHEST)
-    public void onPlayerChat(AsyncPlayerChatEvent event) {
+    public void onPlayerChat(AsyncChatEvent event) {
         if (event.isCancelled()) return;
         
         Player player = event.getPlayer();
         UUID playerUUID = player.getUniqueId();
-        String message = event.getMessage();
+        // Read the current message, so filters and formatting from other plugins are respected
+        String message = PlainTextComponentSerializer.plainText().serialize(event.message());
         
         // Check if player is in whisper mode (everything goes to last whispered player)
         if (inWhisperMode.getOrDefault(playerUUID, false)) {
             event.setCancelled(true);
             
             // Get the reply target
-            UUID targetUUID = replyTarget.get(playerUUID);
+            UUID targetUUID = getReplyTarget(playerUUID);
             if (targetUUID != null) {
                 Player targetPlayer = plugin.getServer().getPlayer(targetUUID);
+                RemotePlayer remoteTarget = targetPlayer == null && plugin.getRouter() != null ?
+                    plugin.getRouter().getDirectory().get(targetUUID) : null;
                 if (targetPlayer != null && targetPlayer.isOnline()) {
                     // Send the whisper
+                    if (!plugin.getChatManager().tryChargeWhisper(player, 1)) {
+                        return;
+                    }
                     plugin.getChatManager().sendWhisper(player, Collections.singletonList(targetPlayer), message);
+                } else if (remoteTarget != null) {
+                    // They moved to another server
+                    if (!plugin.getChatManager().tryChargeWhisper(player, 1)) {
+                        return;
+                    }
+                    plugin.getChatManager().sendWhisper(player, List.of(), List.of(remoteTarget), message);
                 } else {
                     player.sendMessage(ChatColor.RED + "Your private chat partner is offline. Whisper mode disabled.");
                     setWhisperMode(playerUUID, false);
@@ -85,55 +121,44 @@ public class ChatListener implements Listener {
         }
         
         // Check for @player message pattern
-        Matcher matcher = privateMessagePattern.matcher(message);
-        if (matcher.matches()) {
+        WhisperPrefixScanner.Match whisper = scanner.scan(message);
+        if (whisper != null) {
             // This is a private message
             event.setCancelled(true);
             
             // Get recipients from the @ mention
-            String recipientNames = matcher.group(1);
-            String privateMessage = matcher.group(2);
+            Set<OfflinePlayer> recipients = new LinkedHashSet<>();
+            Set<RemotePlayer> remote = new LinkedHashSet<>();
+            plugin.getChatManager().resolveRecipients(whisper.recipients(), recipients, remote);
             
-            List<Player> recipients = new ArrayList<>();
-            if (recipientNames.contains(",")) {
-                // Multiple recipients
-                String[] names = recipientNames.split(",");
-                for (String name : names) {
-                    Player recipient = Bukkit.getPlayer(name.trim());
-                    if (recipient != null && recipient.isOnline() && !recipients.contains(recipient)) {
-                        recipients.add(recipient);
-                    }
-                }
-            } else {
-                // Single recipient
-                Player recipient = Bukkit.getPlayer(recipientNames.trim());
-                if (recipient != null && recipient.isOnline()) {
-                    recipients.add(recipient);
-                }
+            if (recipients.isEmpty() && remote.isEmpty()) {
+                player.sendMessage(ChatColor.RED + "No valid recipients found.");
+                return;
             }
             
-            if (recipients.isEmpty()) {
-                player.sendMessage(ChatColor.RED + "No valid recipients found.");
+            if (!plugin.getChatManager().tryChargeWhisper(player, recipients.size() + remote.size())) {
                 return;
             }
             
             // Send encrypted message to all recipients
-            plugin.getChatManager().sendWhisper(player, recipients, privateMessage);
+            List<OfflinePlayer> recipientList = new ArrayList<>(recipients);
+            plugin.getChatManager().sendWhisper(player, recipientList, List.copyOf(remote), whisper.body());
             
             // Set reply target if only one recipient
-            if (recipients.size() == 1) {
-                setReplyTarget(playerUUID, recipients.get(0).getUniqueId());
+            if (recipientList.size() == 1 && remote.isEmpty()) {
+                setReplyTarget(playerUUID, recipientList.get(0).getUniqueId());
+            } else if (remote.size() == 1 && recipientList.isEmpty()) {
+                setReplyTarget(playerUUID, remote.iterator().next().uniqueId());
             }
             
             return;
         }
         
         // Check for any @mentions in regular chat
-        matcher = mentionPattern.matcher(message);
-        if (matcher.find()) {
+        if (scanner.containsMention(message)) {
             // Let normal chat go through, but notify the player they can send private messages
             player.sendMessage(ChatColor.GRAY + "Tip: To send a private encrypted message, use: " + 
-                            ChatColor.WHITE + "@playername Your secret message");
+                            ChatColor.WHITE + scanner.getPrefix() + "playername Your secret message");
         }
     }
     
@@ -143,8 +168,8 @@ public class ChatListener implements Listener {
      * @param player The player toggling the mode
      */
     public void toggleChatMode(String targetName, Player player) {
-        Player target = Bukkit.getPlayer(targetName);
-        if (target == null || !target.isOnline()) {
+        Player target = plugin.getPlayerIndex().find(targetName);
+        if (target == null) {
             player.sendMessage(ChatColor.RED + "Player not found or offline: " + targetName);
             return;
         }
@@ -187,7 +212,19 @@ public class ChatListener implements Listener {
      * @param targetUUID The UUID of the target
      */
     public void setReplyTarget(UUID playerUUID, UUID targetUUID) {
-        replyTarget.put(playerUUID, targetUUID);
+        setReplyTarget(playerUUID, targetUUID, System.currentTimeMillis());
+    }
+    
+    /**
+     * Set the reply target for a player as of a given time, for restoring saved state
+     * @param playerUUID The UUID of the player
+     * @param targetUUID The UUID of the target
+     * @param setAt When the target was set, in epoch milliseconds
+     */
+    public void setReplyTarget(UUID playerUUID, UUID targetUUID, long setAt) {
+        if (System.currentTimeMillis() - setAt < replyTargetMaxAge) {
+            replyTarget.put(playerUUID, new ReplyTarget(targetUUID, setAt));
+        }
     }
     
     /**
@@ -205,6 +242,26 @@ public class ChatListener implements Listener {
      * @return The UUID of the reply target, or null if none
      */
     public UUID getReplyTarget(UUID playerUUID) {
-        return replyTarget.get(playerUUID);
+        ReplyTarget target = replyTarget.get(playerUUID);
+        return target != null && System.currentTimeMillis() - target.setAt() < replyTargetMaxAge ? target.target() : null;
+    }
+    
+    /**
+     * Drop reply targets older than {@code storage.reply-target-days} and get a read-only view
+     * of the rest, for persistence
+     * @return The reply targets keyed by player UUID
+     */
+    public Map<UUID, ReplyTarget> getReplyTargets() {
+        long cutoff = System.currentTimeMillis() - replyTargetMaxAge;
+        replyTarget.values().removeIf(target -> target.setAt() <= cutoff);
+        return Collections.unmodifiableMap(replyTarget);
+    }
+    
+    /**
+     * Who a player last whispered, and when
+     * @param target The UUID of the player to reply to
+     * @param setAt When the target was set, in epoch milliseconds
+     */
+    public record ReplyTarget(UUID target, long setAt) {
     }
-} 
\ No newline at end of file
+}
@@ -1,130 +1,422 @@
 package me.threefour.whisperchain.managers;
 
 import me.threefour.whisperchain.WhisperChain;
-import me.threefour.whisperchain.utils.Encryption;
+import me.threefour.whisperchain.network.HistoryReplicator;
+import me.threefour.whisperchain.network.RemotePlayer;
+import me.threefour.whisperchain.network.WhisperRouter;
+import me.threefour.whisperchain.storage.ConversationKey;
+import me.threefour.whisperchain.storage.ConversationStore;
+import me.threefour.whisperchain.storage.HistoryEntry;
+import me.threefour.whisperchain.storage.HistoryIndex;
+import me.threefour.whisperchain.storage.HistoryPage;
+import me.threefour.whisperchain.storage.Mailbox;
+import me.threefour.whisperchain.storage.WhisperLog;
+import net.kyori.adventure.text.Component;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 
 import javax.crypto.SecretKey;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 
 public class ChatManager {
 
+    public static final String BYPASS_RATE_LIMIT_PERMISSION = "whisperchain.bypass.ratelimit";
+    
     private final WhisperChain plugin;
-    private final Map<UUID, List<UUID>> activeChatSessions = new HashMap<>();
-    private final Map<UUID, Map<UUID, List<String>>> chatHistory = new HashMap<>();
+    private final SessionGraph activeChatSessions = new SessionGraph();
+    private final ConversationStore chatHistory;
+    private final boolean historyEnabled;
+    private final WhisperLog historyLog;
+    private final Mailbox mailbox;
+    private final WhisperRateLimiter rateLimiter;
+    private final WhisperPipeline pipeline;
     
     public ChatManager(WhisperChain plugin) {
         this.plugin = plugin;
+        this.historyEnabled = plugin.getConfig().getBoolean("chat-history.enabled", true);
+        this.chatHistory = new ConversationStore(Math.max(1, plugin.getConfig().getInt("chat-history.max-messages", 100)),
+            plugin.getConfig().getBoolean("chat-history.searchable", true) ? new HistoryIndex() : null);
+        plugin.getMetrics().trackHistory(chatHistory);
+        this.historyLog = historyEnabled ? openHistoryLog() : null;
+        this.mailbox = plugin.getConfig().getBoolean("advanced.message-offline-players", false) ? openMailbox() : null;
+        this.rateLimiter = new WhisperRateLimiter(plugin.getConfig().getDouble("rate-limit.recipients-per-second", 0),
+            plugin.getConfig().getInt("rate-limit.burst", 10));
+        this.pipeline = new WhisperPipeline(plugin, this);
+    }
+    
+    private WhisperLog openHistoryLog() {
+        try {
+            boolean encryptStorage = plugin.getConfig().getBoolean("encryption.encrypt-storage", true);
+            return new WhisperLog(plugin.getDataFolder().toPath().resolve("history"), plugin.getLogger(),
+                plugin.getConfig().getInt("chat-history.retention-days", 30),
+                loadStorageKey(encryptStorage), plugin.getEncryption().getCipherEngine(), encryptStorage);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to open the history log, history will not be saved to disk", e);
+            return null;
+        }
+    }
+    
+    private Mailbox openMailbox() {
+        try {
+            boolean encryptStorage = plugin.getConfig().getBoolean("encryption.encrypt-storage", true);
+            long maxBytes = Math.max(1, plugin.getConfig().getInt("advanced.offline-mailbox-size", 64)) * 1024L;
+            return new Mailbox(plugin.getDataFolder().toPath().resolve("mailbox"), plugin.getLogger(), maxBytes,
+                loadStorageKey(encryptStorage), plugin.getEncryption().getCipherEngine(), encryptStorage);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to open offline mailboxes, offline players can't be messaged", e);
+            return null;
+        }
+    }
+    
+    private SecretKey loadStorageKey(boolean encryptStorage) throws IOException {
+        // Keep the storage key around even when encryption is off, so older sealed data stays readable
+        return plugin.getEncryption().loadKeyFile(plugin.getDataFolder().toPath().resolve("storage.key"), encryptStorage);
+    }
+    
+    /**
+     * Stop taking whispers and wait for the queued ones to be delivered, stored and forwarded.
+     * Call while the router is still running, so whispers to other servers aren't lost
+     */
+    public void finishWhispers() {
+        pipeline.shutdown();
+    }
+    
+    /**
+     * Finish queued whispers, flush pending history to disk and release file handles
+     */
+    public void shutdown() {
+        pipeline.shutdown();
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        if (historyLog != null) {
+            historyLog.close();
+        }
     }
     
     /**
      * Send a whisper message to a player or multiple players
+     * <p>
+     * Encryption, storage and delivery happen on the whisper pipeline, not on the calling thread.
      * @param sender The player sending the message
-     * @param recipients The players receiving the message
+     * @param recipients The players receiving the message; offline ones get it when they next join
      * @param message The message to send
+     * @return A future completed with the whisper once it has been delivered
      */
-    public void sendWhisper(Player sender, List<Player> recipients, String message) {
-        Encryption encryption = plugin.getEncryption();
-        UUID senderUUID = sender.getUniqueId();
+    public CompletableFuture<Whisper> sendWhisper(Player sender, List<? extends OfflinePlayer> recipients, String message) {
+        return sendWhisper(sender, recipients, List.of(), message);
+    }
+    
+    /**
+     * Send a whisper message to players on this server and on other servers in the network
+     * @param sender The player sending the message
+     * @param recipients The players on this server receiving the message
+     * @param remote The players on other servers receiving the message
+     * @param message The message to send
+     * @return A future completed with the whisper once it has been delivered here and handed to the router
+     */
+    public CompletableFuture<Whisper> sendWhisper(Player sender, List<? extends OfflinePlayer> recipients,
+                                                  List<RemotePlayer> remote, String message) {
+        plugin.getMetrics().recordWhisper(recipients.size() + remote.size());
+        return pipeline.submit(sender, recipients, remote, message);
+    }
+    
+    /**
+     * Deliver a whisper another server routed here. Recipients who left in the meantime get it
+     * through their mailbox if offline messaging is enabled
+     * @param timestamp When the whisper was sent, in epoch milliseconds
+     * @param sender The UUID of the sender
+     * @param senderName The sender's name
+     * @param groupNames Every recipient's name for the group format, or null if there is only one
+     * @param recipients The UUIDs of the recipients on this server
+     * @param message The message
+     */
+    public void receiveRemoteWhisper(long timestamp, UUID sender, String senderName, String groupNames,
+                                     List<UUID> recipients, String message) {
+        MessageFormats formats = plugin.getMessageFormats();
+        Component incoming = groupNames == null ?
+            formats.incoming(senderName, message) :
+            formats.group(senderName, groupNames, message);
+        // With history replication the sender's server records it and ships the record here
+        boolean store = plugin.getReplicator() == null;
         
-        // Add all recipients to active chat session if not already present
-        if (!activeChatSessions.containsKey(senderUUID)) {
-            activeChatSessions.put(senderUUID, new ArrayList<>());
+        for (UUID recipientUUID : recipients) {
+            Player recipient = plugin.getPlayerIndex().get(recipientUUID);
+            if (recipient == null) {
+                if (mailbox != null) {
+                    mailbox.deposit(recipientUUID, new HistoryEntry(timestamp, sender, senderName, message));
+                }
+                continue;
+            }
+            recordSession(sender, recipientUUID);
+            if (store) {
+                storeMessage(timestamp, sender, recipientUUID, senderName, message);
+            }
+            recipient.sendMessage(incoming);
         }
-        
-        for (Player recipient : recipients) {
-            UUID recipientUUID = recipient.getUniqueId();
-            
-            // Add recipient to sender's active sessions
-            if (!activeChatSessions.get(senderUUID).contains(recipientUUID)) {
-                activeChatSessions.get(senderUUID).add(recipientUUID);
+    }
+    
+    /**
+     * Charge a whisper against the sender's rate limit. Call before {@link #sendWhisper} so a
+     * player who is over the limit costs no encryption or storage work.
+     * @param sender The player sending
+     * @param recipientCount The number of recipients; each one costs a token
+     * @return True if the whisper may be sent. If not, the sender has already been told
+     */
+    public boolean tryChargeWhisper(Player sender, int recipientCount) {
+        if (!rateLimiter.isEnabled() || sender.hasPermission(BYPASS_RATE_LIMIT_PERMISSION)) {
+            return true;
+        }
+        if (rateLimiter.tryAcquire(sender.getUniqueId(), recipientCount)) {
+            return true;
+        }
+        plugin.getMetrics().recordRateLimited();
+        sender.sendMessage(ChatColor.RED + "You are sending whispers too quickly. Please slow down.");
+        return false;
+    }
+    
+    /**
+     * Resolve a comma-separated list of names to recipients. Names of online players resolve
+     * through the player index; when offline messaging is enabled, other names resolve to
+     * players the server has seen before.
+     * @param names The names, e.g. {@code "alice,bob"}
+     * @param recipients The collection to add resolved players to; use a set to drop duplicates
+     */
+    public void resolveRecipients(String names, Collection<OfflinePlayer> recipients) {
+        resolveRecipients(names, recipients, null);
+    }
+    
+    /**
+     * Resolve a comma-separated list of names to recipients here or on other servers. Names of
+     * players on this server win, then players online elsewhere in the network, then players
+     * this server has seen before if offline messaging is enabled.
+     * @param names The names, e.g. {@code "alice,bob"}
+     * @param recipients The collection to add players on this server to; use a set to drop duplicates
+     * @param remote The collection to add players on other servers to, or null to only look here
+     */
+    public void resolveRecipients(String names, Collection<OfflinePlayer> recipients, Collection<RemotePlayer> remote) {
+        WhisperRouter router = remote != null ? plugin.getRouter() : null;
+        List<String> unresolved = mailbox != null || router != null ? new ArrayList<>() : null;
+        plugin.getPlayerIndex().resolveAll(names, recipients, unresolved);
+        if (unresolved == null) {
+            return;
+        }
+        for (String name : unresolved) {
+            RemotePlayer elsewhere = router != null ? router.getDirectory().find(name) : null;
+            if (elsewhere != null) {
+                remote.add(elsewhere);
+                continue;
             }
-            
-            // Add sender to recipient's active sessions
-            if (!activeChatSessions.containsKey(recipientUUID)) {
-                activeChatSessions.put(recipientUUID, new ArrayList<>());
+            if (mailbox == null) {
+                continue;
             }
-            if (!activeChatSessions.get(recipientUUID).contains(senderUUID)) {
-                activeChatSessions.get(recipientUUID).add(senderUUID);
+            // Only looks at the server's user cache, never at the Mojang API
+            OfflinePlayer offline = Bukkit.getOfflinePlayerIfCached(name);
+            if (offline != null) {
+                recipients.add(offline);
             }
-            
-            // Encrypt the message with recipient's key
-            SecretKey recipientKey = encryption.getPlayerKey(recipientUUID);
-            String encryptedMessage = encryption.encrypt(message, recipientKey);
-            
-            // Send the encrypted message
-            recipient.sendMessage(ChatColor.DARK_PURPLE + "[" + ChatColor.LIGHT_PURPLE + "Whisper" + 
-                ChatColor.DARK_PURPLE + "] " + ChatColor.GRAY + "From " + ChatColor.LIGHT_PURPLE + 
-                sender.getName() + ChatColor.GRAY + ": " + ChatColor.WHITE + message);
-            
-            // Store the message in chat history
-            storeMessage(senderUUID, recipientUUID, sender.getName() + ": " + message);
         }
-        
-        // Confirm to the sender
-        String recipientNames = recipients.size() == 1 ? 
-            recipients.get(0).getName() : 
-            recipients.stream().map(Player::getName).reduce((a, b) -> a + ", " + b).orElse("");
-        
-        sender.sendMessage(ChatColor.DARK_PURPLE + "[" + ChatColor.LIGHT_PURPLE + "Whisper" + 
-            ChatColor.DARK_PURPLE + "] " + ChatColor.GRAY + "To " + ChatColor.LIGHT_PURPLE + 
-            recipientNames + ChatColor.GRAY + ": " + ChatColor.WHITE + message);
+    }
+    
+    /**
+     * Deliver whatever is waiting in a player's mailbox, in batches from an async task
+     * @param player The player who just joined
+     */
+    public void deliverMail(Player player) {
+        if (mailbox == null) {
+            return;
+        }
+        mailbox.read(player.getUniqueId()).thenAccept(entries -> {
+            if (!entries.isEmpty()) {
+                new MailDelivery(player, entries, mailbox, plugin.getMessageFormats())
+                    .runTaskTimerAsynchronously(plugin, 0, MailDelivery.BATCH_INTERVAL_TICKS);
+            }
+        });
+    }
+    
+    /**
+     * Check whether whispers to offline players are kept for them
+     * @return True if offline messaging is enabled
+     */
+    public boolean canMessageOffline() {
+        return mailbox != null;
+    }
+    
+    /**
+     * Get the offline mailboxes
+     * @return The mailboxes, or null if offline messaging is disabled
+     */
+    Mailbox getMailbox() {
+        return mailbox;
+    }
+    
+    /**
+     * Record that two players are in an active chat session with each other
+     * @param sender The UUID of the player sending
+     * @param recipient The UUID of the player receiving
+     */
+    void recordSession(UUID sender, UUID recipient) {
+        activeChatSessions.connect(sender, recipient);
+    }
+    
+    /**
+     * End every session a player is part of, on both sides
+     * @param playerUUID The UUID of the player leaving
+     */
+    public void endSessions(UUID playerUUID) {
+        activeChatSessions.remove(playerUUID);
+        rateLimiter.forget(playerUUID);
     }
     
     /**
      * Store a message in the chat history
+     * @param timestamp When the message was sent, in epoch milliseconds; the same on every server
      * @param sender The UUID of the sender
      * @param recipient The UUID of the recipient
+     * @param senderName The name of the sender
      * @param message The message to store
      */
-    private void storeMessage(UUID sender, UUID recipient, String message) {
-        // Initialize chat history for sender if not exists
-        if (!chatHistory.containsKey(sender)) {
-            chatHistory.put(sender, new HashMap<>());
+    void storeMessage(long timestamp, UUID sender, UUID recipient, String senderName, String message) {
+        if (!historyEnabled) {
+            return;
         }
-        
-        // Initialize chat history for recipient in sender's history if not exists
-        if (!chatHistory.get(sender).containsKey(recipient)) {
-            chatHistory.get(sender).put(recipient, new ArrayList<>());
+        ConversationKey key = ConversationKey.of(sender, recipient);
+        HistoryEntry entry = new HistoryEntry(timestamp, sender, senderName, message);
+        chatHistory.append(key, entry);
+        if (historyLog != null) {
+            historyLog.append(key, entry);
         }
-        
-        // Store the message
-        chatHistory.get(sender).get(recipient).add(message);
-        
-        // Do the same for recipient
-        if (!chatHistory.containsKey(recipient)) {
-            chatHistory.put(recipient, new HashMap<>());
+        HistoryReplicator replicator = plugin.getReplicator();
+        if (replicator != null) {
+            replicator.record(key, entry);
         }
-        
-        if (!chatHistory.get(recipient).containsKey(sender)) {
-            chatHistory.get(recipient).put(sender, new ArrayList<>());
+    }
+    
+    /**
+     * Store a message another server recorded and shipped here. It is not shipped on again
+     * @param key The conversation the message belongs to
+     * @param entry The message
+     * @param origin Where the message sits in the other server's log, saved along with it
+     */
+    public void applyReplicated(ConversationKey key, HistoryEntry entry, WhisperLog.Origin origin) {
+        if (!historyEnabled) {
+            return;
         }
-        
-        chatHistory.get(recipient).get(sender).add(message);
+        chatHistory.append(key, entry);
+        if (historyLog != null) {
+            historyLog.append(key, entry, origin);
+        }
+    }
+    
+    /**
+     * Wait until the history stored so far is on disk
+     * @return The sequence number the next record in the history log will get, or -1 if history
+     *         isn't saved to disk
+     */
+    public long syncHistory() {
+        if (historyLog == null) {
+            return -1;
+        }
+        historyLog.sync();
+        return historyLog.getNextSequence();
+    }
+    
+    /**
+     * Read the history log in order, for finding which copied messages made it to disk
+     * @param fromSequence The sequence number of the first record wanted
+     * @param limit The maximum number of records to return
+     * @return Up to {@code limit} records, oldest first, or an empty list if history isn't saved to disk
+     */
+    public List<WhisperLog.SequencedEntry> readHistoryFrom(long fromSequence, int limit) {
+        return historyLog != null ? historyLog.readFrom(fromSequence, limit) : Collections.emptyList();
+    }
+    
+    /**
+     * Search the history of every conversation a player took part in. Only messages still held
+     * in memory are searched, up to {@code chat-history.max-messages} per conversation
+     * @param playerUUID The player whose history to search
+     * @param query The words to look for; a word ending in {@code *} matches any word starting with it
+     * @param since The earliest timestamp to include, in epoch milliseconds
+     * @param limit The maximum number of results
+     * @return The matching messages, newest first, or an empty list if search is disabled
+     */
+    public List<HistoryIndex.Posting> searchHistory(UUID playerUUID, String query, long since, int limit) {
+        HistoryIndex index = chatHistory.getIndex();
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return index.search(playerUUID, query, since, Long.MAX_VALUE, limit);
+    }
+    
+    /**
+     * Check whether history can be searched
+     * @return True if history is kept and indexed
+     */
+    public boolean isHistorySearchable() {
+        return historyEnabled && chatHistory.getIndex() != null;
     }
     
     /**
      * Get the chat history between two players
      * @param player1 The first player
      * @param player2 The second player
-     * @return The list of messages exchanged between the players
+     * @return A copy of the messages exchanged between the players, oldest first
      */
     public List<String> getChatHistory(UUID player1, UUID player2) {
-        if (!chatHistory.containsKey(player1) || !chatHistory.get(player1).containsKey(player2)) {
-            return new ArrayList<>();
+        ConversationKey key = ConversationKey.of(player1, player2);
+        List<HistoryEntry> entries = chatHistory.read(key);
+        if (entries.isEmpty() && historyLog != null) {
+            // Not in memory: fall back to the on-disk log and keep the result around
+            entries = historyLog.read(key, chatHistory.getCapacity());
+            chatHistory.fillIfEmpty(key, entries);
+        }
+        List<String> messages = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            messages.add(entry.format());
+        }
+        return messages;
+    }
+    
+    /**
+     * Get one page of the chat history between two players
+     * @param player1 The first player
+     * @param player2 The second player
+     * @param offset How many of the newest messages to skip
+     * @param limit The maximum number of messages in the page
+     * @return The page, newest first
+     */
+    public HistoryPage getChatHistoryPage(UUID player1, UUID player2, int offset, int limit) {
+        ConversationKey key = ConversationKey.of(player1, player2);
+        HistoryPage page = chatHistory.readPage(key, offset, limit);
+        if (page.total() == 0 && historyLog != null) {
+            // Not in memory: load it from the on-disk log once, then page through memory
+            if (chatHistory.fillIfEmpty(key, historyLog.read(key, chatHistory.getCapacity()))) {
+                page = chatHistory.readPage(key, offset, limit);
+            }
         }
-        return chatHistory.get(player1).get(player2);
+        return page;
+    }
+    
+    /**
+     * Get the store holding every conversation's history
+     * @return The conversation store
+     */
+    public ConversationStore getConversationStore() {
+        return chatHistory;
     }
     
     /**
      * Get all active chat sessions for a player
      * @param playerUUID The UUID of the player
-     * @return A list of player UUIDs representing active chat sessions
+     * @return A read-only, weakly consistent view of the UUIDs the player is in a session with
      */
-    public List<UUID> getActiveSessions(UUID playerUUID) {
-        return activeChatSessions.getOrDefault(playerUUID, new ArrayList<>());
+    public Set<UUID> getActiveSessions(UUID playerUUID) {
+        return activeChatSessions.neighbours(playerUUID);
     }
     
     /**
@@ -134,15 +426,31 @@ public class ChatManager {
      */
     public List<Player> getActiveSessionPlayers(UUID playerUUID) {
         List<Player> players = new ArrayList<>();
-        List<UUID> sessions = getActiveSessions(playerUUID);
         
-        for (UUID uuid : sessions) {
-            Player player = Bukkit.getPlayer(uuid);
-            if (player != null && player.isOnline()) {
+        for (UUID uuid : getActiveSessions(playerUUID)) {
+            Player player = plugin.getPlayerIndex().get(uuid);
+            if (player != null) {
                 players.add(player);
             }
         }
         
         return players;
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Get a read-only view of every player's active sessions, for persistence
+     * @return The session partners keyed by player UUID
+     */
+    public Map<UUID, Set<UUID>> getAllActiveSessions() {
+        return activeChatSessions.view();
+    }
+    
+    /**
+     * Restore an active session between two players from a snapshot
+     * @param playerUUID One player in the session
+     * @param otherUUID The player they were talking to
+     */
+    public void restoreSession(UUID playerUUID, UUID otherUUID) {
+        activeChatSessions.connect(playerUUID, otherUUID);
+    }
+}
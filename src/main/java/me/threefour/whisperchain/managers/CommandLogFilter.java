@@ -0,0 +1,161 @@
+package me.threefour.whisperchain.managers;
+
+import me.threefour.whisperchain.metrics.Metrics;
+import me.threefour.whisperchain.utils.CommandMatcher;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Log4j filter that drops "issued server command" records for secure commands.
+ * <p>
+ * Installed on the logging configuration, so it sees records from every logger, including
+ * ones created after the plugin enabled, and runs before the logger checks its level. Records
+ * at a disabled level are let through untouched for the logger to drop, and other records
+ * after a single substring check on their format string. The fixed-arity overloads are
+ * overridden so that check runs before the parameters are boxed into an array.
+ */
+final class CommandLogFilter extends AbstractFilter {
+
+    private static final String COMMAND_MARKER = "issued server command:";
+
+    private final Metrics metrics;
+    private volatile CommandMatcher matcher = CommandMatcher.compile(List.of());
+
+    CommandLogFilter(Metrics metrics) {
+        super(Result.DENY, Result.NEUTRAL);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replace the set of commands that are filtered
+     * @param commands The command names and aliases to hide
+     */
+    void setCommands(Collection<String> commands) {
+        this.matcher = CommandMatcher.compile(commands);
+    }
+
+    @Override
+    public Result filter(LogEvent event) {
+        Message message = event.getMessage();
+        return message == null ? onMismatch : check(message.getFormat(), message.getParameters());
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        return isCandidate(logger, level, msg) ? check(msg, params) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4, p5}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4, p5, p6}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4, p5, p6, p7}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4, p5, p6, p7, p8}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return isCandidate(logger, level, msg) ? check(msg, new Object[] {p0, p1, p2, p3, p4, p5, p6, p7, p8, p9}) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        return msg != null && isEnabled(logger, level) ? check(msg.getFormat(), msg.getParameters()) : onMismatch;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        return msg instanceof String text && isEnabled(logger, level) ? check(text, null) : onMismatch;
+    }
+
+    private static boolean isEnabled(Logger logger, Level level) {
+        Level threshold = logger.getLevel();
+        return threshold == null || level.isMoreSpecificThan(threshold);
+    }
+
+    private static boolean isCandidate(Logger logger, Level level, String format) {
+        return isEnabled(logger, level) && isCommandFormat(format);
+    }
+
+    private static boolean isCommandFormat(String format) {
+        return format != null && format.contains(COMMAND_MARKER);
+    }
+
+    private Result check(String format, Object[] params) {
+        if (!isCommandFormat(format)) {
+            return onMismatch;
+        }
+
+        if (containsCommand(format, params)) {
+            metrics.recordFilteredLogLine();
+            return onMatch;
+        }
+        return onMismatch;
+    }
+
+    private boolean containsCommand(String format, Object[] params) {
+        CommandMatcher current = matcher;
+        if (params == null || params.length == 0) {
+            // Pre-formatted record: the command is part of the text itself
+            return current.matches(format);
+        }
+        // Parameterized record such as "{} issued server command: {}"
+        for (Object param : params) {
+            if (param instanceof CharSequence text && current.matches(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+package me.threefour.whisperchain.managers;
+
+import me.threefour.whisperchain.storage.HistoryEntry;
+import me.threefour.whisperchain.storage.Mailbox;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivers a mailbox to a player who just joined, a batch at a time.
+ * <p>
+ * Runs as an async repeating task. Each run sends one batch as a single multi-line component,
+ * so a large backlog costs a handful of packets spread over several seconds instead of
+ * thousands of messages in one tick. A batch is only removed from the mailbox once it has been
+ * sent, so if the player leaves, the server stops or it crashes before the end, whatever is left
+ * is still there on their next join.
+ */
+class MailDelivery extends BukkitRunnable {
+
+    static final int BATCH_SIZE = 10;
+    static final long BATCH_INTERVAL_TICKS = 20;
+
+    private final Player player;
+    private final List<HistoryEntry> entries;
+    private final Mailbox mailbox;
+    private final MessageFormats formats;
+    private int next;
+
+    MailDelivery(Player player, List<HistoryEntry> entries, Mailbox mailbox, MessageFormats formats) {
+        this.player = player;
+        this.entries = entries;
+        this.mailbox = mailbox;
+        this.formats = formats;
+    }
+
+    @Override
+    public void run() {
+        if (!player.isOnline()) {
+            cancel();
+            return;
+        }
+
+        int end = Math.min(entries.size(), next + BATCH_SIZE);
+        List<Component> lines = new ArrayList<>(end - next + 1);
+        if (next == 0) {
+            lines.add(formats.mailboxHeader(entries.size()));
+        }
+        for (int i = next; i < end; i++) {
+            HistoryEntry entry = entries.get(i);
+            lines.add(formats.incoming(entry.senderName(), entry.message()));
+        }
+        player.sendMessage(Component.join(JoinConfiguration.newlines(), lines));
+        mailbox.remove(player.getUniqueId(), entries.subList(next, end));
+
+        next = end;
+        if (next >= entries.size()) {
+            cancel();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package me.threefour.whisperchain.managers;
+
+import me.threefour.whisperchain.utils.MessageTemplate;
+import net.kyori.adventure.text.Component;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The configurable whisper formats, compiled once when the plugin loads its config
+ */
+public class MessageFormats {
+
+    private static final String DEFAULT_OUTGOING = "&5[&dWhisper&5] &7To &d{recipient}&7: &f{message}";
+    private static final String DEFAULT_INCOMING = "&5[&dWhisper&5] &7From &d{sender}&7: &f{message}";
+    private static final String DEFAULT_GROUP = "&5[&dWhisper&5] &7From &d{sender}&7 to &d{recipients}&7: &f{message}";
+
+    private static final MessageTemplate MAILBOX_HEADER = MessageTemplate.compile(
+        "&5[&dWhisper&5] &7You received &d{count}&7 whispers while you were offline:", "count");
+    private static final MessageTemplate MAILED_NOTICE = MessageTemplate.compile(
+        "&7{recipients} &7will receive your whisper when they next join.", "recipients");
+    private static final MessageTemplate MAILBOX_FULL = MessageTemplate.compile(
+        "&c{recipient}'s offline mailbox is full, your whisper was not saved.", "recipient");
+
+    private final MessageTemplate outgoing;
+    private final MessageTemplate incoming;
+    private final MessageTemplate group;
+
+    public MessageFormats(ConfigurationSection config) {
+        this.outgoing = MessageTemplate.compile(config.getString("messages.outgoing-format", DEFAULT_OUTGOING), "recipient", "message");
+        this.incoming = MessageTemplate.compile(config.getString("messages.incoming-format", DEFAULT_INCOMING), "sender", "message");
+        this.group = MessageTemplate.compile(config.getString("messages.group-format", DEFAULT_GROUP), "sender", "recipients", "message");
+    }
+
+    /**
+     * Render the confirmation shown to the sender
+     * @param recipients The recipient name, or a comma-separated list for groups
+     * @param message The message text
+     */
+    public Component outgoing(String recipients, String message) {
+        return outgoing.render(recipients, message);
+    }
+
+    /**
+     * Render the message shown to the recipient of a one-to-one whisper
+     * @param sender The sender's name
+     * @param message The message text
+     */
+    public Component incoming(String sender, String message) {
+        return incoming.render(sender, message);
+    }
+
+    /**
+     * Render the message shown to each recipient of a group whisper
+     * @param sender The sender's name
+     * @param recipients The comma-separated recipient names
+     * @param message The message text
+     */
+    public Component group(String sender, String recipients, String message) {
+        return group.render(sender, recipients, message);
+    }
+
+    /**
+     * Render the line shown above the whispers a player missed while offline
+     * @param count The number of missed whispers
+     */
+    public Component mailboxHeader(int count) {
+        return MAILBOX_HEADER.render(String.valueOf(count));
+    }
+
+    /**
+     * Render the note telling the sender that some recipients will get the whisper later
+     * @param recipients The comma-separated names of the offline recipients
+     */
+    public Component mailedNotice(String recipients) {
+        return MAILED_NOTICE.render(recipients);
+    }
+
+    /**
+     * Render the error shown when an offline recipient's mailbox has no room left
+     * @param recipient The recipient's name
+     */
+    public Component mailboxFull(String recipient) {
+        return MAILBOX_FULL.render(recipient);
+    }
+}
@@ -0,0 +1,170 @@
+package me.threefour.whisperchain.managers;
+
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Case-insensitive index of online players by name, kept up to date on join and quit.
+ * <p>
+ * Exact names resolve through a hash map. Partial names resolve through a sorted map, where
+ * every name sharing a prefix sits in one contiguous range, so a lookup only visits the players
+ * that actually match instead of every online player. Both maps are safe to read from any thread.
+ */
+public class PlayerIndex {
+
+    private final Map<String, Player> exact = new ConcurrentHashMap<>();
+    private final NavigableMap<String, Player> sorted = new ConcurrentSkipListMap<>();
+    private final Map<UUID, Player> byId = new ConcurrentHashMap<>();
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Add a player who just joined
+     * @param player The player to index
+     */
+    public void add(Player player) {
+        String key = normalize(player.getName());
+        exact.put(key, player);
+        sorted.put(key, player);
+        byId.put(player.getUniqueId(), player);
+    }
+
+    /**
+     * Remove a player who is leaving, unless the name has already been taken by someone else
+     * @param player The player to remove
+     */
+    public void remove(Player player) {
+        String key = normalize(player.getName());
+        exact.computeIfPresent(key, (k, indexed) -> indexed.getUniqueId().equals(player.getUniqueId()) ? null : indexed);
+        sorted.computeIfPresent(key, (k, indexed) -> indexed.getUniqueId().equals(player.getUniqueId()) ? null : indexed);
+        byId.remove(player.getUniqueId(), player);
+    }
+
+    /**
+     * Find an online player by UUID
+     * @param playerUUID The player's UUID
+     * @return The player, or null if they aren't online
+     */
+    public Player get(UUID playerUUID) {
+        return byId.get(playerUUID);
+    }
+
+    /**
+     * Find an online player by exact name, ignoring case
+     * @param name The player's name
+     * @return The player, or null if nobody online has that name
+     */
+    public Player getExact(String name) {
+        return exact.get(normalize(name));
+    }
+
+    /**
+     * Find an online player by exact name or, failing that, by the shortest name starting with it.
+     * Matches the behaviour of {@code Bukkit.getPlayer(String)}.
+     * @param name The full or partial name
+     * @return The player, or null if no online player matches
+     */
+    public Player find(String name) {
+        String key = normalize(name);
+        Player player = exact.get(key);
+        if (player != null || key.isEmpty()) {
+            return player;
+        }
+
+        // Every name in the range matches, so this costs one step per matching player
+        Player best = null;
+        int bestLength = Integer.MAX_VALUE;
+        for (Map.Entry<String, Player> entry : prefixRange(key).entrySet()) {
+            if (entry.getKey().length() < bestLength) {
+                best = entry.getValue();
+                bestLength = entry.getKey().length();
+                if (bestLength == key.length() + 1) {
+                    break; // Only the exact name could be shorter
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Resolve a comma-separated list of names, skipping unknown names and duplicates
+     * @param names The names, e.g. {@code "alice,bob"}
+     * @param recipients The collection to add resolved players to; use a set to drop duplicates
+     */
+    public void resolveAll(String names, Collection<? super Player> recipients) {
+        resolveAll(names, recipients, null);
+    }
+
+    /**
+     * Resolve a comma-separated list of names, collecting the names nobody online has
+     * @param names The names, e.g. {@code "alice,bob"}
+     * @param recipients The collection to add resolved players to; use a set to drop duplicates
+     * @param unresolved The collection to add unknown names to, or null to skip them
+     */
+    public void resolveAll(String names, Collection<? super Player> recipients, Collection<String> unresolved) {
+        int start = 0;
+        while (start <= names.length()) {
+            int comma = names.indexOf(',', start);
+            int end = comma < 0 ? names.length() : comma;
+            String name = names.substring(start, end).trim();
+            if (!name.isEmpty()) {
+                Player player = find(name);
+                if (player != null) {
+                    recipients.add(player);
+                } else if (unresolved != null) {
+                    unresolved.add(name);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * List the names of online players starting with a prefix, in alphabetical order
+     * @param prefix The prefix to match, ignoring case
+     * @param limit The maximum number of names to return
+     * @return The matching names as players see them
+     */
+    public List<String> complete(String prefix, int limit) {
+        List<String> names = new ArrayList<>(Math.min(limit, 16));
+        for (Player player : prefixRange(normalize(prefix)).values()) {
+            if (names.size() >= limit) {
+                break;
+            }
+            names.add(player.getName());
+        }
+        return names;
+    }
+
+    private NavigableMap<String, Player> prefixRange(String prefix) {
+        return sorted.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * Get every indexed player
+     * @return A weakly consistent view of the online players, safe to iterate from any thread
+     */
+    public Collection<Player> players() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    /**
+     * Get the number of indexed players
+     * @return The online player count as the index sees it
+     */
+    public int size() {
+        return exact.size();
+    }
+}
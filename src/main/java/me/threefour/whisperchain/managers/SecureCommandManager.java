@@ -1,7 +1,9 @@
 package me.threefour.whisperchain.managers;
 
 import me.threefour.whisperchain.WhisperChain;
-import org.bukkit.Bukkit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LoggerContext;
+import com.destroystokyo.paper.event.server.AsyncTabCompleteEvent;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -12,13 +14,12 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.server.ServerCommandEvent;
-import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.*;
-import java.util.logging.Filter;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages secure commands that don't get logged in the console
@@ -27,94 +28,91 @@ public class SecureCommandManager implements Listener {
 
     private final WhisperChain plugin;
     private final Map<String, SecureCommand> commandMap = new HashMap<>();
+    private static final int ASYNC_QUEUE_CAPACITY = 1024;
     private static final List<String> SENSITIVE_COMMANDS = Arrays.asList("whisper", "w", "msg", "tell");
-    private final Logger originalLogger;
     private final Set<String> commandsToFilter = new HashSet<>();
+    private final CommandLogFilter logFilter;
+    private final ThreadPoolExecutor asyncExecutor;
     
     public SecureCommandManager(WhisperChain plugin) {
         this.plugin = plugin;
+        this.logFilter = new CommandLogFilter(plugin.getMetrics());
+        
+        // One thread keeps each player's async commands in the order they were typed
+        this.asyncExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(ASYNC_QUEUE_CAPACITY), runnable -> {
+                Thread thread = new Thread(runnable, "WhisperChain Commands");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
         
         // Add all commands to filter
         commandsToFilter.addAll(SENSITIVE_COMMANDS);
         
         // Set up log filtering
-        this.originalLogger = plugin.getServer().getLogger();
         setupLogFilter();
-        
-        // Also filter other plugins' loggers to ensure complete privacy
-        for (Plugin otherPlugin : Bukkit.getPluginManager().getPlugins()) {
-            if (otherPlugin.getLogger() != null && otherPlugin != plugin) {
-                otherPlugin.getLogger().setFilter(new CommandFilter());
-            }
-        }
     }
     
     /**
-     * Sets up a filter for server logs to hide sensitive commands
+     * Installs the command filter on the logging configuration so it covers every logger
      */
     private void setupLogFilter() {
-        // Get the existing filter if any
-        Filter existingFilter = originalLogger.getFilter();
-        
-        // Create a new command filter
-        CommandFilter commandFilter = new CommandFilter();
+        logFilter.setCommands(commandsToFilter);
+        logFilter.start();
         
-        // If there's already a filter, chain them
-        if (existingFilter != null) {
-            originalLogger.setFilter(record -> {
-                if (!commandFilter.isLoggable(record)) {
-                    return false;
-                }
-                return existingFilter.isLoggable(record);
-            });
-        } else {
-            originalLogger.setFilter(commandFilter);
-        }
+        LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        context.getConfiguration().addFilter(logFilter);
+        context.updateLoggers();
     }
     
     /**
-     * Filter that blocks logging of sensitive commands
+     * Stops the async command thread and removes the command filter from the logging configuration.
+     * Call before the managers commands use shut down, so queued commands still find them in place
      */
-    private class CommandFilter implements Filter {
-        @Override
-        public boolean isLoggable(LogRecord record) {
-            String message = record.getMessage();
-            if (message == null) return true;
-            
-            // Check for command patterns in logs
-            String lowercaseMsg = message.toLowerCase();
-            
-            // Check for patterns like "player issued server command: /msg ..."
-            if (lowercaseMsg.contains("issued server command:")) {
-                for (String cmd : commandsToFilter) {
-                    if (lowercaseMsg.contains("/" + cmd + " ")) {
-                        return false; // Filter out this log
-                    }
-                }
-            }
-            
-            return true;
+    public void shutdown() {
+        asyncExecutor.shutdown();
+        try {
+            asyncExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        
+        LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        context.getConfiguration().removeFilter(logFilter);
+        context.updateLoggers();
+        logFilter.stop();
     }
     
     /**
-     * Register a secure command that won't be logged in the console
+     * Register a secure command that won't be logged in the console. The command runs on the main thread.
      */
     public void registerSecureCommand(String name, String description, String usage, 
                                List<String> aliases, CommandExecutor executor, 
                                TabCompleter tabCompleter) {
+        registerSecureCommand(name, description, usage, aliases, executor, tabCompleter, false);
+    }
+    
+    /**
+     * Register a secure command that won't be logged in the console
+     * @param asyncSafe True if the executor may run off the main thread, straight from the command event
+     */
+    public void registerSecureCommand(String name, String description, String usage, 
+                               List<String> aliases, CommandExecutor executor, 
+                               TabCompleter tabCompleter, boolean asyncSafe) {
         // Create the secure command
-        SecureCommand command = new SecureCommand(name, description, usage, aliases, executor, tabCompleter);
+        SecureCommand command = new SecureCommand(name, description, usage, aliases, executor, tabCompleter, asyncSafe);
         
         // Add to our map
         commandMap.put(name.toLowerCase(), command);
         
         // Also add all aliases
+        commandsToFilter.add(name.toLowerCase());
         for (String alias : aliases) {
             commandMap.put(alias.toLowerCase(), command);
             commandsToFilter.add(alias.toLowerCase());
         }
+        logFilter.setCommands(commandsToFilter);
         
         // Register with bukkit's command map so tab completion works
         createBukkitCommand(name, description, usage, aliases, executor, tabCompleter);
@@ -177,64 +175,132 @@ public class SecureCommandManager implements Listener {
             return;
         }
         
-        // Extract command name without splitting arguments yet
-        String command = message.substring(1).split(" ", 2)[0].toLowerCase();
-        
-        if (isSecureCommand(command)) {
+        if (dispatch(event.getPlayer(), message, 1)) {
             // Cancel the original command event to prevent logging
             event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Run a secure command typed as {@code message}, if it is one
+     * @param sender Who typed the command
+     * @param message The command line
+     * @param start The index of the command name in the line, after any leading slash
+     * @return True if the command was secure and has been dispatched
+     */
+    private boolean dispatch(CommandSender sender, String message, int start) {
+        int space = message.indexOf(' ', start);
+        int end = space < 0 ? message.length() : space;
+        String command = message.substring(start, end).toLowerCase();
+        
+        SecureCommand secureCommand = getCommand(command);
+        if (secureCommand == null) {
+            return false;
+        }
+        
+        Runnable task = () -> {
+            String[] args = parseArguments(message, end);
+            secureCommand.execute(sender, command, args);
             
-            // Execute our secure command with a delay to avoid race conditions
-            SecureCommand secureCommand = getCommand(command);
-            Player player = event.getPlayer();
-            
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    // Get the full original command without the leading slash
-                    String fullCommand = message.substring(1);
-                    
-                    // Parse the arguments correctly, preserving spaces properly
-                    String[] parts = fullCommand.split(" ", 2);
-                    String[] args = parts.length > 1 ? parseArguments(parts[1]) : new String[0];
-                    
-                    // Execute the command
-                    secureCommand.execute(player, command, args);
-                }
-            }.runTask(plugin);
+            if (!(sender instanceof Player)) {
+                // Send a generic message to console without revealing the command content
+                plugin.getLogger().info("Console executed a secure command: " + command);
+            }
+        };
+        
+        if (secureCommand.isAsyncSafe()) {
+            try {
+                asyncExecutor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // Backlogged: fall back to the main thread below, unless we are shutting down
+            }
         }
+        if (asyncExecutor.isShutdown()) {
+            // Disabling; the managers the command needs are going away and the scheduler refuses tasks
+            return true;
+        }
+        plugin.getServer().getScheduler().runTask(plugin, task);
+        return true;
     }
     
     /**
-     * Parse command arguments properly, respecting quotes
+     * Answer tab completion for secure commands off the main thread
      */
-    private String[] parseArguments(String argLine) {
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onAsyncTabComplete(AsyncTabCompleteEvent event) {
+        if (event.isHandled() || !event.isCommand()) {
+            return;
+        }
+        
+        String buffer = event.getBuffer();
+        int start = buffer.startsWith("/") ? 1 : 0;
+        int space = buffer.indexOf(' ', start);
+        if (space < 0) {
+            return; // Still typing the command name itself
+        }
+        
+        SecureCommand secureCommand = getCommand(buffer.substring(start, space));
+        if (secureCommand == null) {
+            return;
+        }
+        
+        // Keep a trailing empty argument so "/whisper " completes the first argument
+        String[] args = buffer.substring(space + 1).split(" ", -1);
+        event.setCompletions(secureCommand.tabComplete(event.getSender(), buffer.substring(start, space), args));
+        event.setHandled(true);
+    }
+    
+    /**
+     * Parse command arguments properly, respecting quotes, in one pass over the command line
+     * @param line The full command line
+     * @param from The index to start parsing at, just past the command name
+     */
+    private static String[] parseArguments(String line, int from) {
         List<String> args = new ArrayList<>();
-        StringBuilder currentArg = new StringBuilder();
+        StringBuilder quoted = null;
+        int argStart = -1;
         boolean inQuotes = false;
         
-        for (int i = 0; i < argLine.length(); i++) {
-            char c = argLine.charAt(i);
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
             
             if (c == '"') {
+                // Quotes are dropped from the argument, so switch to building it piecewise
+                if (quoted == null) {
+                    quoted = new StringBuilder();
+                }
+                if (argStart >= 0) {
+                    quoted.append(line, argStart, i);
+                    argStart = -1;
+                }
                 inQuotes = !inQuotes;
             } else if (c == ' ' && !inQuotes) {
-                if (currentArg.length() > 0) {
-                    args.add(currentArg.toString());
-                    currentArg = new StringBuilder();
+                addArgument(args, line, argStart, i, quoted);
+                argStart = -1;
+                if (quoted != null) {
+                    quoted.setLength(0);
                 }
-            } else {
-                currentArg.append(c);
+            } else if (argStart < 0) {
+                argStart = i;
             }
         }
-        
-        if (currentArg.length() > 0) {
-            args.add(currentArg.toString());
-        }
+        addArgument(args, line, argStart, line.length(), quoted);
         
         return args.toArray(new String[0]);
     }
     
+    private static void addArgument(List<String> args, String line, int start, int end, StringBuilder quoted) {
+        if (quoted != null && quoted.length() > 0) {
+            if (start >= 0) {
+                quoted.append(line, start, end);
+            }
+            args.add(quoted.toString());
+        } else if (start >= 0) {
+            args.add(line.substring(start, end));
+        }
+    }
+    
     /**
      * Intercept server commands to allow console to use secure commands
      */
@@ -245,31 +311,9 @@ public class SecureCommandManager implements Listener {
             return;
         }
         
-        // Extract command name without splitting arguments yet
-        String command = message.split(" ", 2)[0].toLowerCase();
-        
-        if (isSecureCommand(command)) {
+        if (dispatch(event.getSender(), message, message.startsWith("/") ? 1 : 0)) {
             // Cancel the original command event to prevent logging
             event.setCancelled(true);
-            
-            // Execute our secure command with a delay to avoid race conditions
-            SecureCommand secureCommand = getCommand(command);
-            CommandSender sender = event.getSender();
-            
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    // Parse the arguments correctly
-                    String[] parts = message.split(" ", 2);
-                    String[] args = parts.length > 1 ? parseArguments(parts[1]) : new String[0];
-                    
-                    // Execute the command
-                    secureCommand.execute(sender, command, args);
-                    
-                    // Send a generic message to console without revealing the command content
-                    plugin.getLogger().info("Console executed a secure command: " + command);
-                }
-            }.runTask(plugin);
         }
     }
     
@@ -277,27 +321,20 @@ public class SecureCommandManager implements Listener {
      * Class representing a secure command
      */
     public static class SecureCommand {
-        private final String name;
-        private final String description;
-        private final String usage;
-        private final List<String> aliases;
+        private final Command command;
         private final CommandExecutor executor;
         private final TabCompleter tabCompleter;
+        private final boolean asyncSafe;
         
         public SecureCommand(String name, String description, String usage, 
                         List<String> aliases, CommandExecutor executor, 
-                        TabCompleter tabCompleter) {
-            this.name = name;
-            this.description = description;
-            this.usage = usage;
-            this.aliases = aliases;
+                        TabCompleter tabCompleter, boolean asyncSafe) {
             this.executor = executor;
             this.tabCompleter = tabCompleter;
-        }
-        
-        public boolean execute(CommandSender sender, String label, String[] args) {
-            // Create a command that can be passed to the executor
-            Command command = new Command(name) {
+            this.asyncSafe = asyncSafe;
+            
+            // Built once and handed to the executor on every call
+            this.command = new Command(name) {
                 @Override
                 public boolean execute(CommandSender sender, String commandLabel, String[] args) {
                     return true;
@@ -306,8 +343,16 @@ public class SecureCommandManager implements Listener {
             command.setDescription(description);
             command.setUsage(usage);
             command.setAliases(aliases);
-            
-            // Execute the command
+        }
+        
+        /**
+         * Check whether the command may run off the main thread
+         */
+        public boolean isAsyncSafe() {
+            return asyncSafe;
+        }
+        
+        public boolean execute(CommandSender sender, String label, String[] args) {
             return executor.onCommand(sender, command, label, args);
         }
         
@@ -315,19 +360,7 @@ public class SecureCommandManager implements Listener {
             if (tabCompleter == null) {
                 return Collections.emptyList();
             }
-            
-            // Create a command for tab completion
-            Command command = new Command(name) {
-                @Override
-                public boolean execute(CommandSender sender, String commandLabel, String[] args) {
-                    return true;
-                }
-            };
-            command.setDescription(description);
-            command.setUsage(usage);
-            command.setAliases(aliases);
-            
             return tabCompleter.onTabComplete(sender, command, alias, args);
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package me.threefour.whisperchain.managers;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Undirected graph of players who have whispered each other, safe to use from any thread.
+ * <p>
+ * Each player maps to a concurrent set of the players they are talking to, so membership checks
+ * are constant time and iteration never blocks writers. Connecting two players updates both sides
+ * under a shared lock, and removing a player takes the lock exclusively, so a removal can never
+ * interleave with a connect and leave a one-sided edge behind.
+ */
+public class SessionGraph {
+
+    private final Map<UUID, Set<UUID>> adjacency = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Record a session between two players, in both directions
+     * @param a One player
+     * @param b The other player
+     */
+    public void connect(UUID a, UUID b) {
+        if (a.equals(b)) {
+            return;
+        }
+        // Fast path: most whispers go to someone the sender is already talking to
+        Set<UUID> existing = adjacency.get(a);
+        if (existing != null && existing.contains(b)) {
+            return;
+        }
+
+        lock.readLock().lock();
+        try {
+            neighboursOf(a).add(b);
+            neighboursOf(b).add(a);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Set<UUID> neighboursOf(UUID playerUUID) {
+        return adjacency.computeIfAbsent(playerUUID, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Remove a player and every session they were part of
+     * @param playerUUID The player to remove
+     */
+    public void remove(UUID playerUUID) {
+        lock.writeLock().lock();
+        try {
+            Set<UUID> neighbours = adjacency.remove(playerUUID);
+            if (neighbours == null) {
+                return;
+            }
+            for (UUID other : neighbours) {
+                Set<UUID> theirs = adjacency.get(other);
+                if (theirs != null) {
+                    theirs.remove(playerUUID);
+                    if (theirs.isEmpty()) {
+                        adjacency.remove(other);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check whether two players are in a session
+     * @param a One player
+     * @param b The other player
+     * @return True if they have whispered each other
+     */
+    public boolean isConnected(UUID a, UUID b) {
+        Set<UUID> neighbours = adjacency.get(a);
+        return neighbours != null && neighbours.contains(b);
+    }
+
+    /**
+     * Get the players someone is in a session with. The view is live; iterating it never throws
+     * and never blocks, and reflects some state between the start and end of the iteration.
+     * @param playerUUID The player
+     * @return A read-only view of their session partners
+     */
+    public Set<UUID> neighbours(UUID playerUUID) {
+        Set<UUID> neighbours = adjacency.get(playerUUID);
+        return neighbours != null ? Collections.unmodifiableSet(neighbours) : Collections.emptySet();
+    }
+
+    /**
+     * Get a read-only view of the whole graph, for persistence
+     * @return Every player's session partners keyed by player UUID
+     */
+    public Map<UUID, Set<UUID>> view() {
+        return Collections.unmodifiableMap(adjacency);
+    }
+}
@@ -0,0 +1,119 @@
+package me.threefour.whisperchain.managers;
+
+import me.threefour.whisperchain.network.RemotePlayer;
+import me.threefour.whisperchain.utils.Envelope;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A whisper travelling through the {@link WhisperPipeline}.
+ * <p>
+ * Each stage fills in part of it: resolve splits the requested recipients into online ones and
+ * ones whose whisper goes to their offline mailbox, encrypt attaches the envelope addressed to
+ * every online recipient, forward hands it to the router for recipients on other servers, and
+ * deliver records who actually received it. Once the pipeline's future
+ * completes the whisper is no longer modified.
+ */
+public class Whisper {
+
+    private final Player sender;
+    private final String message;
+    private final long timestamp;
+    private final List<OfflinePlayer> requested;
+    private final List<RemotePlayer> remote;
+    private List<Player> recipients = List.of();
+    private List<OfflinePlayer> mailed = List.of();
+    private Envelope envelope;
+    private int delivered;
+
+    Whisper(Player sender, List<OfflinePlayer> requested, List<RemotePlayer> remote, String message) {
+        this.sender = sender;
+        this.requested = requested;
+        this.remote = remote;
+        this.message = message;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Player getSender() {
+        return sender;
+    }
+
+    /**
+     * Get everyone the sender addressed, online or not
+     * @return The requested recipients
+     */
+    public List<OfflinePlayer> getRequestedRecipients() {
+        return requested;
+    }
+
+    /**
+     * Get the recipients on other servers, who the whisper is routed to
+     * @return The remote recipients
+     */
+    public List<RemotePlayer> getRemoteRecipients() {
+        return remote;
+    }
+
+    /**
+     * Get the online recipients the whisper is delivered to directly
+     * @return The online recipients, empty until the whisper has been resolved
+     */
+    public List<Player> getRecipients() {
+        return Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * Get the offline recipients the whisper was left in a mailbox for
+     * @return The offline recipients, empty until the whisper has been resolved
+     */
+    public List<OfflinePlayer> getMailedRecipients() {
+        return Collections.unmodifiableList(mailed);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Get when the whisper was sent
+     * @return The time in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the message encrypted for its recipients
+     * @return The envelope, or null if encryption failed
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Get the number of recipients the whisper was delivered to
+     * @return The delivered count
+     */
+    public int getDeliveredCount() {
+        return delivered;
+    }
+
+    void setRecipients(List<Player> recipients) {
+        this.recipients = recipients;
+    }
+
+    void setMailedRecipients(List<OfflinePlayer> mailed) {
+        this.mailed = mailed;
+    }
+
+    void setEnvelope(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    void markDelivered() {
+        delivered++;
+    }
+}
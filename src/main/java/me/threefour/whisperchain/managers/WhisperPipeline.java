@@ -0,0 +1,275 @@
+package me.threefour.whisperchain.managers;
+
+import me.threefour.whisperchain.WhisperChain;
+import me.threefour.whisperchain.network.RemotePlayer;
+import me.threefour.whisperchain.network.WhisperRouter;
+import me.threefour.whisperchain.storage.HistoryEntry;
+import me.threefour.whisperchain.utils.Encryption;
+import net.kyori.adventure.text.Component;
+import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs whispers through resolve, encrypt, persist, mail, forward and deliver stages on a bounded pool,
+ * so neither chat threads nor the main thread pay for encryption or storage.
+ * <p>
+ * The pool is split into single-threaded lanes chosen by sender, so one player's whispers go
+ * through every stage in the order they were sent while different players run in parallel.
+ * <p>
+ * Parsing happens before submission, in the listener or command that received the whisper.
+ * When the queue is full new whispers are rejected and the sender is told to retry, instead
+ * of letting work pile up without limit.
+ */
+public class WhisperPipeline {
+
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private final WhisperChain plugin;
+    private final ChatManager chatManager;
+    private final ThreadPoolExecutor[] lanes;
+
+    public WhisperPipeline(WhisperChain plugin, ChatManager chatManager) {
+        this.plugin = plugin;
+        this.chatManager = chatManager;
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY / threads), runnable -> {
+                    Thread thread = new Thread(runnable, "WhisperChain Delivery #" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    private ThreadPoolExecutor laneFor(UUID sender) {
+        int hash = sender.hashCode();
+        return lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+    }
+
+    /**
+     * Queue a whisper for delivery
+     * @param sender The player sending the message
+     * @param recipients The players receiving the message; offline ones get it through their mailbox
+     * @param remote The players receiving the message on other servers
+     * @param message The message to send
+     * @return A future completed with the whisper once it has been delivered
+     */
+    public CompletableFuture<Whisper> submit(Player sender, List<? extends OfflinePlayer> recipients,
+                                             List<RemotePlayer> remote, String message) {
+        Whisper whisper = new Whisper(sender, List.copyOf(recipients), List.copyOf(remote), message);
+        CompletableFuture<Whisper> future = new CompletableFuture<>();
+
+        try {
+            laneFor(sender.getUniqueId()).execute(() -> {
+                try {
+                    resolve(whisper);
+                    encrypt(whisper);
+                    persist(whisper);
+                    mail(whisper);
+                    forward(whisper);
+                    deliver(whisper);
+                    future.complete(whisper);
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to deliver whisper from " + sender.getName(), e);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sender.sendMessage(ChatColor.RED + "Too many whispers are being sent right now. Please try again in a moment.");
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Split recipients into online ones, who get the whisper now, and offline ones, whose whisper
+     * goes to their mailbox if offline messaging is enabled. Records the sessions.
+     */
+    private void resolve(Whisper whisper) {
+        UUID senderUUID = whisper.getSender().getUniqueId();
+        boolean mailboxEnabled = chatManager.getMailbox() != null;
+        List<Player> online = new ArrayList<>(whisper.getRequestedRecipients().size());
+        List<OfflinePlayer> mailed = new ArrayList<>();
+        for (OfflinePlayer recipient : whisper.getRequestedRecipients()) {
+            // Covers both players who left since the whisper was queued and ones who joined
+            Player player = recipient.getPlayer();
+            if (player != null && player.isOnline()) {
+                online.add(player);
+                chatManager.recordSession(senderUUID, player.getUniqueId());
+            } else if (mailboxEnabled) {
+                mailed.add(recipient);
+            }
+        }
+        whisper.setRecipients(online);
+        whisper.setMailedRecipients(mailed);
+    }
+
+    /**
+     * Encrypt the message body once: under the recipient's own key for a one-to-one whisper, or
+     * under a content key wrapped for each recipient of a group whisper
+     */
+    private void encrypt(Whisper whisper) {
+        Encryption encryption = plugin.getEncryption();
+        Map<UUID, SecretKey> recipientKeys = new HashMap<>(whisper.getRecipients().size() * 2);
+        for (Player recipient : whisper.getRecipients()) {
+            recipientKeys.put(recipient.getUniqueId(), encryption.getPlayerKey(recipient.getUniqueId()));
+        }
+        whisper.setEnvelope(encryption.sealEnvelope(whisper.getMessage().getBytes(StandardCharsets.UTF_8), recipientKeys));
+    }
+
+    /**
+     * Store the message in chat history; the disk write itself happens on the log's writer thread
+     */
+    private void persist(Whisper whisper) {
+        Player sender = whisper.getSender();
+        for (Player recipient : whisper.getRecipients()) {
+            chatManager.storeMessage(whisper.getTimestamp(), sender.getUniqueId(), recipient.getUniqueId(), sender.getName(), whisper.getMessage());
+        }
+        for (OfflinePlayer recipient : whisper.getMailedRecipients()) {
+            chatManager.storeMessage(whisper.getTimestamp(), sender.getUniqueId(), recipient.getUniqueId(), sender.getName(), whisper.getMessage());
+        }
+        for (RemotePlayer recipient : whisper.getRemoteRecipients()) {
+            chatManager.storeMessage(whisper.getTimestamp(), sender.getUniqueId(), recipient.uniqueId(), sender.getName(), whisper.getMessage());
+        }
+    }
+
+    /**
+     * Leave the message in each offline recipient's mailbox; the write happens on the mailbox thread
+     */
+    private void mail(Whisper whisper) {
+        if (whisper.getMailedRecipients().isEmpty()) {
+            return;
+        }
+        Player sender = whisper.getSender();
+        HistoryEntry entry = new HistoryEntry(whisper.getTimestamp(), sender.getUniqueId(), sender.getName(), whisper.getMessage());
+        for (OfflinePlayer recipient : whisper.getMailedRecipients()) {
+            chatManager.getMailbox().deposit(recipient.getUniqueId(), entry).thenAccept(stored -> {
+                if (!stored) {
+                    sender.sendMessage(plugin.getMessageFormats().mailboxFull(nameOf(recipient)));
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue the message for recipients on other servers; it leaves with the router's next flush
+     */
+    private void forward(Whisper whisper) {
+        List<RemotePlayer> remote = whisper.getRemoteRecipients();
+        WhisperRouter router = plugin.getRouter();
+        if (remote.isEmpty() || router == null) {
+            return;
+        }
+        Player sender = whisper.getSender();
+        router.forward(whisper.getTimestamp(), sender.getUniqueId(), sender.getName(),
+            recipientCount(whisper) == 1 ? null : recipientNames(whisper), remote, whisper.getMessage());
+    }
+
+    private static int recipientCount(Whisper whisper) {
+        return whisper.getRecipients().size() + whisper.getRemoteRecipients().size();
+    }
+
+    /**
+     * Names of everyone the whisper reaches directly, here or on another server
+     */
+    private static String recipientNames(Whisper whisper) {
+        List<Player> recipients = whisper.getRecipients();
+        List<RemotePlayer> remote = whisper.getRemoteRecipients();
+        if (remote.isEmpty() && recipients.size() == 1) {
+            return recipients.get(0).getName();
+        }
+        if (recipients.isEmpty() && remote.size() == 1) {
+            return remote.get(0).name();
+        }
+        return Stream.concat(recipients.stream().map(Player::getName), remote.stream().map(RemotePlayer::name))
+            .collect(Collectors.joining(", "));
+    }
+
+    private static String nameOf(OfflinePlayer player) {
+        String name = player.getName();
+        return name != null ? name : player.getUniqueId().toString();
+    }
+
+    /**
+     * Send the message to each recipient and confirm to the sender
+     */
+    private void deliver(Whisper whisper) {
+        Player sender = whisper.getSender();
+        List<Player> recipients = whisper.getRecipients();
+        String message = whisper.getMessage();
+        MessageFormats formats = plugin.getMessageFormats();
+
+        if (!whisper.getMailedRecipients().isEmpty()) {
+            sender.sendMessage(formats.mailedNotice(whisper.getMailedRecipients().stream()
+                .map(WhisperPipeline::nameOf).collect(Collectors.joining(", "))));
+        }
+
+        if (recipients.isEmpty() && whisper.getRemoteRecipients().isEmpty()) {
+            if (whisper.getMailedRecipients().isEmpty()) {
+                sender.sendMessage(ChatColor.RED + "No valid recipients found.");
+            }
+            return;
+        }
+
+        // Every recipient sees the same line, so render it once
+        String recipientNames = recipientNames(whisper);
+        Component incoming = recipientCount(whisper) == 1 ?
+            formats.incoming(sender.getName(), message) :
+            formats.group(sender.getName(), recipientNames, message);
+
+        for (Player recipient : recipients) {
+            recipient.sendMessage(incoming);
+            whisper.markDelivered();
+        }
+
+        // Confirm to the sender
+        sender.sendMessage(formats.outgoing(recipientNames, message));
+    }
+
+    /**
+     * Stop accepting whispers and wait for queued ones to finish
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        try {
+            boolean finished = true;
+            for (ThreadPoolExecutor lane : lanes) {
+                finished &= lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            if (!finished) {
+                plugin.getLogger().warning("Some queued whispers were not delivered before shutdown");
+                for (ThreadPoolExecutor lane : lanes) {
+                    lane.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
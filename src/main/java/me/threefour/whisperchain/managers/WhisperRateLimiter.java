@@ -0,0 +1,80 @@
+package me.threefour.whisperchain.managers;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-player token bucket for whispers, charged one token per recipient.
+ * <p>
+ * Implemented as a generic cell rate algorithm: each player's whole bucket state is a single
+ * "theoretical arrival time" in an {@link AtomicLong}, so taking tokens is one compare-and-set
+ * with no locks, and refilling costs nothing until the next request.
+ * <p>
+ * A whisper to more recipients than the burst costs a full bucket rather than more than the
+ * bucket can ever hold, so big groups are slowed down instead of refused outright.
+ */
+public class WhisperRateLimiter {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int burst;
+    private final Map<UUID, AtomicLong> arrivals = new ConcurrentHashMap<>();
+
+    /**
+     * @param perSecond How many recipients a player may whisper per second, or 0 for no limit
+     * @param burst How many recipients a player may whisper at once with a full bucket
+     */
+    public WhisperRateLimiter(double perSecond, int burst) {
+        this.intervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        this.burst = Math.max(1, burst);
+        this.toleranceNanos = intervalNanos * this.burst;
+    }
+
+    /**
+     * Check whether the limiter does anything
+     * @return True if whispers are limited
+     */
+    public boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Take tokens from a player's bucket if there are enough
+     * @param playerUUID The player sending
+     * @param tokens The number of recipients; more than the burst are charged as the burst
+     * @return True if the player may send, false if they have to slow down
+     */
+    public boolean tryAcquire(UUID playerUUID, int tokens) {
+        if (intervalNanos == 0) {
+            return true;
+        }
+
+        AtomicLong arrival = arrivals.computeIfAbsent(playerUUID, k -> new AtomicLong(System.nanoTime()));
+        long cost = intervalNanos * Math.min(tokens, burst);
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrival.get();
+            // An idle bucket is full: never let a stale arrival time bank more than the burst
+            long base = current - now < 0 ? now : current;
+            long next = base + cost;
+            if (next - now > toleranceNanos) {
+                return false;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the state of a player who left, unless they are still paying off a burst
+     * @param playerUUID The player leaving
+     */
+    public void forget(UUID playerUUID) {
+        long now = System.nanoTime();
+        arrivals.computeIfPresent(playerUUID, (k, arrival) -> arrival.get() - now <= 0 ? null : arrival);
+    }
+}
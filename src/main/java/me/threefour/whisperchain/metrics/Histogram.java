@@ -0,0 +1,123 @@
+package me.threefour.whisperchain.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative values, in the style of HdrHistogram.
+ * <p>
+ * Values below 32 get a bucket each. Above that, every power of two is split into 16 equal
+ * buckets, so any recorded value is reported within about 6% of itself whatever its magnitude.
+ * Recording is one array increment; there is no resizing and no allocation.
+ */
+public final class Histogram {
+
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        // (value >>> shift) keeps the top five bits, in [16, 32)
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long lowestValueIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return mantissa << shift;
+    }
+
+    static long highestValueIn(int bucket) {
+        return bucket + 1 < BUCKETS ? lowestValueIn(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Record one value
+     * @param value The value; negative values are recorded as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(value));
+    }
+
+    /**
+     * Take a consistent-enough copy of the counts for reporting
+     * @return The snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total);
+    }
+
+    /**
+     * Point-in-time copy of a histogram
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+        }
+
+        /**
+         * Get the number of recorded values
+         * @return The count
+         */
+        public long count() {
+            return total;
+        }
+
+        /**
+         * Get a percentile of the recorded values
+         * @param percentile The percentile, from 0 to 100
+         * @return The highest value in the bucket holding the percentile, or 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueIn(i);
+                }
+            }
+            return highestValueIn(counts.length - 1);
+        }
+
+        /**
+         * Get the approximate mean of the recorded values
+         * @return The mean, using each bucket's midpoint, or 0 if nothing was recorded
+         */
+        public double mean() {
+            if (total == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    sum += counts[i] * ((lowestValueIn(i) + (double) highestValueIn(i)) / 2);
+                }
+            }
+            return sum / total;
+        }
+    }
+}
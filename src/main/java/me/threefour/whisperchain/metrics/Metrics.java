@@ -0,0 +1,215 @@
+package me.threefour.whisperchain.metrics;
+
+import me.threefour.whisperchain.storage.ConversationStore;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The plugin's counters and latency histograms.
+ * <p>
+ * Counters are {@link LongAdder}s, which stripe under contention, so the chat threads and the
+ * pipeline threads that bump them never fight over one cache line. Latencies are recorded in
+ * nanoseconds. Everything is also published over JMX once {@link #register()} is called.
+ */
+public class Metrics implements MetricsMBean {
+
+    private static final String OBJECT_NAME = "me.threefour.whisperchain:type=Metrics";
+
+    private final LongAdder whispersSent = new LongAdder();
+    private final LongAdder recipientsReached = new LongAdder();
+    private final LongAdder whispersRateLimited = new LongAdder();
+    private final LongAdder logLinesFiltered = new LongAdder();
+    private final Histogram fanOut = new Histogram();
+    private final Histogram encryptNanos = new Histogram();
+    private final Histogram decryptNanos = new Histogram();
+    private final long startNanos = System.nanoTime();
+    private volatile ConversationStore history;
+
+    /**
+     * Count a whisper accepted for sending
+     * @param recipients The number of recipients it was addressed to
+     */
+    public void recordWhisper(int recipients) {
+        whispersSent.increment();
+        recipientsReached.add(recipients);
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Count a whisper refused by the rate limiter
+     */
+    public void recordRateLimited() {
+        whispersRateLimited.increment();
+    }
+
+    /**
+     * Count a console log line hidden by the secure command filter
+     */
+    public void recordFilteredLogLine() {
+        logLinesFiltered.increment();
+    }
+
+    /**
+     * Record how long an encryption took
+     * @param startNanos The {@link System#nanoTime()} taken before encrypting
+     */
+    public void recordEncrypt(long startNanos) {
+        encryptNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record how long a decryption took
+     * @param startNanos The {@link System#nanoTime()} taken before decrypting
+     */
+    public void recordDecrypt(long startNanos) {
+        decryptNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Report history size from a conversation store
+     * @param history The store holding in-memory history
+     */
+    public void trackHistory(ConversationStore history) {
+        this.history = history;
+    }
+
+    public Histogram.Snapshot getFanOut() {
+        return fanOut.snapshot();
+    }
+
+    public Histogram.Snapshot getEncryptLatency() {
+        return encryptNanos.snapshot();
+    }
+
+    public Histogram.Snapshot getDecryptLatency() {
+        return decryptNanos.snapshot();
+    }
+
+    /**
+     * Get how long metrics have been collected
+     * @return The uptime in seconds
+     */
+    public double getUptimeSeconds() {
+        return (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, replacing a previous registration
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            // Left behind by a reload
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server
+     */
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // Nothing left to clean up
+        }
+    }
+
+    @Override
+    public long getWhispersSent() {
+        return whispersSent.sum();
+    }
+
+    @Override
+    public long getRecipientsReached() {
+        return recipientsReached.sum();
+    }
+
+    @Override
+    public long getWhispersRateLimited() {
+        return whispersRateLimited.sum();
+    }
+
+    @Override
+    public long getLogLinesFiltered() {
+        return logLinesFiltered.sum();
+    }
+
+    @Override
+    public double getWhispersPerSecond() {
+        return whispersSent.sum() / Math.max(1, getUptimeSeconds());
+    }
+
+    @Override
+    public long getFanOutP50() {
+        return fanOut.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return fanOut.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getEncryptLatencyP50() {
+        return micros(encryptNanos.snapshot().percentile(50));
+    }
+
+    @Override
+    public long getEncryptLatencyP99() {
+        return micros(encryptNanos.snapshot().percentile(99));
+    }
+
+    @Override
+    public long getEncryptLatencyP999() {
+        return micros(encryptNanos.snapshot().percentile(99.9));
+    }
+
+    @Override
+    public long getDecryptLatencyP50() {
+        return micros(decryptNanos.snapshot().percentile(50));
+    }
+
+    @Override
+    public long getDecryptLatencyP99() {
+        return micros(decryptNanos.snapshot().percentile(99));
+    }
+
+    @Override
+    public long getDecryptLatencyP999() {
+        return micros(decryptNanos.snapshot().percentile(99.9));
+    }
+
+    @Override
+    public int getHistoryConversations() {
+        ConversationStore store = history;
+        return store != null ? store.size() : 0;
+    }
+
+    @Override
+    public long getHistoryMessages() {
+        ConversationStore store = history;
+        return store != null ? store.messageCount() : 0;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        ConversationStore store = history;
+        return store != null ? store.approximateBytes() : 0;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
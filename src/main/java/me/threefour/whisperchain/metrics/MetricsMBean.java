@@ -0,0 +1,39 @@
+package me.threefour.whisperchain.metrics;
+
+/**
+ * JMX view of {@link Metrics}. Latencies are in microseconds.
+ */
+public interface MetricsMBean {
+
+    long getWhispersSent();
+
+    long getRecipientsReached();
+
+    long getWhispersRateLimited();
+
+    long getLogLinesFiltered();
+
+    double getWhispersPerSecond();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getEncryptLatencyP50();
+
+    long getEncryptLatencyP99();
+
+    long getEncryptLatencyP999();
+
+    long getDecryptLatencyP50();
+
+    long getDecryptLatencyP99();
+
+    long getDecryptLatencyP999();
+
+    int getHistoryConversations();
+
+    long getHistoryMessages();
+
+    long getHistoryBytes();
+}
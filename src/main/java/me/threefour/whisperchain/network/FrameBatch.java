@@ -0,0 +1,146 @@
+package me.threefour.whisperchain.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of a batch: every frame queued for one server during a tick.
+ * <p>
+ * Layout: {@code byte version, byte flags, int bodyLength, body}, where the body is a series of
+ * {@code byte type, int length, payload} frames. Bodies above a small threshold are deflated,
+ * since names and chat text compress well and a busy tick sends many similar frames.
+ */
+final class FrameBatch {
+
+    /**
+     * One message inside a batch
+     * @param type What the payload is, one of the router's frame types
+     * @param payload The encoded message
+     */
+    record Frame(byte type, byte[] payload) {
+    }
+
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final int HEADER_LENGTH = 6;
+    private static final int FRAME_HEADER_LENGTH = 5;
+    private static final int COMPRESS_THRESHOLD = 512;
+    private static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+
+    private FrameBatch() {
+    }
+
+    /**
+     * Encode frames into a batch
+     * @param frames The frames, in the order they should be handled
+     * @param deflater A deflater to reuse, owned by the caller's thread
+     * @return The batch
+     */
+    static byte[] encode(List<Frame> frames, Deflater deflater) {
+        int bodyLength = 0;
+        for (Frame frame : frames) {
+            bodyLength += FRAME_HEADER_LENGTH + frame.payload().length;
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        for (Frame frame : frames) {
+            body.put(frame.type());
+            body.putInt(frame.payload().length);
+            body.put(frame.payload());
+        }
+
+        byte[] raw = body.array();
+        if (bodyLength < COMPRESS_THRESHOLD) {
+            return ByteBuffer.allocate(HEADER_LENGTH + bodyLength)
+                .put(VERSION).put((byte) 0).putInt(bodyLength).put(raw).array();
+        }
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // Incompressible input grows by a few bytes per 16 KiB block at most
+        byte[] out = new byte[HEADER_LENGTH + bodyLength + bodyLength / 1000 + 64];
+        int length = HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        ByteBuffer.wrap(out).put(VERSION).put(FLAG_DEFLATED).putInt(bodyLength);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Decode a batch into its frames
+     * @param batch The batch as received
+     * @return The frames, in the order they were sent
+     * @throws IOException If the batch is malformed or from an incompatible version
+     */
+    static List<Frame> decode(byte[] batch) throws IOException {
+        if (batch.length < HEADER_LENGTH) {
+            throw new IOException("Batch is too short");
+        }
+        ByteBuffer header = ByteBuffer.wrap(batch);
+        byte version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported batch version " + version);
+        }
+        byte flags = header.get();
+        int bodyLength = header.getInt();
+        if (bodyLength < 0 || bodyLength > MAX_BODY_LENGTH) {
+            throw new IOException("Invalid batch length " + bodyLength);
+        }
+
+        ByteBuffer body;
+        if ((flags & FLAG_DEFLATED) != 0) {
+            byte[] raw = new byte[bodyLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(batch, HEADER_LENGTH, batch.length - HEADER_LENGTH);
+                int read = 0;
+                while (read < bodyLength && !inflater.finished()) {
+                    int n = inflater.inflate(raw, read, bodyLength - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read != bodyLength) {
+                    throw new IOException("Batch body is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Batch body is corrupt", e);
+            } finally {
+                inflater.end();
+            }
+            body = ByteBuffer.wrap(raw);
+        } else {
+            if (bodyLength != batch.length - HEADER_LENGTH) {
+                throw new IOException("Batch body is truncated");
+            }
+            body = ByteBuffer.wrap(batch, HEADER_LENGTH, bodyLength);
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        while (body.hasRemaining()) {
+            if (body.remaining() < FRAME_HEADER_LENGTH) {
+                throw new IOException("Frame header is truncated");
+            }
+            byte type = body.get();
+            int length = body.getInt();
+            if (length < 0 || length > body.remaining()) {
+                throw new IOException("Frame is truncated");
+            }
+            byte[] payload = new byte[length];
+            body.get(payload);
+            frames.add(new Frame(type, payload));
+        }
+        return frames;
+    }
+}
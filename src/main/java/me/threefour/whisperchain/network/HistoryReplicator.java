@@ -0,0 +1,319 @@
+package me.threefour.whisperchain.network;
+
+import me.threefour.whisperchain.WhisperChain;
+import me.threefour.whisperchain.storage.ConversationKey;
+import me.threefour.whisperchain.storage.HistoryEntry;
+import me.threefour.whisperchain.storage.WhisperLog;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Ships chat history between the servers in the network, so a conversation looks the same
+ * wherever its players are.
+ * <p>
+ * Every server is both a leader and a follower. As a leader it appends the history it
+ * records itself to an outbox, a {@link WhisperLog} whose sequence numbers give every record
+ * a position. As a follower it remembers, per other server, the position of the next record
+ * it needs, and asks for everything from there whenever that server joins the network. The
+ * leader then streams batches of records from that position on, one batch per tick from an
+ * async task, so sending a whisper never waits for replication.
+ * <p>
+ * Positions are saved to disk, so a restarted follower catches up from where it stopped
+ * instead of copying the whole history again. Every copied record is stored in the history
+ * log together with its position in the leader's outbox, and saved positions only ever cover
+ * records already on disk. They are saved at most once a second along with the history log's
+ * own position at the time, and on start the history written since is read back to move them
+ * up to the last record that made it to disk, so a crash never applies a record twice.
+ */
+public class HistoryReplicator implements WhisperRouter.NodeListener {
+
+    static final byte FRAME_REQUEST = WhisperRouter.FIRST_CUSTOM_FRAME;
+    static final byte FRAME_RECORDS = WhisperRouter.FIRST_CUSTOM_FRAME + 1;
+
+    private static final int MAX_BATCH_RECORDS = 512;
+    private static final int VERSION = 2;
+    private static final int SAVE_INTERVAL_TICKS = 20;
+
+    private final WhisperChain plugin;
+    private final WhisperRouter router;
+    private final WhisperLog outbox;
+    private final Path offsetsFile;
+    private final Path offsetsTempFile;
+    // Follower side: the next sequence number wanted from each leader
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+    // Leader side: the next sequence number to send each follower
+    private final Map<String, Long> cursors = new ConcurrentHashMap<>();
+    // Held while applying records, so saved positions never run ahead of the history log
+    private final Object applyLock = new Object();
+    private volatile boolean offsetsDirty;
+    private int ticksSinceSave;
+    private BukkitTask shipTask;
+
+    /**
+     * Open the outbox and the saved positions in a directory
+     * @param plugin The plugin
+     * @param router The router to ship records through
+     * @param directory The directory for the outbox and positions
+     * @param retentionDays How many days to keep records in the outbox, or -1 to keep them forever
+     * @param storageKey The key for sealing the outbox, or null if there is none
+     * @param sealWrites Whether new outbox blocks are sealed under the storage key
+     * @throws IOException If the outbox or positions can't be read
+     */
+    public HistoryReplicator(WhisperChain plugin, WhisperRouter router, Path directory, int retentionDays,
+                             SecretKey storageKey, boolean sealWrites) throws IOException {
+        this.plugin = plugin;
+        this.router = router;
+        this.outbox = new WhisperLog(directory.resolve("outbox"), plugin.getLogger(), retentionDays,
+            storageKey, plugin.getEncryption().getCipherEngine(), sealWrites);
+        this.offsetsFile = directory.resolve("offsets.bin");
+        this.offsetsTempFile = directory.resolve("offsets.bin.tmp");
+        recoverOffsets(loadOffsets());
+    }
+
+    /**
+     * Hook into the router and start shipping. Call before the router starts, so the
+     * servers already in the network are heard
+     */
+    public void start() {
+        router.registerHandler(FRAME_REQUEST, this::onRequest);
+        router.registerHandler(FRAME_RECORDS, this::onRecords);
+        router.addNodeListener(this);
+        this.shipTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::tick, 1, 1);
+    }
+
+    /**
+     * Stop shipping, save positions and close the outbox. Call after the chat manager has shut
+     * down, so the last whispers make it into the outbox and go out after the next start
+     */
+    public synchronized void shutdown() {
+        if (shipTask != null) {
+            shipTask.cancel();
+        }
+        saveOffsets();
+        outbox.close();
+    }
+
+    /**
+     * Queue a record this server wrote to its history for the other servers
+     * @param key The conversation the record belongs to
+     * @param entry The record
+     */
+    public void record(ConversationKey key, HistoryEntry entry) {
+        outbox.append(key, entry);
+    }
+
+    /**
+     * Get the position of the next record wanted from another server
+     * @param node The other server's ID
+     * @return The sequence number, 0 if nothing has been received from it yet
+     */
+    public long getOffset(String node) {
+        return offsets.getOrDefault(node, 0L);
+    }
+
+    @Override
+    public void nodeJoined(String node) {
+        // Either it is new or it restarted; in both cases resume from what we have
+        requestFrom(node, getOffset(node));
+    }
+
+    @Override
+    public void nodeLeft(String node) {
+        cursors.remove(node);
+    }
+
+    private void requestFrom(String node, long sequence) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        router.send(node, FRAME_REQUEST, bytes.toByteArray());
+    }
+
+    private void onRequest(String source, DataInputStream in) throws IOException {
+        cursors.put(source, in.readLong());
+    }
+
+    /**
+     * Send every follower the next batch of records it hasn't seen
+     */
+    synchronized void tick() {
+        long next = outbox.getNextSequence();
+        for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+            String node = cursor.getKey();
+            long from = cursor.getValue();
+            if (from == next) {
+                continue;
+            }
+            if (from > next) {
+                // Our outbox was reset; tell the follower so it starts over from our beginning
+                router.send(node, FRAME_RECORDS, encodeRecords(from, next, List.of()));
+                cursors.remove(node, from);
+                continue;
+            }
+
+            List<WhisperLog.SequencedEntry> batch = outbox.readFrom(from, MAX_BATCH_RECORDS);
+            if (batch.isEmpty()) {
+                continue; // Not committed yet
+            }
+            router.send(node, FRAME_RECORDS, encodeRecords(from, next, batch));
+            // A new request may have moved the cursor meanwhile; that one wins
+            cursors.replace(node, from, batch.get(batch.size() - 1).sequence() + 1);
+        }
+
+        if (offsetsDirty && ++ticksSinceSave >= SAVE_INTERVAL_TICKS) {
+            saveOffsets();
+        }
+    }
+
+    private void onRecords(String source, DataInputStream in) throws IOException {
+        long from = in.readLong();
+        long leaderNext = in.readLong();
+        int count = in.readInt();
+        synchronized (applyLock) {
+            long expected = getOffset(source);
+            if (leaderNext < expected) {
+                plugin.getLogger().warning("History from " + source + " starts over; its outbox was reset");
+                offsets.put(source, 0L);
+                offsetsDirty = true;
+                requestFrom(source, 0);
+                return;
+            }
+            if (from > expected) {
+                // Something got lost in between; ask again from the gap
+                requestFrom(source, expected);
+                return;
+            }
+
+            // A batch from before our last request may overlap what we already have; skip that part
+            long next = expected;
+            for (int i = 0; i < count; i++) {
+                long sequence = in.readLong();
+                ConversationKey key = new ConversationKey(readUUID(in), readUUID(in));
+                HistoryEntry entry = new HistoryEntry(in.readLong(), readUUID(in), in.readUTF(), in.readUTF());
+                if (sequence >= next) {
+                    plugin.getChatManager().applyReplicated(key, entry, new WhisperLog.Origin(source, sequence));
+                    next = sequence + 1;
+                }
+            }
+            if (next != expected) {
+                offsets.put(source, next);
+                offsetsDirty = true;
+            }
+        }
+    }
+
+    private static byte[] encodeRecords(long from, long next, List<WhisperLog.SequencedEntry> records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + records.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(from);
+            out.writeLong(next);
+            out.writeInt(records.size());
+            for (WhisperLog.SequencedEntry record : records) {
+                out.writeLong(record.sequence());
+                writeUUID(out, record.key().low());
+                writeUUID(out, record.key().high());
+                HistoryEntry entry = record.entry();
+                out.writeLong(entry.timestamp());
+                writeUUID(out, entry.sender());
+                out.writeUTF(entry.senderName());
+                out.writeUTF(entry.message());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the saved positions
+     * @return The history log position they were saved at
+     */
+    private long loadOffsets() throws IOException {
+        if (!Files.isRegularFile(offsetsFile)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(offsetsFile))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported replication positions version " + version);
+            }
+            long historySequence = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                offsets.put(in.readUTF(), in.readLong());
+            }
+            return historySequence;
+        }
+    }
+
+    /**
+     * Move the positions past the copied records that reached the history log after they were saved
+     */
+    private void recoverOffsets(long historySequence) {
+        List<WhisperLog.SequencedEntry> records;
+        while (!(records = plugin.getChatManager().readHistoryFrom(historySequence, MAX_BATCH_RECORDS)).isEmpty()) {
+            for (WhisperLog.SequencedEntry record : records) {
+                // Log order, so a later record wins even after a leader started over
+                if (record.origin() != null) {
+                    offsets.put(record.origin().node(), record.origin().sequence() + 1);
+                    offsetsDirty = true;
+                }
+            }
+            historySequence = records.get(records.size() - 1).sequence() + 1;
+        }
+    }
+
+    private synchronized void saveOffsets() {
+        ticksSinceSave = 0;
+        offsetsDirty = false;
+        long historySequence;
+        Map<String, Long> snapshot;
+        synchronized (applyLock) {
+            // Everything the positions cover is on disk once this returns
+            historySequence = Math.max(0, plugin.getChatManager().syncHistory());
+            snapshot = Map.copyOf(offsets);
+        }
+        try {
+            Files.createDirectories(offsetsFile.getParent());
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(offsetsTempFile))) {
+                out.writeInt(VERSION);
+                out.writeLong(historySequence);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Long> offset : snapshot.entrySet()) {
+                    out.writeUTF(offset.getKey());
+                    out.writeLong(offset.getValue());
+                }
+            }
+            Files.move(offsetsTempFile, offsetsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            offsetsDirty = true;
+            plugin.getLogger().log(Level.WARNING, "Failed to save history replication positions", e);
+        }
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
@@ -0,0 +1,74 @@
+package me.threefour.whisperchain.network;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transport between servers running in the same JVM, for testing multi-server setups
+ * without a proxy. Batches are handed straight to the receiving server on the sending thread.
+ */
+public class LoopbackTransport implements WhisperTransport {
+
+    /**
+     * The servers that can reach each other over loopback
+     */
+    public static final class Hub {
+        private final Map<String, Receiver> nodes = new ConcurrentHashMap<>();
+    }
+
+    private static final Hub SHARED = new Hub();
+
+    private final Hub hub;
+    private volatile String nodeId;
+    private volatile Receiver receiver;
+
+    /**
+     * Create a transport on the hub every loopback transport in the JVM shares by default
+     */
+    public LoopbackTransport() {
+        this(SHARED);
+    }
+
+    /**
+     * Create a transport on a hub of its own
+     * @param hub The hub connecting the servers
+     */
+    public LoopbackTransport(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public synchronized void open(String nodeId, Receiver receiver) throws IOException {
+        if (hub.nodes.putIfAbsent(nodeId, receiver) != null) {
+            throw new IOException("Node ID " + nodeId + " is already in use");
+        }
+        this.nodeId = nodeId;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(String destination, byte[] batch) {
+        if (destination != null) {
+            Receiver target = hub.nodes.get(destination);
+            if (target != null) {
+                target.receive(nodeId, batch);
+            }
+            return;
+        }
+        hub.nodes.forEach((node, target) -> {
+            if (!node.equals(nodeId)) {
+                target.receive(nodeId, batch);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        if (nodeId != null) {
+            hub.nodes.remove(nodeId, receiver);
+            nodeId = null;
+            receiver = null;
+        }
+    }
+}
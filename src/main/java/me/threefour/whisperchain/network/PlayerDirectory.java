@@ -0,0 +1,91 @@
+package me.threefour.whisperchain.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which players are online on which other server, kept in sync by the presence updates every
+ * server broadcasts on join and quit. Safe to read from any thread.
+ */
+public class PlayerDirectory {
+
+    private final Map<UUID, RemotePlayer> byId = new ConcurrentHashMap<>();
+    private final Map<String, RemotePlayer> byName = new ConcurrentHashMap<>();
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Record that a player is online on another server, replacing where they were before
+     * @param player The player and their server
+     */
+    void put(RemotePlayer player) {
+        RemotePlayer previous = byId.put(player.uniqueId(), player);
+        if (previous != null && !previous.name().equals(player.name())) {
+            byName.remove(normalize(previous.name()), previous);
+        }
+        byName.put(normalize(player.name()), player);
+    }
+
+    /**
+     * Record that a player left a server. Ignored if they have already turned up on another one,
+     * since presence updates from different servers can arrive in any order
+     * @param playerUUID The player who left
+     * @param node The server they left
+     * @return True if the player was removed
+     */
+    boolean remove(UUID playerUUID, String node) {
+        RemotePlayer current = byId.get(playerUUID);
+        if (current != null && current.node().equals(node) && byId.remove(playerUUID, current)) {
+            byName.remove(normalize(current.name()), current);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget every player on a server that left the network
+     * @param node The server
+     * @return The players that were removed
+     */
+    List<UUID> removeNode(String node) {
+        List<UUID> removed = new ArrayList<>();
+        for (RemotePlayer player : byId.values()) {
+            if (player.node().equals(node) && remove(player.uniqueId(), node)) {
+                removed.add(player.uniqueId());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Find a player on another server by exact name, ignoring case
+     * @param name The player's name
+     * @return The player, or null if no other server has them
+     */
+    public RemotePlayer find(String name) {
+        return byName.get(normalize(name));
+    }
+
+    /**
+     * Find a player on another server by UUID
+     * @param playerUUID The player's UUID
+     * @return The player, or null if no other server has them
+     */
+    public RemotePlayer get(UUID playerUUID) {
+        return byId.get(playerUUID);
+    }
+
+    /**
+     * Get the number of players on other servers
+     * @return The remote player count
+     */
+    public int size() {
+        return byId.size();
+    }
+}
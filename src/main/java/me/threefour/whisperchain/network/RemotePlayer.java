@@ -0,0 +1,12 @@
+package me.threefour.whisperchain.network;
+
+import java.util.UUID;
+
+/**
+ * A player who is online on another server in the network
+ * @param uniqueId The player's UUID
+ * @param name The player's name
+ * @param node The ID of the server they are on
+ */
+public record RemotePlayer(UUID uniqueId, String name, String node) {
+}
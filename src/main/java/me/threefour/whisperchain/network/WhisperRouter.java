@@ -0,0 +1,415 @@
+package me.threefour.whisperchain.network;
+
+import me.threefour.whisperchain.WhisperChain;
+import me.threefour.whisperchain.utils.CipherEngine;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * Routes whispers to players on other servers in the network.
+ * <p>
+ * Outbound whispers and presence updates are queued per destination server and flushed once a
+ * tick from an async task, as one compressed batch per server, so a burst of whispers to the
+ * same server costs one transport send instead of one per whisper. Incoming batches update the
+ * {@link PlayerDirectory} and hand whispers to the {@link me.threefour.whisperchain.managers.ChatManager}
+ * for local delivery.
+ * <p>
+ * Every batch is sealed under the network key shared by all servers, with the sending server's
+ * ID as additional data, so whispers and history never cross the transport in the clear and a
+ * batch can't be passed off as coming from another server.
+ * <p>
+ * Other features can share the connection: frame types from {@link #FIRST_CUSTOM_FRAME} on are
+ * passed to the {@link FrameHandler} registered for them, and {@link NodeListener}s hear when
+ * servers join or leave the network.
+ */
+public class WhisperRouter {
+
+    /**
+     * Handles frames of a type registered with {@link #registerHandler(byte, FrameHandler)}
+     */
+    @FunctionalInterface
+    public interface FrameHandler {
+        /**
+         * Called on the transport's receiving thread
+         * @param source The server that sent the frame
+         * @param in The frame's payload
+         * @throws IOException If the payload is malformed
+         */
+        void handle(String source, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Hears about servers joining and leaving the network
+     */
+    public interface NodeListener {
+        /**
+         * Another server joined, or was already there when this one joined
+         * @param node The server's ID
+         */
+        void nodeJoined(String node);
+
+        /**
+         * Another server left the network
+         * @param node The server's ID
+         */
+        void nodeLeft(String node);
+    }
+
+    /**
+     * The lowest frame type available to {@link FrameHandler}s; lower types belong to the router
+     */
+    public static final byte FIRST_CUSTOM_FRAME = 16;
+
+    static final byte FRAME_HELLO = 1;
+    static final byte FRAME_BYE = 2;
+    static final byte FRAME_JOIN = 3;
+    static final byte FRAME_QUIT = 4;
+    static final byte FRAME_WHISPER = 5;
+    static final byte FRAME_WELCOME = 6;
+
+    // Destination key for frames addressed to every other server
+    private static final String BROADCAST = "*";
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WhisperChain plugin;
+    private final String nodeId;
+    private final SecretKey networkKey;
+    private final CipherEngine cipherEngine;
+    private final PlayerDirectory directory = new PlayerDirectory();
+    private final Map<String, Queue<FrameBatch.Frame>> outbound = new ConcurrentHashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Map<Byte, FrameHandler> handlers = new ConcurrentHashMap<>();
+    private final List<NodeListener> nodeListeners = new CopyOnWriteArrayList<>();
+    private volatile WhisperTransport transport;
+    private BukkitTask flushTask;
+
+    /**
+     * @param plugin The plugin
+     * @param nodeId The ID of this server, unique in the network
+     * @param networkKey The key every server in the network seals its batches under
+     * @param transport The transport to reach other servers through
+     */
+    public WhisperRouter(WhisperChain plugin, String nodeId, SecretKey networkKey, WhisperTransport transport) {
+        this.plugin = plugin;
+        this.nodeId = nodeId;
+        this.networkKey = networkKey;
+        this.cipherEngine = plugin.getEncryption().getCipherEngine();
+        this.transport = transport;
+    }
+
+    /**
+     * Join the network, announce the players online here and start flushing every tick
+     * @throws IOException If the transport can't join the network
+     */
+    public void start() throws IOException {
+        connect(transport);
+        this.flushTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::flush, 1, 1);
+    }
+
+    private void connect(WhisperTransport transport) throws IOException {
+        transport.open(nodeId, this::receive);
+        // Everyone answers a hello with their players, and ours go out with it
+        enqueue(BROADCAST, FRAME_HELLO, EMPTY);
+        announceAll(BROADCAST);
+    }
+
+    /**
+     * Swap in another transport, such as one provided by a proxy messaging plugin
+     * @param replacement The transport to use from now on
+     * @throws IOException If the new transport can't join the network
+     */
+    public synchronized void setTransport(WhisperTransport replacement) throws IOException {
+        enqueue(BROADCAST, FRAME_BYE, EMPTY);
+        flush();
+        transport.close();
+        this.transport = replacement;
+        connect(replacement);
+    }
+
+    /**
+     * Say goodbye to the other servers, send what is still queued and leave the network
+     */
+    public synchronized void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+        enqueue(BROADCAST, FRAME_BYE, EMPTY);
+        flush();
+        transport.close();
+        deflater.end();
+    }
+
+    /**
+     * Get the ID of this server
+     * @return The node ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the players online on other servers
+     * @return The directory
+     */
+    public PlayerDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Handle a type of frame from other servers. Register before {@link #start()} so nothing is missed
+     * @param type The frame type, from {@link #FIRST_CUSTOM_FRAME} on
+     * @param handler The handler
+     */
+    public void registerHandler(byte type, FrameHandler handler) {
+        if (type < FIRST_CUSTOM_FRAME) {
+            throw new IllegalArgumentException("Frame type " + type + " is reserved");
+        }
+        handlers.put(type, handler);
+    }
+
+    /**
+     * Hear about servers joining and leaving. Add listeners before {@link #start()} so nothing is missed
+     * @param listener The listener
+     */
+    public void addNodeListener(NodeListener listener) {
+        nodeListeners.add(listener);
+    }
+
+    /**
+     * Queue a frame of a registered type. It goes out with the next flush
+     * @param destination The server to send it to, or null for every other server
+     * @param type The frame type
+     * @param payload The frame's payload
+     */
+    public void send(String destination, byte type, byte[] payload) {
+        if (type < FIRST_CUSTOM_FRAME) {
+            throw new IllegalArgumentException("Frame type " + type + " is reserved");
+        }
+        enqueue(destination == null ? BROADCAST : destination, type, payload);
+    }
+
+    /**
+     * Tell the other servers a player joined here
+     * @param player The player who joined
+     */
+    public void announceJoin(Player player) {
+        enqueue(BROADCAST, FRAME_JOIN, encodePresence(player.getUniqueId(), player.getName()));
+    }
+
+    /**
+     * Tell the other servers a player left
+     * @param player The player who left
+     */
+    public void announceQuit(Player player) {
+        enqueue(BROADCAST, FRAME_QUIT, encodePresence(player.getUniqueId(), player.getName()));
+    }
+
+    private void announceAll(String destination) {
+        for (Player player : plugin.getPlayerIndex().players()) {
+            enqueue(destination, FRAME_JOIN, encodePresence(player.getUniqueId(), player.getName()));
+        }
+    }
+
+    /**
+     * Queue a whisper for players on other servers. It goes out with the next flush
+     * @param timestamp When the whisper was sent, in epoch milliseconds
+     * @param sender The UUID of the sender
+     * @param senderName The sender's name
+     * @param groupNames Every recipient's name for the group format, or null if there is only one
+     * @param recipients The recipients on other servers
+     * @param message The message
+     */
+    public void forward(long timestamp, UUID sender, String senderName, String groupNames,
+                        List<RemotePlayer> recipients, String message) {
+        Map<String, List<UUID>> byNode = new LinkedHashMap<>();
+        for (RemotePlayer recipient : recipients) {
+            byNode.computeIfAbsent(recipient.node(), k -> new ArrayList<>()).add(recipient.uniqueId());
+        }
+        byNode.forEach((node, uuids) -> enqueue(node, FRAME_WHISPER,
+            encodeWhisper(timestamp, sender, senderName, groupNames, uuids, message)));
+    }
+
+    private void enqueue(String destination, byte type, byte[] payload) {
+        outbound.computeIfAbsent(destination, k -> new ConcurrentLinkedQueue<>()).add(new FrameBatch.Frame(type, payload));
+    }
+
+    /**
+     * Send everything queued, one batch per destination server
+     */
+    synchronized void flush() {
+        for (Map.Entry<String, Queue<FrameBatch.Frame>> entry : outbound.entrySet()) {
+            Queue<FrameBatch.Frame> queue = entry.getValue();
+            if (queue.isEmpty()) {
+                continue;
+            }
+            List<FrameBatch.Frame> frames = new ArrayList<>();
+            FrameBatch.Frame frame;
+            while ((frame = queue.poll()) != null) {
+                frames.add(frame);
+            }
+
+            String destination = entry.getKey();
+            try {
+                byte[] batch = cipherEngine.seal(networkKey, FrameBatch.encode(frames, deflater), nodeIdBytes(nodeId));
+                transport.send(BROADCAST.equals(destination) ? null : destination, batch);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to send " + frames.size() + " whispers and updates to "
+                    + (BROADCAST.equals(destination) ? "the network" : destination), e);
+            }
+        }
+    }
+
+    private void receive(String source, byte[] batch) {
+        List<FrameBatch.Frame> frames;
+        try {
+            frames = FrameBatch.decode(cipherEngine.open(networkKey, batch, nodeIdBytes(source)));
+        } catch (GeneralSecurityException e) {
+            plugin.getLogger().warning("Dropping a batch from " + source + " that doesn't open with the network key;"
+                + " every server needs the same key file");
+            return;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Dropping a malformed batch from " + source, e);
+            return;
+        }
+
+        for (FrameBatch.Frame frame : frames) {
+            try {
+                handle(source, frame);
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Dropping a malformed message from " + source, e);
+            }
+        }
+    }
+
+    private static byte[] nodeIdBytes(String node) {
+        return node.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void handle(String source, FrameBatch.Frame frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.payload()));
+        switch (frame.type()) {
+            case FRAME_HELLO -> {
+                // Tell the newcomer we exist, since it missed our own hello
+                enqueue(source, FRAME_WELCOME, EMPTY);
+                announceAll(source);
+                nodeJoined(source);
+            }
+            case FRAME_WELCOME -> nodeJoined(source);
+            case FRAME_BYE -> {
+                for (UUID playerUUID : directory.removeNode(source)) {
+                    remotePlayerLeft(playerUUID);
+                }
+                for (NodeListener listener : nodeListeners) {
+                    listener.nodeLeft(source);
+                }
+            }
+            case FRAME_JOIN -> directory.put(new RemotePlayer(readUUID(in), in.readUTF(), source));
+            case FRAME_QUIT -> {
+                UUID playerUUID = readUUID(in);
+                if (directory.remove(playerUUID, source)) {
+                    remotePlayerLeft(playerUUID);
+                }
+            }
+            case FRAME_WHISPER -> {
+                long timestamp = in.readLong();
+                UUID sender = readUUID(in);
+                String senderName = in.readUTF();
+                String groupNames = in.readBoolean() ? in.readUTF() : null;
+                int count = in.readInt();
+                List<UUID> recipients = new ArrayList<>(Math.min(count, 256));
+                for (int i = 0; i < count; i++) {
+                    recipients.add(readUUID(in));
+                }
+                String message = in.readUTF();
+                plugin.getChatManager().receiveRemoteWhisper(timestamp, sender, senderName, groupNames, recipients, message);
+            }
+            default -> {
+                FrameHandler handler = handlers.get(frame.type());
+                if (handler != null) {
+                    handler.handle(source, in);
+                }
+                // Otherwise sent by a newer version; skip it so the rest of the batch still gets through
+            }
+        }
+    }
+
+    /**
+     * End the sessions of a player who left the network. Their quit only runs the local cleanup
+     * on the server they were on
+     */
+    private void remotePlayerLeft(UUID playerUUID) {
+        // Unless they just moved here
+        if (plugin.getServer().getPlayer(playerUUID) == null) {
+            plugin.getChatManager().endSessions(playerUUID);
+        }
+    }
+
+    private void nodeJoined(String node) {
+        for (NodeListener listener : nodeListeners) {
+            listener.nodeJoined(node);
+        }
+    }
+
+    private static byte[] encodePresence(UUID player, String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeUUID(out, player);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeWhisper(long timestamp, UUID sender, String senderName, String groupNames,
+                                        List<UUID> recipients, String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + recipients.size() * 16 + message.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(timestamp);
+            writeUUID(out, sender);
+            out.writeUTF(senderName);
+            out.writeBoolean(groupNames != null);
+            if (groupNames != null) {
+                out.writeUTF(groupNames);
+            }
+            out.writeInt(recipients.size());
+            for (UUID recipient : recipients) {
+                writeUUID(out, recipient);
+            }
+            out.writeUTF(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
@@ -0,0 +1,47 @@
+package me.threefour.whisperchain.network;
+
+import java.io.IOException;
+
+/**
+ * Carries batches of routed whispers and presence updates between servers.
+ * <p>
+ * The router hands over opaque, already compressed and encrypted batches, so a transport only has
+ * to move bytes: plugin messaging through the proxy, a message broker, or {@link LoopbackTransport}
+ * inside one JVM. Batches to the same node must arrive in the order they were sent.
+ */
+public interface WhisperTransport {
+
+    /**
+     * Receives batches from other servers
+     */
+    @FunctionalInterface
+    interface Receiver {
+
+        /**
+         * Handle a batch. May be called from any thread
+         * @param source The ID of the server that sent it
+         * @param batch The batch as it was sent
+         */
+        void receive(String source, byte[] batch);
+    }
+
+    /**
+     * Join the network and start receiving batches addressed to this server
+     * @param nodeId The ID of this server, unique in the network
+     * @param receiver Where to hand incoming batches
+     * @throws IOException If the network can't be joined
+     */
+    void open(String nodeId, Receiver receiver) throws IOException;
+
+    /**
+     * Send a batch. Batches to servers that aren't connected are dropped
+     * @param destination The ID of the server to send to, or null for every other server
+     * @param batch The batch to send
+     */
+    void send(String destination, byte[] batch);
+
+    /**
+     * Leave the network and stop receiving batches
+     */
+    void close();
+}
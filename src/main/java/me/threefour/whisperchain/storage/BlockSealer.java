@@ -0,0 +1,79 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.utils.CipherEngine;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.UUID;
+
+/**
+ * Seals history log blocks under the storage key.
+ * <p>
+ * A whole block of records is encrypted with a single AES-GCM operation, so the cost of
+ * encryption at rest follows the number of blocks rather than the number of messages. Each
+ * sealed block also carries short keyed tags of the conversations it contains, which lets a
+ * reader skip blocks without decrypting them and without revealing who talked to whom.
+ */
+final class BlockSealer {
+
+    private final SecretKey storageKey;
+    private final CipherEngine cipherEngine;
+    private final ThreadLocal<Mac> tagMacs;
+
+    BlockSealer(SecretKey storageKey, CipherEngine cipherEngine) {
+        this.storageKey = storageKey;
+        this.cipherEngine = cipherEngine;
+        SecretKeySpec tagKey = new SecretKeySpec(deriveTagKey(storageKey), "HmacSHA256");
+        this.tagMacs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(tagKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available on this JVM", e);
+            }
+        });
+    }
+
+    private static byte[] deriveTagKey(SecretKey storageKey) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(storageKey.getEncoded(), "HmacSHA256"));
+            return mac.doFinal("whisperchain-history-tags".getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available on this JVM", e);
+        }
+    }
+
+    /**
+     * Compute the keyed tag of a conversation
+     * @param key The conversation
+     * @return A 32-bit tag that is stable for this storage key
+     */
+    int tag(ConversationKey key) {
+        Mac mac = tagMacs.get();
+        ByteBuffer input = ByteBuffer.allocate(32);
+        putUUID(input, key.low());
+        putUUID(input, key.high());
+        mac.update(input.array());
+        byte[] digest = mac.doFinal();
+        return ByteBuffer.wrap(digest).getInt();
+    }
+
+    byte[] seal(byte[] body, byte[] aad) throws GeneralSecurityException {
+        return cipherEngine.seal(storageKey, body, aad);
+    }
+
+    byte[] open(byte[] sealed, byte[] aad) throws GeneralSecurityException {
+        return cipherEngine.open(storageKey, sealed, aad);
+    }
+
+    private static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+}
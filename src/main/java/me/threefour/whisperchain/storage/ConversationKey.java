@@ -0,0 +1,39 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.UUID;
+
+/**
+ * Canonical key for a conversation between two players.
+ * <p>
+ * The two UUIDs are stored in sorted order, so {@code of(a, b)} and {@code of(b, a)} are equal.
+ */
+public record ConversationKey(UUID low, UUID high) {
+
+    /**
+     * Create the key for a conversation between two players, in either order
+     * @param first One player in the conversation
+     * @param second The other player in the conversation
+     * @return The canonical key
+     */
+    public static ConversationKey of(UUID first, UUID second) {
+        return first.compareTo(second) <= 0 ? new ConversationKey(first, second) : new ConversationKey(second, first);
+    }
+
+    /**
+     * Check whether a player takes part in this conversation
+     * @param playerUUID The UUID of the player
+     * @return True if the player is one of the two participants
+     */
+    public boolean involves(UUID playerUUID) {
+        return low.equals(playerUUID) || high.equals(playerUUID);
+    }
+
+    /**
+     * Get the other participant of the conversation
+     * @param playerUUID One of the two participants
+     * @return The other participant
+     */
+    public UUID other(UUID playerUUID) {
+        return low.equals(playerUUID) ? high : low;
+    }
+}
@@ -0,0 +1,215 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded in-memory chat history, one ring buffer per conversation.
+ * <p>
+ * Each message is stored once under the canonical {@link ConversationKey} of its two players.
+ * Rings are guarded by a fixed set of striped locks chosen by conversation, so threads writing
+ * to different conversations rarely contend.
+ * <p>
+ * An optional {@link HistoryIndex} is kept in step under the same locks: messages are indexed
+ * as they are appended and dropped from the index as the ring evicts them.
+ */
+public class ConversationStore {
+
+    private static final int STRIPES = 64;
+
+    private final Map<ConversationKey, MessageRing> conversations = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+    private final int capacity;
+    private final HistoryIndex index;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Create a conversation store
+     * @param capacity The maximum number of messages kept per conversation
+     */
+    public ConversationStore(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Create a conversation store that keeps a search index of its messages
+     * @param capacity The maximum number of messages kept per conversation
+     * @param index The index to keep up to date, or null for none
+     */
+    public ConversationStore(int capacity, HistoryIndex index) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.index = index;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(ConversationKey key) {
+        int hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Append a message to a conversation, evicting the oldest one if the conversation is full
+     * @param key The conversation to append to
+     * @param entry The message to append
+     */
+    public void append(ConversationKey key, HistoryEntry entry) {
+        MessageRing ring = conversations.computeIfAbsent(key, k -> new MessageRing(capacity));
+        HistoryEntry evicted;
+        synchronized (lockFor(key)) {
+            evicted = ring.add(entry);
+            updateIndex(key, entry, evicted);
+        }
+        account(entry, evicted);
+    }
+
+    private void updateIndex(ConversationKey key, HistoryEntry added, HistoryEntry evicted) {
+        if (index == null) {
+            return;
+        }
+        if (evicted != null) {
+            index.remove(key, evicted);
+        }
+        index.add(key, added);
+    }
+
+    private void account(HistoryEntry added, HistoryEntry evicted) {
+        if (evicted == null) {
+            messages.increment();
+            bytes.add(sizeOf(added));
+        } else {
+            bytes.add(sizeOf(added) - sizeOf(evicted));
+        }
+    }
+
+    /**
+     * Rough retained size of an entry: the record, its two strings and their Latin-1 or UTF-16 contents
+     */
+    private static long sizeOf(HistoryEntry entry) {
+        return 96 + 2L * (entry.senderName().length() + entry.message().length());
+    }
+
+    /**
+     * Get a copy of a conversation's messages
+     * @param key The conversation to read
+     * @return The messages, oldest first, or an empty list if there are none
+     */
+    public List<HistoryEntry> read(ConversationKey key) {
+        MessageRing ring = conversations.get(key);
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+        synchronized (lockFor(key)) {
+            return ring.toList();
+        }
+    }
+
+    /**
+     * Read one page of a conversation's messages, newest first. Only the page is copied, so
+     * paging costs the same however long the conversation is
+     * @param key The conversation to read
+     * @param offset How many of the newest messages to skip
+     * @param limit The maximum number of messages in the page
+     * @return The page, empty if the conversation has no messages past the offset
+     */
+    public HistoryPage readPage(ConversationKey key, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative: " + offset + ", " + limit);
+        }
+        MessageRing ring = conversations.get(key);
+        if (ring == null) {
+            return new HistoryPage(Collections.emptyList(), offset, 0);
+        }
+        synchronized (lockFor(key)) {
+            return new HistoryPage(ring.newest(offset, limit), offset, ring.size());
+        }
+    }
+
+    /**
+     * Seed an empty conversation with older messages loaded from disk. Does nothing if the
+     * conversation already holds messages, so a message stored concurrently is never reordered.
+     * @param key The conversation to seed
+     * @param entries The messages, oldest first
+     * @return True if the conversation was seeded
+     */
+    public boolean fillIfEmpty(ConversationKey key, List<HistoryEntry> entries) {
+        if (entries.isEmpty()) {
+            return false;
+        }
+        MessageRing ring = conversations.computeIfAbsent(key, k -> new MessageRing(capacity));
+        synchronized (lockFor(key)) {
+            if (ring.size() > 0) {
+                return false;
+            }
+            for (HistoryEntry entry : entries) {
+                HistoryEntry evicted = ring.add(entry);
+                updateIndex(key, entry, evicted);
+                account(entry, evicted);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Visit a copy of every conversation, for persistence
+     * @param consumer Called with each conversation key and its messages, oldest first
+     */
+    public void forEach(BiConsumer<ConversationKey, List<HistoryEntry>> consumer) {
+        for (ConversationKey key : new ArrayList<>(conversations.keySet())) {
+            List<HistoryEntry> entries = read(key);
+            if (!entries.isEmpty()) {
+                consumer.accept(key, entries);
+            }
+        }
+    }
+
+    /**
+     * Get the number of conversations currently held
+     * @return The conversation count
+     */
+    public int size() {
+        return conversations.size();
+    }
+
+    /**
+     * Get the number of messages held across all conversations
+     * @return The message count
+     */
+    public long messageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Get an estimate of the memory the held messages take up
+     * @return The approximate size in bytes
+     */
+    public long approximateBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get the search index kept over the messages
+     * @return The index, or null if the store has none
+     */
+    public HistoryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the maximum number of messages kept per conversation
+     * @return The per-conversation capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,21 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.UUID;
+
+/**
+ * A single message stored in a conversation's history
+ * @param timestamp When the message was sent, in epoch milliseconds
+ * @param sender The UUID of the player who sent the message
+ * @param senderName The sender's name at the time the message was sent
+ * @param message The message text
+ */
+public record HistoryEntry(long timestamp, UUID sender, String senderName, String message) {
+
+    /**
+     * Format the entry the way it is shown in /whisper history
+     * @return The entry as {@code "name: message"}
+     */
+    public String format() {
+        return senderName + ": " + message;
+    }
+}
@@ -0,0 +1,436 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inverted index over the messages held in a {@link ConversationStore}, for searching a
+ * player's history across all their conversations.
+ * <p>
+ * Every player has a term dictionary mapping each lowercased word to the messages containing
+ * it, oldest first. A prefix query scans the words in sorted order, and a search walks the
+ * matching lists backwards, merging them newest first, and stops as soon as it has enough
+ * results, so it costs about the same whether a word appears ten times or ten thousand.
+ * <p>
+ * Messages are indexed under both players of their conversation. The store adds and removes
+ * postings as messages come and go, under the conversation's stripe lock, so a search never
+ * returns a message the store has evicted. Each player's dictionary is written by one thread at
+ * a time and read without locking, and is dropped once its last message is evicted.
+ */
+public class HistoryIndex {
+
+    /**
+     * A message found by a search
+     */
+    public static final class Posting {
+        private final ConversationKey conversation;
+        private final HistoryEntry entry;
+        private final long timestamp;
+        // Tells apart messages with the same timestamp
+        private final long id;
+        // Set once the store evicts the message; the lists drop it lazily
+        private volatile boolean removed;
+
+        private Posting(ConversationKey conversation, HistoryEntry entry, long timestamp, long id) {
+            this.conversation = conversation;
+            this.entry = entry;
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+
+        /**
+         * @return The conversation the message belongs to
+         */
+        public ConversationKey conversation() {
+            return conversation;
+        }
+
+        /**
+         * @return The message
+         */
+        public HistoryEntry entry() {
+            return entry;
+        }
+    }
+
+    private static final int MAX_TERM_LENGTH = 32;
+    // Ids go up as messages are indexed, so within a millisecond the later message sorts last
+    private static final Comparator<Posting> OLDEST_FIRST = (a, b) -> a.timestamp != b.timestamp ?
+        Long.compare(a.timestamp, b.timestamp) : Long.compare(a.id, b.id);
+    private static final Comparator<Posting> NEWEST_FIRST = OLDEST_FIRST.reversed();
+
+    private final Map<UUID, PlayerTerms> players = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Index a message the store just took in
+     */
+    void add(ConversationKey conversation, HistoryEntry entry) {
+        Set<String> terms = terms(entry.message());
+        if (terms.isEmpty()) {
+            return;
+        }
+        Posting posting = new Posting(conversation, entry, entry.timestamp(), nextId.getAndIncrement());
+        add(conversation.low(), terms, posting);
+        if (!conversation.high().equals(conversation.low())) {
+            add(conversation.high(), terms, posting);
+        }
+    }
+
+    private void add(UUID playerUUID, Set<String> terms, Posting posting) {
+        // Inside compute, so a dictionary can't be dropped for being empty while it is added to
+        players.compute(playerUUID, (uuid, dictionary) -> {
+            PlayerTerms updated = dictionary != null ? dictionary : new PlayerTerms();
+            updated.add(terms, posting);
+            return updated;
+        });
+    }
+
+    /**
+     * Drop a message the store evicted
+     */
+    void remove(ConversationKey conversation, HistoryEntry entry) {
+        Set<String> terms = terms(entry.message());
+        if (terms.isEmpty()) {
+            return;
+        }
+        PlayerTerms low = players.get(conversation.low());
+        // Both players share the posting, so one lookup finds it for both
+        Posting posting = low != null ? low.find(terms.iterator().next(), entry) : null;
+        if (posting == null) {
+            return;
+        }
+        posting.removed = true;
+        remove(conversation.low(), terms);
+        if (!conversation.high().equals(conversation.low())) {
+            remove(conversation.high(), terms);
+        }
+    }
+
+    private void remove(UUID playerUUID, Set<String> terms) {
+        players.computeIfPresent(playerUUID, (uuid, dictionary) -> {
+            dictionary.remove(terms);
+            return dictionary.isEmpty() ? null : dictionary;
+        });
+    }
+
+    /**
+     * Search a player's history. Every word of the query has to match; a word ending in
+     * {@code *} matches any word starting with it
+     * @param playerUUID The player whose conversations to search
+     * @param query The words to look for
+     * @param from The earliest timestamp to include, in epoch milliseconds
+     * @param to The latest timestamp to include, in epoch milliseconds
+     * @param limit The maximum number of results
+     * @return The matching messages, newest first
+     */
+    public List<Posting> search(UUID playerUUID, String query, long from, long to, int limit) {
+        PlayerTerms dictionary = players.get(playerUUID);
+        List<String> words = queryWords(query);
+        if (dictionary == null || words.isEmpty() || limit <= 0 || from > to) {
+            return List.of();
+        }
+
+        // Walk the most selective word's lists and check the others against each message's text
+        words.sort(Comparator.comparing((String word) -> word.endsWith("*")).thenComparing(word -> -word.length()));
+        Collection<PostingList.View> lists = dictionary.lookup(words.get(0));
+        List<String> others = words.subList(1, words.size());
+
+        PriorityQueue<Cursor> merge = new PriorityQueue<>(Math.max(1, lists.size()),
+            (a, b) -> NEWEST_FIRST.compare(a.current, b.current));
+        Posting newest = new Posting(null, null, to, Long.MAX_VALUE);
+        Posting oldest = new Posting(null, null, from, Long.MIN_VALUE);
+        for (PostingList.View postings : lists) {
+            Cursor cursor = new Cursor(postings.postings(), position(postings, oldest), position(postings, newest));
+            if (cursor.advance()) {
+                merge.add(cursor);
+            }
+        }
+
+        List<Posting> results = new ArrayList<>(Math.min(limit, 64));
+        Posting previous = null;
+        while (!merge.isEmpty() && results.size() < limit) {
+            Cursor cursor = merge.poll();
+            Posting posting = cursor.current;
+            // A prefix can match several words of the same message; the merge brings them together
+            if (posting != previous && matchesAll(posting, others)) {
+                results.add(posting);
+            }
+            previous = posting;
+            if (cursor.advance()) {
+                merge.add(cursor);
+            }
+        }
+        return results;
+    }
+
+    private static boolean matchesAll(Posting posting, List<String> words) {
+        if (words.isEmpty()) {
+            return true;
+        }
+        Set<String> terms = terms(posting.entry.message());
+        for (String word : words) {
+            if (!matches(terms, word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Set<String> terms, String word) {
+        if (!word.endsWith("*")) {
+            return terms.contains(word);
+        }
+        String prefix = word.substring(0, word.length() - 1);
+        for (String term : terms) {
+            if (term.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of players with indexed messages
+     * @return The player count
+     */
+    public int size() {
+        return players.size();
+    }
+
+    /**
+     * Split a message into the distinct lowercased words it is indexed under
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private static List<String> queryWords(String query) {
+        List<String> words = new ArrayList<>();
+        for (String part : query.trim().split("\\s+")) {
+            boolean prefix = part.endsWith("*");
+            // Normalize the same way messages are, then restore the wildcard
+            Set<String> terms = terms(prefix ? part.substring(0, part.length() - 1) : part);
+            if (terms.size() == 1) {
+                words.add(terms.iterator().next() + (prefix ? "*" : ""));
+            } else {
+                words.addAll(terms);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Position in one posting list during a merge, walking from the newest posting in range
+     * down to the oldest
+     */
+    private static final class Cursor {
+        private final Posting[] postings;
+        private final int start;
+        private int index;
+        private Posting current;
+
+        private Cursor(Posting[] postings, int start, int end) {
+            this.postings = postings;
+            this.start = start;
+            this.index = end;
+        }
+
+        private boolean advance() {
+            while (index > start) {
+                Posting posting = postings[--index];
+                if (!posting.removed) {
+                    current = posting;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Find where a posting sorts in a list, or would be inserted
+     */
+    private static int position(PostingList.View postings, Posting posting) {
+        int index = Arrays.binarySearch(postings.postings(), 0, postings.length(), posting, OLDEST_FIRST);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * One word's postings, oldest first. New messages are almost always the newest, so they are
+     * written to the next free slot of an array that doubles when full and then published with
+     * a new length; a search takes the published view once and never reads past its length, so
+     * it doesn't see the writer at work. Evicted messages are only marked, and are dropped all at
+     * once when they outnumber the rest.
+     */
+    private static final class PostingList {
+        private volatile View view = new View(new Posting[4], 0);
+        private int live;
+        private int removed;
+
+        /**
+         * The postings a search sees: the first {@code length} slots of the array
+         */
+        private record View(Posting[] postings, int length) {
+        }
+
+        void add(Posting posting) {
+            View current = view;
+            Posting[] postings = current.postings;
+            int length = current.length;
+            live++;
+            if (length > 0 && OLDEST_FIRST.compare(posting, postings[length - 1]) < 0) {
+                // Older than the newest, e.g. copied from another server; searches may be
+                // reading the array, so insert into a copy
+                Posting[] copy = new Posting[Math.max(4, (live + 1) * 2)];
+                int copied = compact(postings, length, copy, posting);
+                removed = 0;
+                view = new View(copy, copied);
+                return;
+            }
+            if (length == postings.length) {
+                postings = Arrays.copyOf(postings, length * 2);
+            }
+            postings[length] = posting;
+            view = new View(postings, length + 1);
+        }
+
+        /**
+         * Count a marked posting as removed
+         * @return True if the list has no postings left
+         */
+        boolean remove() {
+            live--;
+            removed++;
+            if (live == 0) {
+                return true;
+            }
+            if (removed > live) {
+                View current = view;
+                Posting[] copy = new Posting[Math.max(4, live * 2)];
+                int copied = compact(current.postings, current.length, copy, null);
+                removed = 0;
+                view = new View(copy, copied);
+            }
+            return false;
+        }
+
+        /**
+         * Copy the postings that are still live, in order, merging in an extra one if given
+         */
+        private static int compact(Posting[] postings, int length, Posting[] target, Posting extra) {
+            int copied = 0;
+            for (int i = 0; i < length; i++) {
+                if (extra != null && OLDEST_FIRST.compare(extra, postings[i]) < 0) {
+                    target[copied++] = extra;
+                    extra = null;
+                }
+                if (!postings[i].removed) {
+                    target[copied++] = postings[i];
+                }
+            }
+            if (extra != null) {
+                target[copied++] = extra;
+            }
+            return copied;
+        }
+    }
+
+    /**
+     * One player's term dictionary. Words are looked up by hash; the sorted copy of the words is
+     * only for prefix queries and only changes when a word first appears or disappears.
+     */
+    private static final class PlayerTerms {
+        private final Map<String, PostingList> terms = new ConcurrentHashMap<>();
+        private final NavigableSet<String> sortedTerms = new ConcurrentSkipListSet<>();
+
+        synchronized void add(Set<String> words, Posting posting) {
+            for (String word : words) {
+                PostingList postings = terms.get(word);
+                if (postings == null) {
+                    postings = new PostingList();
+                    terms.put(word, postings);
+                    sortedTerms.add(word);
+                }
+                postings.add(posting);
+            }
+        }
+
+        /**
+         * Drop a posting that has been marked removed from the lists of its words
+         */
+        synchronized void remove(Set<String> words) {
+            for (String word : words) {
+                PostingList postings = terms.get(word);
+                if (postings != null && postings.remove()) {
+                    sortedTerms.remove(word);
+                    terms.remove(word);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return terms.isEmpty();
+        }
+
+        /**
+         * Find the posting of a message among those with its timestamp
+         */
+        Posting find(String word, HistoryEntry entry) {
+            PostingList list = terms.get(word);
+            if (list == null) {
+                return null;
+            }
+            PostingList.View postings = list.view;
+            Posting[] array = postings.postings();
+            int index = position(postings, new Posting(null, null, entry.timestamp(), Long.MIN_VALUE));
+            for (; index < postings.length() && array[index].timestamp == entry.timestamp(); index++) {
+                if (array[index].entry == entry && !array[index].removed) {
+                    return array[index];
+                }
+            }
+            return null;
+        }
+
+        Collection<PostingList.View> lookup(String word) {
+            if (word.endsWith("*")) {
+                String prefix = word.substring(0, word.length() - 1);
+                List<PostingList.View> matches = new ArrayList<>();
+                for (String term : sortedTerms.subSet(prefix, true, prefix + Character.MAX_VALUE, false)) {
+                    PostingList postings = terms.get(term);
+                    if (postings != null) {
+                        matches.add(postings.view);
+                    }
+                }
+                return matches;
+            }
+            PostingList postings = terms.get(word);
+            return postings == null ? List.of() : List.of(postings.view);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.List;
+
+/**
+ * A window of a conversation's history, counted back from the newest message
+ * @param entries The messages in the window, newest first
+ * @param offset How many newer messages come before the window
+ * @param total How many messages the conversation held when the window was read
+ */
+public record HistoryPage(List<HistoryEntry> entries, int offset, int total) {
+
+    /**
+     * Check whether there are newer messages than the ones in this window
+     * @return True if the window doesn't start at the newest message
+     */
+    public boolean hasNewer() {
+        return offset > 0;
+    }
+
+    /**
+     * Check whether there are older messages than the ones in this window
+     * @return True if the window doesn't reach the oldest message
+     */
+    public boolean hasOlder() {
+        return offset + entries.size() < total;
+    }
+}
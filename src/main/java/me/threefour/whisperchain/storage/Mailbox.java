@@ -0,0 +1,279 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.utils.CipherEngine;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-player queues of whispers sent while the recipient was offline.
+ * <p>
+ * Each recipient has one append-only file, capped at a fixed size. Every file operation runs on
+ * a single mailbox thread, so appends, reads and removals of the same mailbox never interleave
+ * and callers never wait on disk I/O. Reading leaves the messages in place; they are only
+ * removed once they have been delivered, so a restart or crash mid-delivery loses nothing.
+ * <p>
+ * Record layout: {@code int length, byte flags, payload}, where the payload is
+ * {@code long timestamp, sender uuid, short nameLength, name, int messageLength, message}.
+ * When the mailbox has a storage key the payload is sealed, with the recipient's UUID as
+ * additional data so a record can't be moved into someone else's mailbox.
+ */
+public class Mailbox {
+
+    private static final byte FLAG_SEALED = 1;
+    private static final int RECORD_HEADER_LENGTH = 5;
+    private static final String MAILBOX_SUFFIX = ".mail";
+
+    private final Path directory;
+    private final Logger logger;
+    private final long maxBytes;
+    private final SecretKey storageKey;
+    private final CipherEngine cipherEngine;
+    private final boolean sealWrites;
+    private final ExecutorService io;
+
+    /**
+     * Open the mailboxes in a directory
+     * @param directory The directory holding one file per recipient
+     * @param logger The logger to report I/O failures to
+     * @param maxBytes The maximum size of a single mailbox file
+     * @param storageKey The key for sealed records, or null if there is none
+     * @param cipherEngine The cipher engine used with the storage key
+     * @param sealWrites Whether new records are sealed under the storage key
+     */
+    public Mailbox(Path directory, Logger logger, long maxBytes,
+                   SecretKey storageKey, CipherEngine cipherEngine, boolean sealWrites) throws IOException {
+        this.directory = directory;
+        this.logger = logger;
+        this.maxBytes = maxBytes;
+        this.storageKey = storageKey;
+        this.cipherEngine = cipherEngine;
+        this.sealWrites = sealWrites && storageKey != null;
+
+        Files.createDirectories(directory);
+        this.io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WhisperChain Mailbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a message in a recipient's mailbox
+     * @param recipient The UUID of the offline recipient
+     * @param entry The message to keep for them
+     * @return A future completed with true once stored, or false if the mailbox is full or unwritable
+     */
+    public CompletableFuture<Boolean> deposit(UUID recipient, HistoryEntry entry) {
+        return submit(() -> {
+            try {
+                return append(recipient, entry);
+            } catch (IOException | GeneralSecurityException e) {
+                logger.log(Level.WARNING, "Failed to write to mailbox of " + recipient, e);
+                return false;
+            }
+        }, false);
+    }
+
+    /**
+     * Read every message in a recipient's mailbox, leaving them there until {@link #remove}
+     * @param recipient The UUID of the recipient
+     * @return A future completed with the messages, oldest first
+     */
+    public CompletableFuture<List<HistoryEntry>> read(UUID recipient) {
+        return submit(() -> {
+            Path file = fileOf(recipient);
+            if (!Files.isRegularFile(file)) {
+                return List.of();
+            }
+            try {
+                List<StoredRecord> records = parse(recipient, ByteBuffer.wrap(Files.readAllBytes(file)));
+                List<HistoryEntry> entries = new ArrayList<>(records.size());
+                for (StoredRecord record : records) {
+                    if (record.entry() != null) {
+                        entries.add(record.entry());
+                    }
+                }
+                return entries;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read mailbox of " + recipient, e);
+                return List.of();
+            }
+        }, List.of());
+    }
+
+    /**
+     * Remove delivered messages from a recipient's mailbox. Messages deposited since they were
+     * read stay, as do ones that were already removed
+     * @param recipient The UUID of the recipient
+     * @param delivered The messages that have been delivered
+     * @return A future completed once the mailbox has been rewritten
+     */
+    public CompletableFuture<Void> remove(UUID recipient, List<HistoryEntry> delivered) {
+        List<HistoryEntry> pending = new ArrayList<>(delivered);
+        return submit(() -> {
+            Path file = fileOf(recipient);
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            try {
+                ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+                ByteBuffer kept = ByteBuffer.allocate(contents.capacity());
+                for (StoredRecord record : parse(recipient, contents.duplicate())) {
+                    // Unreadable records go too; they could never be delivered
+                    if (record.entry() != null && !pending.remove(record.entry())) {
+                        kept.put(contents.slice(record.offset(), record.length()));
+                    }
+                }
+                if (kept.position() == 0) {
+                    Files.delete(file);
+                } else {
+                    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+                    Files.write(tempFile, Arrays.copyOf(kept.array(), kept.position()));
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to remove delivered messages from mailbox of " + recipient, e);
+            }
+            return null;
+        }, null);
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task, T fallback) {
+        try {
+            return CompletableFuture.supplyAsync(task, io);
+        } catch (RejectedExecutionException e) {
+            // Closed: nothing can be stored or read any more
+            return CompletableFuture.completedFuture(fallback);
+        }
+    }
+
+    private Path fileOf(UUID recipient) {
+        return directory.resolve(recipient + MAILBOX_SUFFIX);
+    }
+
+    private boolean append(UUID recipient, HistoryEntry entry) throws IOException, GeneralSecurityException {
+        byte[] name = entry.senderName().getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.message().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 16 + 2 + name.length + 4 + message.length);
+        payload.putLong(entry.timestamp());
+        payload.putLong(entry.sender().getMostSignificantBits());
+        payload.putLong(entry.sender().getLeastSignificantBits());
+        payload.putShort((short) name.length);
+        payload.put(name);
+        payload.putInt(message.length);
+        payload.put(message);
+
+        byte[] body = sealWrites ? cipherEngine.seal(storageKey, payload.array(), uuidBytes(recipient)) : payload.array();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+        record.putInt(body.length + 1);
+        record.put(sealWrites ? FLAG_SEALED : 0);
+        record.put(body);
+        record.flip();
+
+        try (FileChannel channel = FileChannel.open(fileOf(recipient), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (channel.size() + record.remaining() > maxBytes) {
+                return false;
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        }
+        return true;
+    }
+
+    /**
+     * A record as found in a mailbox file
+     * @param entry The message, or null if it couldn't be read
+     * @param offset Where the record starts in the file
+     * @param length The length of the record, header included
+     */
+    private record StoredRecord(HistoryEntry entry, int offset, int length) {
+    }
+
+    private List<StoredRecord> parse(UUID recipient, ByteBuffer in) {
+        List<StoredRecord> entries = new ArrayList<>();
+        byte[] aad = uuidBytes(recipient);
+        while (in.remaining() >= RECORD_HEADER_LENGTH) {
+            int offset = in.position();
+            int length = in.getInt();
+            if (length < 1 || length > in.remaining()) {
+                // Torn write at the end of the file: everything before it is still good
+                logger.warning("Mailbox of " + recipient + " ends with an incomplete message, dropping it");
+                break;
+            }
+            byte flags = in.get();
+            byte[] body = new byte[length - 1];
+            in.get(body);
+
+            try {
+                byte[] payload = (flags & FLAG_SEALED) != 0 ? openSealed(body, aad) : body;
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                long timestamp = record.getLong();
+                UUID sender = new UUID(record.getLong(), record.getLong());
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                byte[] message = new byte[record.getInt()];
+                record.get(message);
+                entries.add(new StoredRecord(new HistoryEntry(timestamp, sender,
+                    new String(name, StandardCharsets.UTF_8), new String(message, StandardCharsets.UTF_8)),
+                    offset, in.position() - offset));
+            } catch (GeneralSecurityException | RuntimeException e) {
+                logger.log(Level.WARNING, "Skipping unreadable message in mailbox of " + recipient, e);
+                entries.add(new StoredRecord(null, offset, in.position() - offset));
+            }
+        }
+        return entries;
+    }
+
+    private byte[] openSealed(byte[] body, byte[] aad) throws GeneralSecurityException {
+        if (storageKey == null) {
+            throw new GeneralSecurityException("Message is sealed but there is no storage key");
+        }
+        return cipherEngine.open(storageKey, body, aad);
+    }
+
+    private static byte[] uuidBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    /**
+     * Finish pending mailbox writes and stop the mailbox thread
+     */
+    public void close() {
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Some offline messages were not saved before shutdown");
+                io.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package me.threefour.whisperchain.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring buffer of history entries, oldest entries overwritten first.
+ * <p>
+ * Not thread-safe on its own; {@link ConversationStore} guards each ring with its stripe lock.
+ */
+final class MessageRing {
+
+    private final HistoryEntry[] entries;
+    private int head;
+    private int size;
+
+    MessageRing(int capacity) {
+        this.entries = new HistoryEntry[capacity];
+    }
+
+    /**
+     * Append an entry, overwriting the oldest one when full
+     * @param entry The entry to append
+     * @return The entry that was overwritten, or null if the ring had room
+     */
+    HistoryEntry add(HistoryEntry entry) {
+        int tail = (head + size) % entries.length;
+        HistoryEntry evicted = null;
+        if (size == entries.length) {
+            evicted = entries[head];
+            head = (head + 1) % entries.length;
+        } else {
+            size++;
+        }
+        entries[tail] = entry;
+        return evicted;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copy the entries out, oldest first
+     * @return A new list holding every entry in the ring
+     */
+    List<HistoryEntry> toList() {
+        List<HistoryEntry> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            copy.add(entries[(head + i) % entries.length]);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy out a window of entries, newest first. Only the window is touched, however many
+     * entries the ring holds
+     * @param skip How many of the newest entries to skip
+     * @param limit The maximum number of entries to copy
+     * @return A new list holding the window
+     */
+    List<HistoryEntry> newest(int skip, int limit) {
+        int count = Math.max(0, Math.min(limit, size - skip));
+        List<HistoryEntry> copy = new ArrayList<>(count);
+        for (int i = size - 1 - skip; copy.size() < count; i--) {
+            copy.add(entries[(head + i) % entries.length]);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,297 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.WhisperChain;
+import me.threefour.whisperchain.listeners.ChatListener;
+import me.threefour.whisperchain.managers.ChatManager;
+import me.threefour.whisperchain.utils.CipherEngine;
+import me.threefour.whisperchain.utils.Encryption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes the plugin's in-memory state to a compact binary file and restores it on enable.
+ * <p>
+ * The file is a header, a series of sections and a trailing CRC32 of everything before it.
+ * Writes go to a temporary file that is atomically moved into place, so a crash mid-write
+ * leaves the previous snapshot intact. Restores read the file through a memory mapping.
+ * <p>
+ * With encrypted storage on, everything after the header is sealed under the storage key in
+ * one AES-GCM operation. Player keys are only written into a sealed snapshot; an unsealed one
+ * leaves them out and players get fresh keys after a restart.
+ */
+public class StateSnapshot {
+
+    private static final int MAGIC = 0x57435331; // "WCS1"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 9;
+    private static final int TRAILER_LENGTH = 8;
+    private static final byte FLAG_SEALED = 1;
+
+    private final WhisperChain plugin;
+    private final Path file;
+    private final Path tempFile;
+    private final SecretKey storageKey;
+    private final CipherEngine cipherEngine;
+    private final boolean sealWrites;
+
+    /**
+     * @param plugin The plugin whose state to save
+     * @param file The snapshot file
+     * @param storageKey The key for sealing the snapshot, or null if there is none
+     * @param sealWrites Whether new snapshots are sealed under the storage key
+     */
+    public StateSnapshot(WhisperChain plugin, Path file, SecretKey storageKey, boolean sealWrites) {
+        this.plugin = plugin;
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.storageKey = storageKey;
+        this.cipherEngine = plugin.getEncryption().getCipherEngine();
+        this.sealWrites = sealWrites && storageKey != null;
+    }
+
+    /**
+     * Write a snapshot of the current state to disk
+     * @return True if the snapshot was written
+     */
+    public synchronized boolean save() {
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(sealWrites ? FLAG_SEALED : 0);
+                if (sealWrites) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+                    writeBody(new DataOutputStream(body));
+                    out.write(cipherEngine.seal(storageKey, body.toByteArray(), header(FLAG_SEALED)));
+                } else {
+                    writeBody(out);
+                }
+                out.flush();
+
+                // The checksum itself is not part of the checksummed range
+                long checksum = crc.getValue();
+                out.writeLong(checksum);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to write state snapshot", e);
+            return false;
+        }
+    }
+
+    private void writeBody(DataOutputStream out) throws IOException {
+        // Raw player keys only ever go to disk sealed
+        writeKeys(out, sealWrites ? plugin.getEncryption() : null);
+        writeSessions(out, plugin.getChatManager());
+        writeHistory(out, plugin.getChatManager().getConversationStore());
+        writeReplyTargets(out, plugin.getChatListener());
+        out.flush();
+    }
+
+    private static byte[] header(byte flags) {
+        return ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).put(flags).array();
+    }
+
+    /**
+     * Restore state from the last snapshot, if there is one
+     * @return True if a snapshot was found and restored
+     */
+    public synchronized boolean restore() {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH + TRAILER_LENGTH || size > Integer.MAX_VALUE) {
+                plugin.getLogger().warning("Ignoring state snapshot with invalid size " + size);
+                return false;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int bodyEnd = (int) size - TRAILER_LENGTH;
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, bodyEnd));
+            if (crc.getValue() != buffer.getLong(bodyEnd)) {
+                plugin.getLogger().warning("Ignoring state snapshot with a bad checksum");
+                return false;
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                plugin.getLogger().warning("Ignoring state snapshot with an unknown format");
+                return false;
+            }
+
+            byte flags = buffer.get();
+            buffer.limit(bodyEnd);
+            ByteBuffer body = buffer;
+            if ((flags & FLAG_SEALED) != 0) {
+                if (storageKey == null) {
+                    plugin.getLogger().warning("Ignoring sealed state snapshot, storage.key is missing");
+                    return false;
+                }
+                // Decrypt straight from the mapping
+                body = ByteBuffer.allocate(Math.max(0, buffer.remaining() - CipherEngine.NONCE_LENGTH - CipherEngine.TAG_LENGTH));
+                cipherEngine.open(storageKey, buffer, body, header(flags));
+                body.flip();
+            }
+
+            readKeys(body, plugin.getEncryption());
+            readSessions(body, plugin.getChatManager());
+            readHistory(body, plugin.getChatManager().getConversationStore());
+            readReplyTargets(body, plugin.getChatListener());
+            return true;
+        } catch (GeneralSecurityException e) {
+            plugin.getLogger().warning("Ignoring state snapshot that doesn't open with storage.key");
+            return false;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to restore state snapshot", e);
+            return false;
+        }
+    }
+
+    private void writeKeys(DataOutputStream out, Encryption encryption) throws IOException {
+        // Copy first so the count always matches the entries written
+        List<Map.Entry<UUID, SecretKey>> keys = encryption == null ? List.of() : new ArrayList<>(encryption.getPlayerKeys().entrySet());
+        out.writeInt(keys.size());
+        for (Map.Entry<UUID, SecretKey> entry : keys) {
+            writeUUID(out, entry.getKey());
+            byte[] encoded = entry.getValue().getEncoded();
+            out.writeByte(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private void readKeys(ByteBuffer in, Encryption encryption) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            UUID playerUUID = readUUID(in);
+            byte[] encoded = new byte[in.get() & 0xFF];
+            in.get(encoded);
+            encryption.restorePlayerKey(playerUUID, new SecretKeySpec(encoded, "AES"));
+        }
+    }
+
+    private void writeSessions(DataOutputStream out, ChatManager chatManager) throws IOException {
+        List<Map.Entry<UUID, List<UUID>>> sessions = new ArrayList<>();
+        chatManager.getAllActiveSessions().forEach((player, others) -> sessions.add(Map.entry(player, List.copyOf(others))));
+        out.writeInt(sessions.size());
+        for (Map.Entry<UUID, List<UUID>> entry : sessions) {
+            writeUUID(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (UUID other : entry.getValue()) {
+                writeUUID(out, other);
+            }
+        }
+    }
+
+    private void readSessions(ByteBuffer in, ChatManager chatManager) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            UUID playerUUID = readUUID(in);
+            int others = in.getInt();
+            for (int j = 0; j < others; j++) {
+                chatManager.restoreSession(playerUUID, readUUID(in));
+            }
+        }
+    }
+
+    private void writeHistory(DataOutputStream out, ConversationStore store) throws IOException {
+        List<Map.Entry<ConversationKey, List<HistoryEntry>>> conversations = new ArrayList<>(store.size());
+        store.forEach((key, entries) -> conversations.add(Map.entry(key, entries)));
+        out.writeInt(conversations.size());
+        for (Map.Entry<ConversationKey, List<HistoryEntry>> conversation : conversations) {
+            writeUUID(out, conversation.getKey().low());
+            writeUUID(out, conversation.getKey().high());
+            out.writeInt(conversation.getValue().size());
+            for (HistoryEntry entry : conversation.getValue()) {
+                out.writeLong(entry.timestamp());
+                writeUUID(out, entry.sender());
+                writeString(out, entry.senderName());
+                writeString(out, entry.message());
+            }
+        }
+    }
+
+    private void readHistory(ByteBuffer in, ConversationStore store) {
+        int conversations = in.getInt();
+        for (int i = 0; i < conversations; i++) {
+            ConversationKey key = ConversationKey.of(readUUID(in), readUUID(in));
+            int count = in.getInt();
+            for (int j = 0; j < count; j++) {
+                store.append(key, new HistoryEntry(in.getLong(), readUUID(in), readString(in), readString(in)));
+            }
+        }
+    }
+
+    private void writeReplyTargets(DataOutputStream out, ChatListener chatListener) throws IOException {
+        List<Map.Entry<UUID, ChatListener.ReplyTarget>> targets = new ArrayList<>(chatListener.getReplyTargets().entrySet());
+        out.writeInt(targets.size());
+        for (Map.Entry<UUID, ChatListener.ReplyTarget> entry : targets) {
+            writeUUID(out, entry.getKey());
+            writeUUID(out, entry.getValue().target());
+            out.writeLong(entry.getValue().setAt());
+        }
+    }
+
+    private void readReplyTargets(ByteBuffer in, ChatListener chatListener) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            chatListener.setReplyTarget(readUUID(in), readUUID(in), in.getLong());
+        }
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
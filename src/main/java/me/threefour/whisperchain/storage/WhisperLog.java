@@ -0,0 +1,733 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.utils.CipherEngine;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk log of whisper history.
+ * <p>
+ * Callers only enqueue records; a single writer thread drains the queue once per server tick
+ * and commits everything it found as one block, with one channel write and one fsync. Segments
+ * are named after the sequence number of their first record and are read through memory
+ * mappings.
+ * <p>
+ * Block layout: {@code int bodyLength, byte flags, int recordCount, long firstSequence,
+ * int crc32(body), body}. The body is the concatenation of the block's records. When the
+ * log has a storage key, the body is instead {@code short tagCount, int[] tags, sealed records}
+ * and is only decrypted when a read asks for one of its conversations. A record copied from
+ * another server ends with its {@link Origin}, so it is committed in the same block as the
+ * record itself.
+ * <p>
+ * Each segment has an in-memory index from conversation tag to the blocks holding that
+ * conversation, so reading a conversation only touches, and only decrypts, blocks that can
+ * contain it. The active segment's index is kept up to date as blocks are written; older
+ * segments are indexed from their block headers the first time they are read.
+ */
+public class WhisperLog {
+
+    static final int BLOCK_HEADER_LENGTH = 21;
+    private static final byte FLAG_SEALED = 1;
+    private static final long TICK_MILLIS = 50;
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final Logger logger;
+    private final long retentionMillis;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Map<Path, MappedByteBuffer> sealedMappings = new ConcurrentHashMap<>();
+    private final Map<Path, BlockIndex> indexes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService writer;
+    private final BlockSealer sealer;
+    private final boolean sealWrites;
+
+    private FileChannel activeChannel;
+    private BlockIndex activeIndex;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile long nextSequence;
+
+    /**
+     * Open the log in a directory, recovering the sequence counter from the last segment
+     * @param directory The directory holding the segment files
+     * @param logger The logger to report write failures to
+     * @param retentionDays How many days to keep sealed segments, or -1 to keep them forever
+     * @param storageKey The key for reading sealed blocks, or null if there is none
+     * @param cipherEngine The cipher engine used with the storage key
+     * @param sealWrites Whether new blocks are sealed under the storage key
+     */
+    public WhisperLog(Path directory, Logger logger, int retentionDays,
+                      SecretKey storageKey, CipherEngine cipherEngine, boolean sealWrites) throws IOException {
+        this.directory = directory;
+        this.logger = logger;
+        this.retentionMillis = retentionDays < 0 ? -1 : TimeUnit.DAYS.toMillis(retentionDays);
+        this.sealer = storageKey != null ? new BlockSealer(storageKey, cipherEngine) : null;
+        this.sealWrites = sealWrites && sealer != null;
+
+        Files.createDirectories(directory);
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    found.add(new Segment(path, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring unexpected file in history log: " + name);
+                }
+            }
+        }
+        found.sort(null);
+        segments.addAll(found);
+
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            recoverActiveSegment(segments.get(segments.size() - 1));
+        }
+
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WhisperChain History Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flushQuietly, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a history record for the next group commit. Never blocks on disk I/O.
+     * @param key The conversation the record belongs to
+     * @param entry The record to write
+     */
+    public void append(ConversationKey key, HistoryEntry entry) {
+        append(key, entry, null);
+    }
+    
+    /**
+     * Queue a history record copied from another server for the next group commit
+     * @param key The conversation the record belongs to
+     * @param entry The record to write
+     * @param origin Where the record was copied from, or null if it was recorded here
+     */
+    public void append(ConversationKey key, HistoryEntry entry, Origin origin) {
+        queue.add(new Pending(key, entry, origin));
+    }
+    
+    /**
+     * Wait until everything queued so far has been committed. Returns right away once the log
+     * is closed, as closing commits everything
+     */
+    public void sync() {
+        try {
+            writer.submit(this::flushQuietly).get();
+        } catch (RejectedExecutionException e) {
+            // Closed; close() does the last flush
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to write history log", e.getCause());
+        }
+    }
+
+    /**
+     * Read the newest records of a conversation
+     * @param key The conversation to read
+     * @param limit The maximum number of records to return
+     * @return Up to {@code limit} records, oldest first
+     */
+    public List<HistoryEntry> read(ConversationKey key, int limit) {
+        List<HistoryEntry> result = new ArrayList<>();
+        List<Segment> snapshot = new ArrayList<>(segments);
+        int tag = indexTag(key);
+        for (int i = snapshot.size() - 1; i >= 0 && result.size() < limit; i--) {
+            try {
+                List<HistoryEntry> matches = scanSegment(snapshot.get(i), i == snapshot.size() - 1, key, tag);
+                // Newest segment first: prepend this segment's matches in front of later ones
+                int take = Math.min(matches.size(), limit - result.size());
+                result.addAll(0, matches.subList(matches.size() - take, matches.size()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read history segment " + snapshot.get(i).path, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read committed records in log order, for shipping the log to another server
+     * @param fromSequence The sequence number of the first record wanted
+     * @param limit The maximum number of records to return
+     * @return Up to {@code limit} records from {@code fromSequence} on, oldest first. If the
+     *         records before some point have been pruned, the result starts at the oldest one left
+     */
+    public List<SequencedEntry> readFrom(long fromSequence, int limit) {
+        List<SequencedEntry> result = new ArrayList<>();
+        List<Segment> snapshot = new ArrayList<>(segments);
+        int first = 0;
+        for (int i = 1; i < snapshot.size() && snapshot.get(i).firstSequence <= fromSequence; i++) {
+            first = i;
+        }
+        for (int i = first; i < snapshot.size() && result.size() < limit; i++) {
+            try {
+                readSegment(snapshot.get(i), i == snapshot.size() - 1, fromSequence, limit, result);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read history segment " + snapshot.get(i).path, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Flush everything still queued and stop the writer thread
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("History writer did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close history log", e);
+        }
+        sealedMappings.clear();
+        indexes.clear();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to write history log", e);
+        }
+    }
+
+    /**
+     * Drain the queue and commit it as one block. Only ever runs on the writer thread,
+     * or on the closing thread once the writer has stopped.
+     */
+    private synchronized void flush() throws IOException {
+        if (queue.isEmpty()) {
+            return;
+        }
+
+        // Leave room for the header, fill in the body, then go back and write the header
+        ByteBuffer buffer = writeBuffer;
+        buffer.clear();
+        buffer.position(BLOCK_HEADER_LENGTH);
+        Set<ConversationKey> conversations = new HashSet<>();
+        int count = 0;
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            buffer = encode(buffer, pending);
+            conversations.add(pending.key);
+            count++;
+        }
+        writeBuffer = buffer;
+
+        int[] tags = new int[conversations.size()];
+        int i = 0;
+        for (ConversationKey conversation : conversations) {
+            tags[i++] = indexTag(conversation);
+        }
+        if (sealWrites) {
+            try {
+                writeBlock(sealBlock(buffer, count, tags), FLAG_SEALED, count, tags);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to seal history block", e);
+            }
+        } else {
+            writeBlock(buffer, (byte) 0, count, tags);
+        }
+    }
+
+    /**
+     * The tag a conversation is indexed under: the sealed block tag when there is a storage key
+     */
+    private int indexTag(ConversationKey key) {
+        return sealer != null ? sealer.tag(key) : key.hashCode();
+    }
+
+    /**
+     * Encrypt an encoded block body in one operation and prefix it with its conversation tags
+     */
+    private ByteBuffer sealBlock(ByteBuffer plain, int count, int[] tags) throws GeneralSecurityException {
+        byte[] body = new byte[plain.position() - BLOCK_HEADER_LENGTH];
+        plain.get(BLOCK_HEADER_LENGTH, body);
+        byte[] sealed = sealer.seal(body, blockAad(FLAG_SEALED, count, nextSequence));
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_LENGTH + 2 + tags.length * 4 + sealed.length);
+        block.position(BLOCK_HEADER_LENGTH);
+        block.putShort((short) tags.length);
+        for (int tag : tags) {
+            block.putInt(tag);
+        }
+        block.put(sealed);
+        return block;
+    }
+
+    private static byte[] blockAad(byte flags, int count, long firstSequence) {
+        return ByteBuffer.allocate(13).put(flags).putInt(count).putLong(firstSequence).array();
+    }
+
+    private void writeBlock(ByteBuffer buffer, byte flags, int count, int[] tags) throws IOException {
+        int bodyLength = buffer.position() - BLOCK_HEADER_LENGTH;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(BLOCK_HEADER_LENGTH, bodyLength));
+
+        long firstSequence = nextSequence;
+        buffer.putInt(0, bodyLength);
+        buffer.put(4, flags);
+        buffer.putInt(5, count);
+        buffer.putLong(9, firstSequence);
+        buffer.putInt(17, (int) crc.getValue());
+        buffer.flip();
+
+        int position = (int) activeChannel.size();
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+        activeChannel.force(false);
+        nextSequence = firstSequence + count;
+        // Only once it is on disk, so a read never looks for a block past the end of the file
+        activeIndex.add(tags, position);
+
+        if (activeChannel.size() >= SEGMENT_SIZE) {
+            activeChannel.close();
+            openSegment(nextSequence);
+            pruneExpiredSegments();
+        }
+    }
+
+    private ByteBuffer encode(ByteBuffer buffer, Pending pending) {
+        HistoryEntry entry = pending.entry;
+        byte[] name = entry.senderName().getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.message().getBytes(StandardCharsets.UTF_8);
+        byte[] node = pending.origin != null ? pending.origin.node().getBytes(StandardCharsets.UTF_8) : null;
+        int length = 8 + 16 * 3 + 2 + name.length + 4 + message.length + (node != null ? 2 + node.length + 8 : 0);
+
+        if (buffer.remaining() < 4 + length) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + 4 + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        buffer.putInt(length);
+        buffer.putLong(entry.timestamp());
+        putUUID(buffer, pending.key.low());
+        putUUID(buffer, pending.key.high());
+        putUUID(buffer, entry.sender());
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putInt(message.length);
+        buffer.put(message);
+        if (node != null) {
+            buffer.putShort((short) node.length);
+            buffer.put(node);
+            buffer.putLong(pending.origin.sequence());
+        }
+        return buffer;
+    }
+
+    private MappedByteBuffer mappingOf(Segment segment, boolean active) throws IOException {
+        // The active segment keeps growing, so map whatever has been written so far.
+        // Sealed segments never change and keep their mapping
+        if (active) {
+            return mapFile(segment.path);
+        }
+        MappedByteBuffer mapping = sealedMappings.get(segment.path);
+        if (mapping == null) {
+            mapping = mapFile(segment.path);
+            sealedMappings.put(segment.path, mapping);
+        }
+        return mapping;
+    }
+
+    private List<HistoryEntry> scanSegment(Segment segment, boolean active, ConversationKey key, int tag) throws IOException {
+        // Look the blocks up before mapping, so the mapping covers all of them
+        int[] blocks = indexOf(segment, active).positions(tag);
+        if (blocks.length == 0) {
+            return List.of();
+        }
+        MappedByteBuffer mapping = mappingOf(segment, active);
+        List<HistoryEntry> matches = new ArrayList<>();
+        for (int position : blocks) {
+            byte flags = mapping.get(position + 4);
+            int count = mapping.getInt(position + 5);
+            int bodyStart = position + BLOCK_HEADER_LENGTH;
+            if ((flags & FLAG_SEALED) == 0) {
+                scanRecords(mapping, bodyStart, count, key, matches);
+            } else if (sealer != null && hasTag(mapping, bodyStart, tag)) {
+                // Tags are 32 bits; another conversation can share one, so check the key inside
+                scanSealedBlock(mapping, position, key, matches);
+            }
+        }
+        return matches;
+    }
+
+    private BlockIndex indexOf(Segment segment, boolean active) throws IOException {
+        BlockIndex index = indexes.get(segment.path);
+        if (index != null) {
+            return index;
+        }
+        // Only older segments get here; the active one is indexed as it is written
+        index = buildIndex(mappingOf(segment, active));
+        BlockIndex raced = indexes.putIfAbsent(segment.path, index);
+        return raced != null ? raced : index;
+    }
+
+    /**
+     * Index a segment's intact blocks, from the tags of sealed blocks and the records of plain ones
+     */
+    private BlockIndex buildIndex(ByteBuffer mapping) {
+        BlockIndex index = new BlockIndex();
+        Map<ConversationKey, Integer> tags = new HashMap<>();
+        int position = 0;
+        int limit = mapping.limit();
+        while (position + BLOCK_HEADER_LENGTH <= limit) {
+            int bodyLength = mapping.getInt(position);
+            byte flags = mapping.get(position + 4);
+            int count = mapping.getInt(position + 5);
+            int bodyStart = position + BLOCK_HEADER_LENGTH;
+            if (bodyLength < 0 || bodyStart + bodyLength > limit) {
+                break; // Torn block at the tail
+            }
+            if ((flags & FLAG_SEALED) == 0) {
+                int record = bodyStart;
+                for (int i = 0; i < count; i++) {
+                    ConversationKey key = new ConversationKey(
+                        new UUID(mapping.getLong(record + 12), mapping.getLong(record + 20)),
+                        new UUID(mapping.getLong(record + 28), mapping.getLong(record + 36)));
+                    index.add(tags.computeIfAbsent(key, this::indexTag), position);
+                    record += 4 + mapping.getInt(record);
+                }
+            } else if (sealer != null) {
+                int tagCount = mapping.getShort(bodyStart) & 0xFFFF;
+                for (int i = 0; i < tagCount; i++) {
+                    index.add(mapping.getInt(bodyStart + 2 + i * 4), position);
+                }
+            }
+            position = bodyStart + bodyLength;
+        }
+        return index;
+    }
+
+    private static boolean hasTag(ByteBuffer mapping, int bodyStart, int tag) {
+        int tagCount = mapping.getShort(bodyStart) & 0xFFFF;
+        for (int i = 0; i < tagCount; i++) {
+            if (mapping.getInt(bodyStart + 2 + i * 4) == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrypt a sealed block that may hold the conversation and scan its records
+     */
+    private void scanSealedBlock(ByteBuffer mapping, int position, ConversationKey key, List<HistoryEntry> matches) {
+        try {
+            scanRecords(ByteBuffer.wrap(openSealedBlock(mapping, position)), 0, mapping.getInt(position + 5), key, matches);
+        } catch (GeneralSecurityException e) {
+            logger.warning("Skipping history block " + mapping.getLong(position + 9) + " that failed to decrypt: " + e.getMessage());
+        }
+    }
+
+    private byte[] openSealedBlock(ByteBuffer mapping, int position) throws GeneralSecurityException {
+        int bodyLength = mapping.getInt(position);
+        byte flags = mapping.get(position + 4);
+        int count = mapping.getInt(position + 5);
+        long firstSequence = mapping.getLong(position + 9);
+        int bodyStart = position + BLOCK_HEADER_LENGTH;
+        int sealedStart = bodyStart + 2 + (mapping.getShort(bodyStart) & 0xFFFF) * 4;
+
+        byte[] sealed = new byte[bodyStart + bodyLength - sealedStart];
+        mapping.get(sealedStart, sealed);
+        return sealer.open(sealed, blockAad(flags, count, firstSequence));
+    }
+
+    /**
+     * Collect a segment's records from a sequence number on, decrypting sealed blocks as needed
+     */
+    private void readSegment(Segment segment, boolean active, long fromSequence, int limit,
+                             List<SequencedEntry> result) throws IOException {
+        MappedByteBuffer mapping = mappingOf(segment, active);
+        int position = 0;
+        int end = mapping.limit();
+        while (position + BLOCK_HEADER_LENGTH <= end && result.size() < limit) {
+            int bodyLength = mapping.getInt(position);
+            byte flags = mapping.get(position + 4);
+            int count = mapping.getInt(position + 5);
+            long firstSequence = mapping.getLong(position + 9);
+            int bodyStart = position + BLOCK_HEADER_LENGTH;
+            if (bodyLength < 0 || bodyStart + bodyLength > end) {
+                break; // Torn or in-flight block at the tail
+            }
+
+            if (firstSequence + count > fromSequence) {
+                ByteBuffer body = null;
+                int recordStart = 0;
+                if ((flags & FLAG_SEALED) == 0) {
+                    body = mapping;
+                    recordStart = bodyStart;
+                } else if (sealer != null) {
+                    try {
+                        body = ByteBuffer.wrap(openSealedBlock(mapping, position));
+                    } catch (GeneralSecurityException e) {
+                        logger.warning("Skipping history block " + firstSequence + " that failed to decrypt: " + e.getMessage());
+                    }
+                }
+                if (body != null) {
+                    readRecords(body, recordStart, firstSequence, count, fromSequence, limit, result);
+                }
+            }
+            position = bodyStart + bodyLength;
+        }
+    }
+
+    private static void readRecords(ByteBuffer body, int position, long firstSequence, int count,
+                                    long fromSequence, int limit, List<SequencedEntry> result) {
+        for (int i = 0; i < count && result.size() < limit; i++) {
+            int length = body.getInt(position);
+            int record = position + 4;
+            if (firstSequence + i >= fromSequence) {
+                ConversationKey key = new ConversationKey(
+                    new UUID(body.getLong(record + 8), body.getLong(record + 16)),
+                    new UUID(body.getLong(record + 24), body.getLong(record + 32)));
+                result.add(new SequencedEntry(firstSequence + i, key, decode(body, record), decodeOrigin(body, record, length)));
+            }
+            position = record + length;
+        }
+    }
+
+    static void scanRecords(ByteBuffer body, int position, int count, ConversationKey key, List<HistoryEntry> matches) {
+        long lowMost = key.low().getMostSignificantBits();
+        long lowLeast = key.low().getLeastSignificantBits();
+        long highMost = key.high().getMostSignificantBits();
+        long highLeast = key.high().getLeastSignificantBits();
+
+        for (int i = 0; i < count; i++) {
+            int length = body.getInt(position);
+            int record = position + 4;
+            if (body.getLong(record + 8) == lowMost && body.getLong(record + 16) == lowLeast
+                    && body.getLong(record + 24) == highMost && body.getLong(record + 32) == highLeast) {
+                matches.add(decode(body, record));
+            }
+            position = record + length;
+        }
+    }
+
+    private static HistoryEntry decode(ByteBuffer body, int record) {
+        long timestamp = body.getLong(record);
+        UUID sender = new UUID(body.getLong(record + 40), body.getLong(record + 48));
+        int nameLength = body.getShort(record + 56) & 0xFFFF;
+        byte[] name = new byte[nameLength];
+        body.get(record + 58, name);
+        int messageOffset = record + 58 + nameLength;
+        byte[] message = new byte[body.getInt(messageOffset)];
+        body.get(messageOffset + 4, message);
+        return new HistoryEntry(timestamp, sender, new String(name, StandardCharsets.UTF_8), new String(message, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the origin after a record's message, if it has one
+     */
+    private static Origin decodeOrigin(ByteBuffer body, int record, int length) {
+        int messageOffset = record + 58 + (body.getShort(record + 56) & 0xFFFF);
+        int originOffset = messageOffset + 4 + body.getInt(messageOffset);
+        if (originOffset >= record + length) {
+            return null;
+        }
+        byte[] node = new byte[body.getShort(originOffset) & 0xFFFF];
+        body.get(originOffset + 2, node);
+        return new Origin(new String(node, StandardCharsets.UTF_8), body.getLong(originOffset + 2 + node.length));
+    }
+
+    private static MappedByteBuffer mapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeIndex = new BlockIndex();
+        indexes.put(path, activeIndex);
+        segments.add(new Segment(path, firstSequence));
+        nextSequence = firstSequence;
+    }
+
+    /**
+     * Find the end of the last intact block in the newest segment, drop anything after it
+     * and continue appending from there
+     */
+    private void recoverActiveSegment(Segment segment) throws IOException {
+        FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long sequence = segment.firstSequence;
+        int position = 0;
+
+        if (size > 0) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (position + BLOCK_HEADER_LENGTH <= size) {
+                int bodyLength = mapping.getInt(position);
+                int bodyStart = position + BLOCK_HEADER_LENGTH;
+                if (bodyLength < 0 || bodyStart + (long) bodyLength > size) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(mapping.slice(bodyStart, bodyLength));
+                if ((int) crc.getValue() != mapping.getInt(position + 17)) {
+                    break;
+                }
+                sequence = mapping.getLong(position + 9) + mapping.getInt(position + 5);
+                position = bodyStart + bodyLength;
+            }
+        }
+
+        if (position < size) {
+            logger.warning("Truncating " + (size - position) + " torn bytes from history segment " + segment.path.getFileName());
+            channel.truncate(position);
+        }
+        channel.position(position);
+        activeChannel = channel;
+        activeIndex = buildIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, position));
+        indexes.put(segment.path, activeIndex);
+        nextSequence = sequence;
+    }
+
+    private void pruneExpiredSegments() {
+        if (retentionMillis < 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        // Never touch the active (last) segment
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Segment segment = segments.get(i);
+            try {
+                if (Files.getLastModifiedTime(segment.path).toMillis() < cutoff) {
+                    segments.remove(segment);
+                    sealedMappings.remove(segment.path);
+                    indexes.remove(segment.path);
+                    Files.deleteIfExists(segment.path);
+                    i--;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to prune history segment " + segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number the next committed record will receive
+     * @return The next sequence number
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    private static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * A record read back from the log together with its sequence number
+     * @param sequence The record's position in the log
+     * @param key The conversation it belongs to
+     * @param entry The message
+     * @param origin Where the record was copied from, or null if it was recorded here
+     */
+    public record SequencedEntry(long sequence, ConversationKey key, HistoryEntry entry, Origin origin) {
+    }
+
+    /**
+     * The position a record had in another server's log before it was copied here
+     * @param node The ID of the server that recorded it
+     * @param sequence Its sequence number in that server's log
+     */
+    public record Origin(String node, long sequence) {
+    }
+
+    /**
+     * One segment's blocks by conversation tag, as positions in ascending order
+     */
+    private static final class BlockIndex {
+        private static final int[] NONE = new int[0];
+
+        private final Map<Integer, Positions> blocks = new HashMap<>();
+
+        synchronized void add(int tag, int position) {
+            Positions positions = blocks.computeIfAbsent(tag, t -> new Positions());
+            if (positions.size > 0 && positions.values[positions.size - 1] == position) {
+                return; // Several records of the conversation in one block
+            }
+            if (positions.size == positions.values.length) {
+                positions.values = Arrays.copyOf(positions.values, positions.size * 2);
+            }
+            positions.values[positions.size++] = position;
+        }
+
+        synchronized void add(int[] tags, int position) {
+            for (int tag : tags) {
+                add(tag, position);
+            }
+        }
+
+        synchronized int[] positions(int tag) {
+            Positions positions = blocks.get(tag);
+            return positions == null ? NONE : Arrays.copyOf(positions.values, positions.size);
+        }
+
+        private static final class Positions {
+            private int[] values = new int[2];
+            private int size;
+        }
+    }
+
+    private record Pending(ConversationKey key, HistoryEntry entry, Origin origin) {
+    }
+
+    private record Segment(Path path, long firstSequence) implements Comparable<Segment> {
+        @Override
+        public int compareTo(Segment other) {
+            return Long.compare(firstSequence, other.firstSequence);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package me.threefour.whisperchain.utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Authenticated AES-GCM engine that keeps one cipher per thread.
+ * <p>
+ * Sealed payloads are laid out as {@code nonce || ciphertext || tag}. Nonces are built from a
+ * random per-thread prefix and a per-thread counter, so sealing a message never touches the
+ * shared entropy source after the thread's first use.
+ */
+public final class CipherEngine {
+
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private static final SecureRandom SEED_RANDOM = new SecureRandom();
+
+    private final ThreadLocal<ThreadState> state = ThreadLocal.withInitial(ThreadState::new);
+
+    /**
+     * Get the number of bytes a sealed payload takes for a given plaintext length
+     * @param plaintextLength The plaintext length in bytes
+     * @return The sealed length in bytes
+     */
+    public static int sealedLength(int plaintextLength) {
+        return NONCE_LENGTH + plaintextLength + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypt and authenticate a plaintext
+     * @param key The AES key to seal with
+     * @param plaintext The bytes to encrypt
+     * @param aad Additional authenticated data, or null for none
+     * @return A new array holding {@code nonce || ciphertext || tag}
+     */
+    public byte[] seal(SecretKey key, byte[] plaintext, byte[] aad) throws GeneralSecurityException {
+        ThreadState thread = state.get();
+        byte[] out = new byte[sealedLength(plaintext.length)];
+        thread.nextNonce(out, 0);
+
+        Cipher cipher = thread.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, out, 0, NONCE_LENGTH));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        cipher.doFinal(plaintext, 0, plaintext.length, out, NONCE_LENGTH);
+        return out;
+    }
+
+    /**
+     * Encrypt and authenticate the remaining bytes of a buffer into another buffer
+     * @param key The AES key to seal with
+     * @param plaintext The buffer to encrypt, consumed up to its limit
+     * @param out The buffer to write {@code nonce || ciphertext || tag} into
+     * @return The number of bytes written to {@code out}
+     */
+    public int seal(SecretKey key, ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        int required = sealedLength(plaintext.remaining());
+        if (out.remaining() < required) {
+            throw new ShortBufferException("Need " + required + " bytes, have " + out.remaining());
+        }
+
+        ThreadState thread = state.get();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        thread.nextNonce(nonce, 0);
+        out.put(nonce);
+
+        Cipher cipher = thread.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        return NONCE_LENGTH + cipher.doFinal(plaintext, out);
+    }
+
+    /**
+     * Verify and decrypt a sealed payload
+     * @param key The AES key the payload was sealed with
+     * @param sealed The bytes produced by {@link #seal(SecretKey, byte[], byte[])}
+     * @param aad The additional authenticated data used when sealing, or null
+     * @return The decrypted plaintext
+     * @throws GeneralSecurityException If the payload was tampered with or the key is wrong
+     */
+    public byte[] open(SecretKey key, byte[] sealed, byte[] aad) throws GeneralSecurityException {
+        return open(key, sealed, 0, sealed.length, aad);
+    }
+
+    /**
+     * Verify and decrypt a sealed payload held in part of an array
+     * @param key The AES key the payload was sealed with
+     * @param sealed The array holding the payload
+     * @param offset The offset of the payload in the array
+     * @param length The length of the payload
+     * @param aad The additional authenticated data used when sealing, or null
+     * @return The decrypted plaintext
+     */
+    public byte[] open(SecretKey key, byte[] sealed, int offset, int length, byte[] aad) throws GeneralSecurityException {
+        if (length < NONCE_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("Sealed payload too short: " + length);
+        }
+
+        Cipher cipher = state.get().cipher;
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, sealed, offset, NONCE_LENGTH));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(sealed, offset + NONCE_LENGTH, length - NONCE_LENGTH);
+    }
+
+    /**
+     * Verify and decrypt the remaining bytes of a buffer into another buffer
+     * @param key The AES key the payload was sealed with
+     * @param sealed The buffer holding {@code nonce || ciphertext || tag}, consumed up to its limit
+     * @param out The buffer to write the plaintext into
+     * @return The number of plaintext bytes written to {@code out}
+     */
+    public int open(SecretKey key, ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        return open(key, sealed, out, null);
+    }
+
+    /**
+     * Verify and decrypt the remaining bytes of a buffer, such as a file mapping, into another buffer
+     * @param key The AES key the payload was sealed with
+     * @param sealed The buffer holding {@code nonce || ciphertext || tag}, consumed up to its limit
+     * @param out The buffer to write the plaintext into
+     * @param aad The additional authenticated data used when sealing, or null
+     * @return The number of plaintext bytes written to {@code out}
+     */
+    public int open(SecretKey key, ByteBuffer sealed, ByteBuffer out, byte[] aad) throws GeneralSecurityException {
+        if (sealed.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("Sealed payload too short: " + sealed.remaining());
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        sealed.get(nonce);
+
+        Cipher cipher = state.get().cipher;
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(sealed, out);
+    }
+
+    /**
+     * Per-thread cipher and nonce counter
+     */
+    private static final class ThreadState {
+        private final Cipher cipher;
+        private long prefix;
+        private int counter;
+
+        private ThreadState() {
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM is not available on this JVM", e);
+            }
+            reseed();
+        }
+
+        private void reseed() {
+            this.prefix = SEED_RANDOM.nextLong();
+            this.counter = 0;
+        }
+
+        private void nextNonce(byte[] dest, int offset) {
+            if (++counter == 0) {
+                // Counter wrapped: pick a fresh prefix so a nonce is never reused
+                reseed();
+                counter = 1;
+            }
+            long p = prefix;
+            for (int i = 7; i >= 0; i--) {
+                dest[offset + i] = (byte) p;
+                p >>>= 8;
+            }
+            int c = counter;
+            for (int i = 11; i >= 8; i--) {
+                dest[offset + i] = (byte) c;
+                c >>>= 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package me.threefour.whisperchain.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick matcher that finds any of a fixed set of commands in a line of text.
+ * <p>
+ * A command {@code name} matches wherever {@code "/name"} appears followed by a space or the
+ * end of the text, ignoring ASCII case. The automaton is compiled into a full transition
+ * table, so matching is a single pass with one array lookup per character and no allocation.
+ */
+public final class CommandMatcher {
+
+    private static final int ALPHABET = 129; // ASCII plus one bucket for everything else
+    private static final int OTHER = 128;
+
+    private final int[][] transitions;
+    private final boolean[] accepting;
+
+    private CommandMatcher(int[][] transitions, boolean[] accepting) {
+        this.transitions = transitions;
+        this.accepting = accepting;
+    }
+
+    /**
+     * Compile a matcher for a set of commands
+     * @param commands The command names, without the leading slash
+     * @return The compiled matcher
+     */
+    public static CommandMatcher compile(Collection<String> commands) {
+        List<int[]> trie = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        trie.add(newRow());
+        terminal.add(false);
+
+        for (String command : commands) {
+            if (command.isEmpty()) {
+                continue;
+            }
+            String pattern = "/" + command + " ";
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int c = index(pattern.charAt(i));
+                int next = trie.get(state)[c];
+                if (next < 0) {
+                    next = trie.size();
+                    trie.add(newRow());
+                    terminal.add(false);
+                    trie.get(state)[c] = next;
+                }
+                state = next;
+            }
+            terminal.set(state, true);
+        }
+
+        int[][] transitions = trie.toArray(new int[0][]);
+        boolean[] accepting = new boolean[transitions.length];
+        for (int i = 0; i < accepting.length; i++) {
+            accepting[i] = terminal.get(i);
+        }
+
+        // Breadth-first over the trie so each state's failure link is finished before its children
+        int[] failure = new int[transitions.length];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = transitions[0][c];
+            if (next < 0) {
+                transitions[0][c] = 0;
+            } else {
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            accepting[state] |= accepting[failure[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = transitions[state][c];
+                if (next < 0) {
+                    transitions[state][c] = transitions[failure[state]][c];
+                } else {
+                    failure[next] = transitions[failure[state]][c];
+                    queue.add(next);
+                }
+            }
+        }
+        return new CommandMatcher(transitions, accepting);
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[ALPHABET];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int index(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c + ('a' - 'A');
+        }
+        return c < OTHER ? c : OTHER;
+    }
+
+    /**
+     * Check whether text contains any of the commands
+     * @param text The text to scan
+     * @return True if a command was found
+     */
+    public boolean matches(CharSequence text) {
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            state = transitions[state][index(text.charAt(i))];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        // The end of the text terminates a command the same way a space does
+        return accepting[transitions[state][' ']];
+    }
+}
@@ -1,85 +1,269 @@
 package me.threefour.whisperchain.utils;
 
-import javax.crypto.Cipher;
+import me.threefour.whisperchain.metrics.Metrics;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Encryption {
     
-    private final Map<UUID, SecretKey> playerKeys = new HashMap<>();
+    private final ConcurrentMap<UUID, SecretKey> playerKeys = new ConcurrentHashMap<>();
+    private final CipherEngine cipherEngine = new CipherEngine();
+    private final ThreadLocal<KeyGenerator> keyGenerators = ThreadLocal.withInitial(Encryption::createKeyGenerator);
+    private final Metrics metrics;
+    // Set when keys are derived from a master secret instead of generated and stored per player
+    private volatile KeyDeriver keyDeriver;
+    
+    public Encryption() {
+        this(new Metrics());
+    }
     
     /**
-     * Generate a new encryption key for a player
-     * @param playerUUID The UUID of the player
-     * @return The generated secret key
+     * @param metrics Where encrypt and decrypt latencies are recorded
      */
-    public SecretKey generateKeyForPlayer(UUID playerUUID) {
+    public Encryption(Metrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    private static KeyGenerator createKeyGenerator() {
         try {
             KeyGenerator keyGen = KeyGenerator.getInstance("AES");
             keyGen.init(256);
-            SecretKey secretKey = keyGen.generateKey();
-            playerKeys.put(playerUUID, secretKey);
-            return secretKey;
+            return keyGen;
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
+            throw new IllegalStateException("AES is not available on this JVM", e);
         }
     }
     
+    /**
+     * Derive every player's key from a master secret from now on, instead of generating and
+     * storing a random key per player. Keys stored so far are dropped
+     * @param masterSecret The secret to derive keys from; the same secret gives the same keys
+     * @param cacheSize How many derived keys to keep in memory
+     */
+    public void deriveKeysFrom(SecretKey masterSecret, int cacheSize) {
+        this.keyDeriver = new KeyDeriver(masterSecret, cacheSize);
+        playerKeys.clear();
+    }
+    
+    /**
+     * Check whether player keys are derived from a master secret
+     * @return True if keys are derived, false if they are generated per player
+     */
+    public boolean isDerivingKeys() {
+        return keyDeriver != null;
+    }
+    
+    /**
+     * Generate a new encryption key for a player, replacing any existing one
+     * <p>
+     * Derived keys can't be replaced; with a master secret this returns the player's derived key.
+     * @param playerUUID The UUID of the player
+     * @return The generated secret key
+     */
+    public SecretKey generateKeyForPlayer(UUID playerUUID) {
+        KeyDeriver deriver = keyDeriver;
+        if (deriver != null) {
+            return deriver.getKey(playerUUID);
+        }
+        SecretKey secretKey = newKey(playerUUID);
+        playerKeys.put(playerUUID, secretKey);
+        return secretKey;
+    }
+    
     /**
      * Get a player's encryption key
+     * <p>
+     * Reads of existing keys never lock. When no key exists yet, exactly one key is generated
+     * even if several threads ask for the same player at once. With a master secret the key is
+     * derived instead, and nothing is stored per player.
      * @param playerUUID The UUID of the player
      * @return The player's secret key, or generates a new one if none exists
      */
     public SecretKey getPlayerKey(UUID playerUUID) {
-        if (!playerKeys.containsKey(playerUUID)) {
-            return generateKeyForPlayer(playerUUID);
+        KeyDeriver deriver = keyDeriver;
+        if (deriver != null) {
+            return deriver.getKey(playerUUID);
+        }
+        SecretKey key = playerKeys.get(playerUUID);
+        if (key != null) {
+            return key;
         }
-        return playerKeys.get(playerUUID);
+        return playerKeys.computeIfAbsent(playerUUID, this::newKey);
+    }
+    
+    private SecretKey newKey(UUID playerUUID) {
+        return keyGenerators.get().generateKey();
+    }
+    
+    /**
+     * Get a read-only view of all player keys, for persistence
+     * @return The keys keyed by player UUID; empty when keys are derived
+     */
+    public Map<UUID, SecretKey> getPlayerKeys() {
+        return Collections.unmodifiableMap(playerKeys);
     }
     
     /**
-     * Encrypt a message using AES encryption
+     * Restore a player's key from a snapshot, unless a key was already created for them
+     * @param playerUUID The UUID of the player
+     * @param key The key to restore
+     */
+    public void restorePlayerKey(UUID playerUUID, SecretKey key) {
+        if (keyDeriver != null) {
+            return; // Derived keys don't need restoring
+        }
+        playerKeys.putIfAbsent(playerUUID, key);
+    }
+    
+    /**
+     * Encrypt a message using AES-GCM encryption
      * @param message The message to encrypt
      * @param key The key to use for encryption
      * @return The encrypted message as a Base64 string
      */
     public String encrypt(String message, SecretKey key) {
+        byte[] encryptedBytes = encryptBytes(message.getBytes(StandardCharsets.UTF_8), key);
+        return encryptedBytes == null ? null : Base64.getEncoder().encodeToString(encryptedBytes);
+    }
+    
+    /**
+     * Decrypt a message using AES-GCM encryption
+     * @param encryptedMessage The encrypted message as a Base64 string
+     * @param key The key to use for decryption
+     * @return The decrypted message
+     */
+    public String decrypt(String encryptedMessage, SecretKey key) {
+        byte[] decryptedBytes = decryptBytes(Base64.getDecoder().decode(encryptedMessage), key);
+        return decryptedBytes == null ? null : new String(decryptedBytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Encrypt raw bytes without the Base64 string step
+     * @param plaintext The bytes to encrypt
+     * @param key The key to use for encryption
+     * @return The sealed bytes ({@code nonce || ciphertext || tag}), or null on failure
+     */
+    public byte[] encryptBytes(byte[] plaintext, SecretKey key) {
+        long start = System.nanoTime();
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            byte[] encryptedBytes = cipher.doFinal(message.getBytes());
-            return Base64.getEncoder().encodeToString(encryptedBytes);
-        } catch (Exception e) {
+            return cipherEngine.seal(key, plaintext, null);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            metrics.recordEncrypt(start);
         }
     }
     
     /**
-     * Decrypt a message using AES encryption
-     * @param encryptedMessage The encrypted message as a Base64 string
+     * Decrypt raw bytes produced by {@link #encryptBytes(byte[], SecretKey)}
+     * @param sealed The sealed bytes
      * @param key The key to use for decryption
-     * @return The decrypted message
+     * @return The decrypted bytes, or null if the payload is invalid or was tampered with
      */
-    public String decrypt(String encryptedMessage, SecretKey key) {
+    public byte[] decryptBytes(byte[] sealed, SecretKey key) {
+        long start = System.nanoTime();
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
-            return new String(decryptedBytes);
-        } catch (Exception e) {
+            return cipherEngine.open(key, sealed, null);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            metrics.recordDecrypt(start);
         }
     }
     
+    /**
+     * Encrypt a message once for several recipients
+     * <p>
+     * The body is encrypted a single time under a fresh content key; each recipient only gets
+     * the content key wrapped under their own key. With a single recipient there is nothing to
+     * share, so the body is sealed directly under their key instead.
+     * @param plaintext The bytes to encrypt
+     * @param recipientKeys Each recipient's key, by recipient UUID
+     * @return The envelope, or null on failure
+     */
+    public Envelope sealEnvelope(byte[] plaintext, Map<UUID, SecretKey> recipientKeys) {
+        long start = System.nanoTime();
+        try {
+            if (recipientKeys.size() == 1) {
+                Map.Entry<UUID, SecretKey> recipient = recipientKeys.entrySet().iterator().next();
+                byte[] body = cipherEngine.seal(recipient.getValue(), plaintext, uuidBytes(recipient.getKey()));
+                return new Envelope(body, Map.of(recipient.getKey(), Envelope.DIRECT));
+            }
+            SecretKey contentKey = keyGenerators.get().generateKey();
+            byte[] encodedContentKey = contentKey.getEncoded();
+            byte[] body = cipherEngine.seal(contentKey, plaintext, null);
+            
+            Map<UUID, byte[]> wrappedKeys = new HashMap<>(recipientKeys.size() * 2);
+            for (Map.Entry<UUID, SecretKey> recipient : recipientKeys.entrySet()) {
+                // Bind each wrapped key to its recipient so it can't be reused for someone else
+                wrappedKeys.put(recipient.getKey(), cipherEngine.seal(recipient.getValue(), encodedContentKey, uuidBytes(recipient.getKey())));
+            }
+            return new Envelope(body, wrappedKeys);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            metrics.recordEncrypt(start);
+        }
+    }
+    
+    /**
+     * Decrypt an envelope as one of its recipients
+     * @param envelope The envelope to open
+     * @param recipientUUID The UUID of the recipient opening it
+     * @param key The recipient's key
+     * @return The decrypted bytes, or null if the envelope isn't addressed to the recipient or is invalid
+     */
+    public byte[] openEnvelope(Envelope envelope, UUID recipientUUID, SecretKey key) {
+        byte[] wrappedKey = envelope.wrappedKeys().get(recipientUUID);
+        if (wrappedKey == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            if (wrappedKey.length == 0) {
+                return cipherEngine.open(key, envelope.body(), uuidBytes(recipientUUID));
+            }
+            byte[] contentKey = cipherEngine.open(key, wrappedKey, uuidBytes(recipientUUID));
+            return cipherEngine.open(new SecretKeySpec(contentKey, "AES"), envelope.body(), null);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            metrics.recordDecrypt(start);
+        }
+    }
+    
+    private static byte[] uuidBytes(UUID uuid) {
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+    
+    /**
+     * Get the cipher engine backing this instance, for callers working on buffers directly
+     * @return The shared cipher engine
+     */
+    public CipherEngine getCipherEngine() {
+        return cipherEngine;
+    }
+    
     /**
      * Convert a secret key to a string for storage
      * @param secretKey The secret key to convert
@@ -98,4 +282,23 @@ public class Encryption {
         byte[] decodedKey = Base64.getDecoder().decode(keyString);
         return new SecretKeySpec(decodedKey, 0, decodedKey.length, "AES");
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Load a key stored as Base64 in a file, optionally creating it first
+     * @param file The file holding the key
+     * @param create Whether to generate and write a new key if the file doesn't exist
+     * @return The key, or null if the file doesn't exist and {@code create} is false
+     */
+    public SecretKey loadKeyFile(Path file, boolean create) throws IOException {
+        if (Files.isRegularFile(file)) {
+            return stringToKey(Files.readString(file, StandardCharsets.UTF_8).trim());
+        }
+        if (!create) {
+            return null;
+        }
+        SecretKey key = keyGenerators.get().generateKey();
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, keyToString(key), StandardCharsets.UTF_8);
+        return key;
+    }
+}
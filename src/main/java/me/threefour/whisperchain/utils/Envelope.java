@@ -0,0 +1,33 @@
+package me.threefour.whisperchain.utils;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A message encrypted once for any number of recipients.
+ * <p>
+ * The body is sealed under a random per-message content key, and only that 32-byte key is
+ * wrapped separately for each recipient, so the cost of a group message grows with the number
+ * of recipients by one small key wrap each instead of one full body encryption each.
+ * <p>
+ * An envelope for a single recipient has no content key: the body is sealed directly under
+ * the recipient's key and their entry in {@code wrappedKeys} is {@link #DIRECT}.
+ * @param body The message sealed under the content key, or under the recipient's key
+ * @param wrappedKeys The content key sealed under each recipient's key, by recipient UUID
+ */
+public record Envelope(byte[] body, Map<UUID, byte[]> wrappedKeys) {
+
+    /**
+     * The wrapped key of a recipient whose body is sealed directly under their own key
+     */
+    public static final byte[] DIRECT = new byte[0];
+
+    /**
+     * Check whether the envelope can be opened by a recipient
+     * @param recipientUUID The UUID of the recipient
+     * @return True if the content key was wrapped for this recipient
+     */
+    public boolean isAddressedTo(UUID recipientUUID) {
+        return wrappedKeys.containsKey(recipientUUID);
+    }
+}
@@ -0,0 +1,97 @@
+package me.threefour.whisperchain.utils;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Derives each player's key from one master secret with HKDF-SHA256 (RFC 5869).
+ * <p>
+ * The extract step runs once, up front; deriving a key is a single HMAC over the player's
+ * UUID, so the same secret gives the same key on every restart and every server. Derived keys
+ * are kept in a small direct-mapped cache: lookups never lock, and a player whose slot was
+ * taken by someone else just gets their key derived again.
+ */
+final class KeyDeriver {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] SALT = "WhisperChain HKDF salt v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO = "WhisperChain player key v1".getBytes(StandardCharsets.UTF_8);
+    private static final int KEY_LENGTH = 32;
+
+    private record Entry(UUID playerUUID, SecretKey key) {
+    }
+
+    private final SecretKeySpec pseudoRandomKey;
+    private final ThreadLocal<Mac> macs;
+    private final AtomicReferenceArray<Entry> cache;
+    private final int mask;
+
+    /**
+     * @param masterSecret The secret every key is derived from
+     * @param cacheSize How many derived keys to keep, rounded up to a power of two
+     */
+    KeyDeriver(SecretKey masterSecret, int cacheSize) {
+        try {
+            Mac extract = Mac.getInstance(MAC_ALGORITHM);
+            extract.init(new SecretKeySpec(SALT, MAC_ALGORITHM));
+            this.pseudoRandomKey = new SecretKeySpec(extract.doFinal(masterSecret.getEncoded()), MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available on this JVM", e);
+        }
+        this.macs = ThreadLocal.withInitial(this::createMac);
+
+        int size = Integer.highestOneBit(Math.max(1, Math.min(cacheSize, 1 << 20)) * 2 - 1);
+        this.cache = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(pseudoRandomKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available on this JVM", e);
+        }
+    }
+
+    /**
+     * Get a player's key, deriving it if it isn't cached
+     * @param playerUUID The UUID of the player
+     * @return The player's key
+     */
+    SecretKey getKey(UUID playerUUID) {
+        int slot = spread(playerUUID.hashCode()) & mask;
+        Entry entry = cache.get(slot);
+        if (entry != null && entry.playerUUID.equals(playerUUID)) {
+            return entry.key;
+        }
+        // Deriving is deterministic, so two threads racing for a slot store equal keys
+        SecretKey key = derive(playerUUID);
+        cache.lazySet(slot, new Entry(playerUUID, key));
+        return key;
+    }
+
+    /**
+     * The expand step. One block of HMAC-SHA256 output is exactly one AES-256 key
+     */
+    private SecretKey derive(UUID playerUUID) {
+        Mac mac = macs.get();
+        mac.update(INFO);
+        mac.update(ByteBuffer.allocate(16).putLong(playerUUID.getMostSignificantBits())
+            .putLong(playerUUID.getLeastSignificantBits()).flip());
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        return new SecretKeySpec(okm, 0, KEY_LENGTH, "AES");
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,140 @@
+package me.threefour.whisperchain.utils;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.ComponentLike;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import net.kyori.adventure.text.serializer.legacy.LegacyFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message format compiled once from a legacy {@code &}-colour string with {@code {placeholders}}.
+ * <p>
+ * The constant text between placeholders is turned into ready-made components at compile time,
+ * and each placeholder remembers the style in effect where it appears. Rendering only wraps the
+ * placeholder values in text components and appends them between the prebuilt parts.
+ */
+public final class MessageTemplate {
+
+    private final Component[] literals;
+    private final int[] slots;
+    private final Style[] styles;
+    private final int placeholderCount;
+
+    private MessageTemplate(Component[] literals, int[] slots, Style[] styles, int placeholderCount) {
+        this.literals = literals;
+        this.slots = slots;
+        this.styles = styles;
+        this.placeholderCount = placeholderCount;
+    }
+
+    /**
+     * Compile a format string
+     * @param format The format, using {@code &} colour codes and {@code {name}} placeholders
+     * @param placeholders The placeholder names, in the order their values are passed to {@link #render}
+     * @return The compiled template
+     */
+    public static MessageTemplate compile(String format, String... placeholders) {
+        List<String> names = Arrays.asList(placeholders);
+        List<Component> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<Style> styles = new ArrayList<>();
+
+        List<Component> pieces = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        Style style = Style.empty();
+
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+
+            if (c == LegacyComponentSerializer.AMPERSAND_CHAR && i + 1 < format.length()) {
+                LegacyFormat code = LegacyComponentSerializer.parseChar(format.charAt(i + 1));
+                if (code != null) {
+                    flush(text, style, pieces);
+                    style = apply(style, code);
+                    i++;
+                    continue;
+                }
+            }
+
+            if (c == '{') {
+                int end = format.indexOf('}', i);
+                int slot = end > i ? names.indexOf(format.substring(i + 1, end)) : -1;
+                if (slot >= 0) {
+                    flush(text, style, pieces);
+                    literals.add(join(pieces));
+                    pieces.clear();
+                    slots.add(slot);
+                    styles.add(style);
+                    i = end;
+                    continue;
+                }
+            }
+
+            text.append(c);
+        }
+        flush(text, style, pieces);
+        literals.add(join(pieces));
+
+        return new MessageTemplate(literals.toArray(new Component[0]),
+            slots.stream().mapToInt(Integer::intValue).toArray(), styles.toArray(new Style[0]), names.size());
+    }
+
+    private static Style apply(Style style, LegacyFormat code) {
+        if (code.reset()) {
+            return Style.empty();
+        }
+        if (code.color() != null) {
+            // Like legacy chat, a colour code also clears any formatting before it
+            return Style.style(code.color());
+        }
+        if (code.decoration() != null) {
+            return style.decorate(code.decoration());
+        }
+        return style;
+    }
+
+    private static void flush(StringBuilder text, Style style, List<Component> pieces) {
+        if (text.length() > 0) {
+            pieces.add(Component.text(text.toString(), style));
+            text.setLength(0);
+        }
+    }
+
+    private static Component join(List<Component> pieces) {
+        if (pieces.isEmpty()) {
+            return null;
+        }
+        if (pieces.size() == 1) {
+            return pieces.get(0);
+        }
+        return Component.textOfChildren(pieces.toArray(new ComponentLike[0]));
+    }
+
+    /**
+     * Fill in the placeholders
+     * @param values The placeholder values, in the order the names were given to {@link #compile}
+     * @return The rendered message
+     */
+    public Component render(String... values) {
+        if (values.length != placeholderCount) {
+            throw new IllegalArgumentException("Expected " + placeholderCount + " values, got " + values.length);
+        }
+
+        TextComponent.Builder builder = Component.text();
+        for (int i = 0; i < slots.length; i++) {
+            if (literals[i] != null) {
+                builder.append(literals[i]);
+            }
+            builder.append(Component.text(values[slots[i]], styles[i]));
+        }
+        if (literals[slots.length] != null) {
+            builder.append(literals[slots.length]);
+        }
+        return builder.build();
+    }
+}
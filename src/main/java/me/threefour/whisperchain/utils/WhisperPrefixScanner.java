@@ -0,0 +1,99 @@
+package me.threefour.whisperchain.utils;
+
+/**
+ * Single-pass parser for chat whispers of the form {@code <prefix>name1,name2 message}.
+ * <p>
+ * Replaces the two regular expressions that used to run on every chat line. A message that
+ * doesn't start with the prefix is rejected after a single character comparison; for whispers
+ * the recipient list and body are located in one scan and only then copied out.
+ */
+public final class WhisperPrefixScanner {
+
+    private final String prefix;
+    private final char first;
+
+    /**
+     * Create a scanner for a whisper prefix
+     * @param prefix The prefix that starts a whisper, e.g. {@code "@"}
+     */
+    public WhisperPrefixScanner(String prefix) {
+        if (prefix.isEmpty()) {
+            throw new IllegalArgumentException("Whisper prefix must not be empty");
+        }
+        this.prefix = prefix;
+        this.first = prefix.charAt(0);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Parse a chat message as a whisper
+     * @param message The raw chat message
+     * @return The recipient list and body, or null if the message isn't a whisper
+     */
+    public Match scan(String message) {
+        int length = message.length();
+        int start = prefix.length();
+        if (length <= start || message.charAt(0) != first) {
+            return null;
+        }
+        if (start > 1 && !message.startsWith(prefix)) {
+            return null;
+        }
+
+        // Recipient list: word characters and commas, at least one
+        int i = start;
+        while (i < length && isRecipientChar(message.charAt(i))) {
+            i++;
+        }
+        if (i == start || i == length || !Character.isWhitespace(message.charAt(i))) {
+            return null;
+        }
+
+        // Body: everything after the whitespace, at least one character
+        int bodyStart = i + 1;
+        while (bodyStart < length && Character.isWhitespace(message.charAt(bodyStart))) {
+            bodyStart++;
+        }
+        if (bodyStart == length) {
+            return null;
+        }
+
+        return new Match(message.substring(start, i), message.substring(bodyStart));
+    }
+
+    /**
+     * Check whether a message mentions a player with the prefix somewhere, e.g. {@code "hi @bob"}
+     * @param message The raw chat message
+     * @return True if the prefix is followed by a name character anywhere in the message
+     */
+    public boolean containsMention(String message) {
+        int index = message.indexOf(prefix);
+        while (index >= 0) {
+            int next = index + prefix.length();
+            if (next < message.length() && isNameChar(message.charAt(next))) {
+                return true;
+            }
+            index = message.indexOf(prefix, next);
+        }
+        return false;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isRecipientChar(char c) {
+        return isNameChar(c) || c == ',';
+    }
+
+    /**
+     * A parsed whisper
+     * @param recipients The comma-separated recipient names
+     * @param body The message body
+     */
+    public record Match(String recipients, String body) {
+    }
+}
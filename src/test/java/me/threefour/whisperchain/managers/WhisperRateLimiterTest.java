@@ -0,0 +1,62 @@
+package me.threefour.whisperchain.managers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WhisperRateLimiterTest {
+
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+
+    @Test
+    void zeroRateDisablesLimiting() {
+        WhisperRateLimiter limiter = new WhisperRateLimiter(0, 5);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(alice, 100));
+        }
+    }
+
+    @Test
+    void allowsTheBurstThenRefuses() {
+        // Slow enough that no token comes back while the test runs
+        WhisperRateLimiter limiter = new WhisperRateLimiter(0.001, 3);
+        assertTrue(limiter.isEnabled());
+        assertTrue(limiter.tryAcquire(alice, 1));
+        assertTrue(limiter.tryAcquire(alice, 2));
+        assertFalse(limiter.tryAcquire(alice, 1));
+
+        // Buckets are per player
+        assertTrue(limiter.tryAcquire(bob, 3));
+        assertFalse(limiter.tryAcquire(bob, 1));
+    }
+
+    @Test
+    void chargesLargeGroupsOneFullBucket() {
+        WhisperRateLimiter limiter = new WhisperRateLimiter(0.001, 3);
+        assertTrue(limiter.tryAcquire(alice, 50));
+        assertFalse(limiter.tryAcquire(alice, 1));
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        WhisperRateLimiter limiter = new WhisperRateLimiter(50, 2);
+        assertTrue(limiter.tryAcquire(alice, 2));
+        assertFalse(limiter.tryAcquire(alice, 1));
+
+        Thread.sleep(100);
+        assertTrue(limiter.tryAcquire(alice, 2));
+    }
+
+    @Test
+    void remembersPlayersStillPayingOffABurst() {
+        WhisperRateLimiter limiter = new WhisperRateLimiter(0.001, 3);
+        limiter.tryAcquire(alice, 3);
+        limiter.forget(alice);
+        assertFalse(limiter.tryAcquire(alice, 1));
+    }
+}
@@ -0,0 +1,59 @@
+package me.threefour.whisperchain.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    @Test
+    void smallValuesGetABucketEach() {
+        for (int value = 0; value < 32; value++) {
+            int bucket = Histogram.bucketOf(value);
+            assertEquals(value, Histogram.lowestValueIn(bucket));
+            assertEquals(value, Histogram.highestValueIn(bucket));
+        }
+        assertEquals(0, Histogram.bucketOf(-5));
+    }
+
+    @Test
+    void bucketsTileTheRangeWithoutGaps() {
+        for (int bucket = 0; bucket < 400; bucket++) {
+            long highest = Histogram.highestValueIn(bucket);
+            assertEquals(bucket, Histogram.bucketOf(Histogram.lowestValueIn(bucket)));
+            assertEquals(bucket, Histogram.bucketOf(highest));
+            assertEquals(bucket + 1, Histogram.bucketOf(highest + 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestValueIn(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void bucketsStayWithinSixPercent() {
+        for (long value = 32; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 7) {
+            int bucket = Histogram.bucketOf(value);
+            long lowest = Histogram.lowestValueIn(bucket);
+            long highest = Histogram.highestValueIn(bucket);
+            assertTrue(lowest <= value && value <= highest, "value " + value);
+            assertTrue(highest - lowest <= lowest / 16, "bucket of " + value);
+        }
+    }
+
+    @Test
+    void reportsPercentilesAndMean() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.count());
+        assertEquals(1, snapshot.percentile(0));
+        assertEquals(31, snapshot.percentile(31));
+        long median = snapshot.percentile(50);
+        assertTrue(50 <= median && median <= 51);
+        assertEquals(103, snapshot.percentile(100));
+        assertEquals(50.5, snapshot.mean(), 1.0);
+    }
+}
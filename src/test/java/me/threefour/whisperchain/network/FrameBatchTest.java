@@ -0,0 +1,86 @@
+package me.threefour.whisperchain.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameBatchTest {
+
+    private final Deflater deflater = new Deflater();
+
+    private static FrameBatch.Frame frame(int type, String payload) {
+        return new FrameBatch.Frame((byte) type, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertFramesEqual(List<FrameBatch.Frame> expected, List<FrameBatch.Frame> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).type(), actual.get(i).type());
+            assertArrayEquals(expected.get(i).payload(), actual.get(i).payload());
+        }
+    }
+
+    @Test
+    void roundTripsSmallBatches() throws IOException {
+        List<FrameBatch.Frame> frames = List.of(frame(1, "hello"), frame(2, ""), frame(3, "world"));
+        byte[] batch = FrameBatch.encode(frames, deflater);
+        assertEquals(0, batch[1]);
+        assertFramesEqual(frames, FrameBatch.decode(batch));
+    }
+
+    @Test
+    void deflatesLargeBatches() throws IOException {
+        List<FrameBatch.Frame> frames = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            frames.add(frame(i % 4, "Alice whispers to Bob: message number " + i));
+        }
+        byte[] batch = FrameBatch.encode(frames, deflater);
+        assertEquals(1, batch[1]);
+        assertFramesEqual(frames, FrameBatch.decode(batch));
+
+        // The deflater is reused between batches
+        assertFramesEqual(frames, FrameBatch.decode(FrameBatch.encode(frames, deflater)));
+    }
+
+    @Test
+    void roundTripsIncompressibleBatches() throws IOException {
+        byte[] noise = new byte[64 * 1024];
+        new Random(7).nextBytes(noise);
+        List<FrameBatch.Frame> frames = List.of(new FrameBatch.Frame((byte) 9, noise));
+        assertFramesEqual(frames, FrameBatch.decode(FrameBatch.encode(frames, deflater)));
+    }
+
+    @Test
+    void roundTripsEmptyBatches() throws IOException {
+        assertTrue(FrameBatch.decode(FrameBatch.encode(List.of(), deflater)).isEmpty());
+    }
+
+    @Test
+    void rejectsMalformedBatches() {
+        byte[] small = FrameBatch.encode(List.of(frame(1, "hello")), deflater);
+        byte[] large = FrameBatch.encode(List.of(frame(1, "a".repeat(4096))), deflater);
+
+        assertThrows(IOException.class, () -> FrameBatch.decode(new byte[3]));
+        assertThrows(IOException.class, () -> FrameBatch.decode(Arrays.copyOf(small, small.length - 1)));
+        assertThrows(IOException.class, () -> FrameBatch.decode(Arrays.copyOf(large, large.length / 2)));
+
+        byte[] wrongVersion = small.clone();
+        wrongVersion[0] = 99;
+        assertThrows(IOException.class, () -> FrameBatch.decode(wrongVersion));
+
+        byte[] badLength = small.clone();
+        badLength[7] = 127;
+        assertThrows(IOException.class, () -> FrameBatch.decode(badLength));
+    }
+}
@@ -0,0 +1,104 @@
+package me.threefour.whisperchain.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationStoreTest {
+
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+    private final ConversationKey key = ConversationKey.of(alice, bob);
+
+    private HistoryEntry entry(int n) {
+        return new HistoryEntry(n, alice, "Alice", "message " + n);
+    }
+
+    @Test
+    void keysAreTheSameEitherWayRound() {
+        assertEquals(ConversationKey.of(alice, bob), ConversationKey.of(bob, alice));
+    }
+
+    @Test
+    void evictsOldestPastCapacity() {
+        ConversationStore store = new ConversationStore(3);
+        for (int i = 0; i < 5; i++) {
+            store.append(key, entry(i));
+        }
+
+        assertEquals(List.of(entry(2), entry(3), entry(4)), store.read(key));
+        assertEquals(1, store.size());
+        assertEquals(3, store.messageCount());
+    }
+
+    @Test
+    void pagesNewestFirst() {
+        ConversationStore store = new ConversationStore(10);
+        for (int i = 0; i < 7; i++) {
+            store.append(key, entry(i));
+        }
+
+        HistoryPage first = store.readPage(key, 0, 3);
+        assertEquals(List.of(entry(6), entry(5), entry(4)), first.entries());
+        assertEquals(7, first.total());
+        assertFalse(first.hasNewer());
+        assertTrue(first.hasOlder());
+
+        HistoryPage last = store.readPage(key, 6, 3);
+        assertEquals(List.of(entry(0)), last.entries());
+        assertTrue(last.hasNewer());
+        assertFalse(last.hasOlder());
+    }
+
+    @Test
+    void unknownConversationIsEmpty() {
+        ConversationStore store = new ConversationStore(10);
+        assertEquals(List.of(), store.read(key));
+        assertEquals(0, store.readPage(key, 0, 5).total());
+        assertThrows(IllegalArgumentException.class, () -> store.readPage(key, -1, 5));
+    }
+
+    @Test
+    void fillsOnlyEmptyConversations() {
+        ConversationStore store = new ConversationStore(2);
+        assertTrue(store.fillIfEmpty(key, List.of(entry(1), entry(2), entry(3))));
+        assertEquals(List.of(entry(2), entry(3)), store.read(key));
+        assertEquals(2, store.messageCount());
+
+        assertFalse(store.fillIfEmpty(key, List.of(entry(4))));
+        assertEquals(List.of(entry(2), entry(3)), store.read(key));
+    }
+
+    @Test
+    void visitsEveryConversation() {
+        ConversationStore store = new ConversationStore(10);
+        ConversationKey other = ConversationKey.of(alice, UUID.randomUUID());
+        store.append(key, entry(1));
+        store.append(other, entry(2));
+
+        List<ConversationKey> seen = new ArrayList<>();
+        store.forEach((visited, entries) -> seen.add(visited));
+        assertEquals(2, seen.size());
+        assertTrue(seen.contains(key) && seen.contains(other));
+    }
+
+    @Test
+    void evictionsLeaveTheIndex() {
+        HistoryIndex index = new HistoryIndex();
+        ConversationStore store = new ConversationStore(2, index);
+        store.append(key, new HistoryEntry(1, alice, "Alice", "first apple"));
+        store.append(key, new HistoryEntry(2, alice, "Alice", "second apple"));
+        store.append(key, new HistoryEntry(3, alice, "Alice", "third pear"));
+
+        List<HistoryIndex.Posting> results = index.search(bob, "apple", 0, Long.MAX_VALUE, 10);
+        assertEquals(1, results.size());
+        assertEquals("second apple", results.get(0).entry().message());
+    }
+}
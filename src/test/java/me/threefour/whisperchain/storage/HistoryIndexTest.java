@@ -0,0 +1,143 @@
+package me.threefour.whisperchain.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryIndexTest {
+
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+    private final UUID carol = UUID.randomUUID();
+    private final HistoryIndex index = new HistoryIndex();
+
+    private HistoryEntry add(ConversationKey key, long timestamp, String message) {
+        HistoryEntry entry = new HistoryEntry(timestamp, key.low(), "Alice", message);
+        index.add(key, entry);
+        return entry;
+    }
+
+    private List<String> search(UUID playerUUID, String query) {
+        return messages(index.search(playerUUID, query, Long.MIN_VALUE, Long.MAX_VALUE, 100));
+    }
+
+    private static List<String> messages(List<HistoryIndex.Posting> postings) {
+        List<String> messages = new ArrayList<>();
+        for (HistoryIndex.Posting posting : postings) {
+            messages.add(posting.entry().message());
+        }
+        return messages;
+    }
+
+    @Test
+    void splitsIntoLowercaseWords() {
+        assertEquals(Set.of("hello", "world", "42"), HistoryIndex.terms("Hello, WORLD! hello 42"));
+        assertEquals(Set.of(), HistoryIndex.terms(" ...!"));
+    }
+
+    @Test
+    void findsMessagesOfBothPlayersNewestFirst() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        add(key, 1, "meet at the farm");
+        add(key, 2, "which farm");
+        add(key, 3, "never mind");
+
+        assertEquals(List.of("which farm", "meet at the farm"), search(alice, "farm"));
+        assertEquals(List.of("which farm", "meet at the farm"), search(bob, "FARM"));
+        assertEquals(List.of(), search(carol, "farm"));
+    }
+
+    @Test
+    void requiresEveryWord() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        add(key, 1, "diamond pickaxe");
+        add(key, 2, "iron pickaxe");
+
+        assertEquals(List.of("diamond pickaxe"), search(alice, "pickaxe diamond"));
+        assertEquals(List.of(), search(alice, "pickaxe gold"));
+    }
+
+    @Test
+    void matchesPrefixesOnce() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        add(key, 1, "build build builder");
+        add(key, 2, "built it");
+        add(key, 3, "bucket");
+
+        assertEquals(List.of("built it", "build build builder"), search(alice, "bui*"));
+    }
+
+    @Test
+    void keepsArrivalOrderWithinAMillisecond() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        for (int i = 0; i < 5; i++) {
+            add(key, 100, "same tick " + i);
+        }
+
+        assertEquals(List.of("same tick 4", "same tick 3", "same tick 2", "same tick 1", "same tick 0"),
+            search(alice, "tick"));
+    }
+
+    @Test
+    void limitsToTimeRange() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        for (int i = 1; i <= 5; i++) {
+            add(key, i * 10, "ping " + i);
+        }
+
+        assertEquals(List.of("ping 4", "ping 3", "ping 2"),
+            messages(index.search(alice, "ping", 20, 40, 100)));
+        assertEquals(List.of("ping 5", "ping 4"),
+            messages(index.search(alice, "ping", 0, 100, 2)));
+        assertEquals(List.of(), messages(index.search(alice, "ping", 40, 20, 100)));
+    }
+
+    @Test
+    void forgetsRemovedMessages() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        HistoryEntry old = add(key, 1, "secret base");
+        add(key, 2, "secret door");
+
+        index.remove(key, old);
+        assertEquals(List.of("secret door"), search(alice, "secret"));
+        assertEquals(List.of(), search(bob, "base"));
+    }
+
+    @Test
+    void dropsPlayersWithNothingLeft() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        ConversationKey other = ConversationKey.of(alice, carol);
+        HistoryEntry first = add(key, 1, "hello bob");
+        HistoryEntry second = add(other, 2, "hello carol");
+        assertEquals(3, index.size());
+
+        index.remove(key, first);
+        assertEquals(2, index.size());
+        index.remove(other, second);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void survivesManyRemovals() {
+        ConversationKey key = ConversationKey.of(alice, bob);
+        List<HistoryEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(add(key, i, "word " + i));
+        }
+        for (int i = 0; i < 990; i++) {
+            index.remove(key, entries.get(i));
+        }
+
+        List<String> found = search(alice, "word");
+        assertEquals(10, found.size());
+        assertEquals("word 999", found.get(0));
+        assertEquals("word 990", found.get(9));
+        assertTrue(search(alice, "5").isEmpty());
+    }
+}
@@ -0,0 +1,83 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.utils.CipherEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailboxTest {
+
+    private static final Logger LOGGER = Logger.getLogger(MailboxTest.class.getName());
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+
+    @TempDir
+    Path directory;
+
+    private Mailbox mailbox;
+
+    @AfterEach
+    void closeMailbox() {
+        if (mailbox != null) {
+            mailbox.close();
+        }
+    }
+
+    private HistoryEntry entry(int n) {
+        return new HistoryEntry(n, alice, "Alice", "message " + n);
+    }
+
+    @Test
+    void keepsMessagesUntilRemoved() throws IOException {
+        mailbox = new Mailbox(directory, LOGGER, 1024 * 1024, KEY, new CipherEngine(), true);
+        assertTrue(mailbox.deposit(bob, entry(1)).join());
+        assertTrue(mailbox.deposit(bob, entry(2)).join());
+        assertEquals(List.of(), mailbox.read(alice).join());
+
+        List<HistoryEntry> delivered = mailbox.read(bob).join();
+        assertEquals(List.of(entry(1), entry(2)), delivered);
+        mailbox.deposit(bob, entry(3)).join();
+
+        mailbox.remove(bob, delivered).join();
+        assertEquals(List.of(entry(3)), mailbox.read(bob).join());
+        mailbox.remove(bob, List.of(entry(3))).join();
+        assertEquals(List.of(), mailbox.read(bob).join());
+    }
+
+    @Test
+    void readsPlainRecordsWithSealingOn() throws IOException {
+        Mailbox plain = new Mailbox(directory, LOGGER, 1024 * 1024, null, new CipherEngine(), false);
+        plain.deposit(bob, entry(1)).join();
+        plain.close();
+
+        mailbox = new Mailbox(directory, LOGGER, 1024 * 1024, KEY, new CipherEngine(), true);
+        mailbox.deposit(bob, entry(2)).join();
+        assertEquals(List.of(entry(1), entry(2)), mailbox.read(bob).join());
+    }
+
+    @Test
+    void refusesDepositsPastTheLimit() throws IOException {
+        mailbox = new Mailbox(directory, LOGGER, 256, null, new CipherEngine(), false);
+        int stored = 0;
+        while (mailbox.deposit(bob, entry(stored)).join()) {
+            stored++;
+        }
+        assertTrue(stored > 0);
+        assertFalse(mailbox.deposit(bob, entry(stored)).join());
+        assertEquals(stored, mailbox.read(bob).join().size());
+    }
+}
@@ -0,0 +1,65 @@
+package me.threefour.whisperchain.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MessageRingTest {
+
+    private static final UUID SENDER = UUID.randomUUID();
+
+    private static HistoryEntry entry(int n) {
+        return new HistoryEntry(n, SENDER, "Alice", "message " + n);
+    }
+
+    @Test
+    void keepsEntriesOldestFirstUntilFull() {
+        MessageRing ring = new MessageRing(3);
+        assertNull(ring.add(entry(1)));
+        assertNull(ring.add(entry(2)));
+
+        assertEquals(2, ring.size());
+        assertEquals(List.of(entry(1), entry(2)), ring.toList());
+    }
+
+    @Test
+    void overwritesOldestWhenFull() {
+        MessageRing ring = new MessageRing(3);
+        HistoryEntry first = entry(1);
+        ring.add(first);
+        ring.add(entry(2));
+        ring.add(entry(3));
+
+        assertSame(first, ring.add(entry(4)));
+        assertEquals(entry(2), ring.add(entry(5)));
+        assertEquals(3, ring.size());
+        assertEquals(List.of(entry(3), entry(4), entry(5)), ring.toList());
+    }
+
+    @Test
+    void wrapsAroundManyTimes() {
+        MessageRing ring = new MessageRing(4);
+        for (int i = 0; i < 23; i++) {
+            ring.add(entry(i));
+        }
+        assertEquals(List.of(entry(19), entry(20), entry(21), entry(22)), ring.toList());
+    }
+
+    @Test
+    void newestReadsWindowAcrossTheWrap() {
+        MessageRing ring = new MessageRing(5);
+        for (int i = 0; i < 8; i++) {
+            ring.add(entry(i));
+        }
+
+        assertEquals(List.of(entry(7), entry(6)), ring.newest(0, 2));
+        assertEquals(List.of(entry(5), entry(4), entry(3)), ring.newest(2, 10));
+        assertEquals(List.of(), ring.newest(5, 2));
+        assertEquals(List.of(), ring.newest(0, 0));
+    }
+}
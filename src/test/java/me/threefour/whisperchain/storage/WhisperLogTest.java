@@ -0,0 +1,180 @@
+package me.threefour.whisperchain.storage;
+
+import me.threefour.whisperchain.utils.CipherEngine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WhisperLogTest {
+
+    private static final Logger LOGGER = Logger.getLogger(WhisperLogTest.class.getName());
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+    private static final SecretKey OTHER_KEY = new SecretKeySpec(new byte[]{
+        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+        17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32}, "AES");
+
+    private final CipherEngine cipherEngine = new CipherEngine();
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+    private final UUID carol = UUID.randomUUID();
+    private final ConversationKey aliceBob = ConversationKey.of(alice, bob);
+    private final ConversationKey aliceCarol = ConversationKey.of(alice, carol);
+
+    @TempDir
+    Path directory;
+
+    private WhisperLog open(boolean sealed) throws IOException {
+        return new WhisperLog(directory, LOGGER, -1, sealed ? KEY : null, cipherEngine, sealed);
+    }
+
+    private HistoryEntry entry(int n) {
+        return new HistoryEntry(n, alice, "Alice", "message " + n);
+    }
+
+    private void writeConversations(WhisperLog log) {
+        for (int i = 0; i < 10; i++) {
+            log.append(i % 2 == 0 ? aliceBob : aliceCarol, entry(i));
+            if (i % 3 == 0) {
+                log.sync();
+            }
+        }
+        log.sync();
+    }
+
+    private void checkConversations(WhisperLog log) {
+        assertEquals(List.of(entry(0), entry(2), entry(4), entry(6), entry(8)), log.read(aliceBob, 10));
+        assertEquals(List.of(entry(7), entry(9)), log.read(aliceCarol, 2));
+        assertEquals(List.of(), log.read(ConversationKey.of(bob, carol), 10));
+    }
+
+    @Test
+    void readsBackPlainRecords() throws IOException {
+        WhisperLog log = open(false);
+        writeConversations(log);
+        checkConversations(log);
+        log.close();
+
+        WhisperLog reopened = open(false);
+        checkConversations(reopened);
+        assertEquals(10, reopened.getNextSequence());
+        reopened.close();
+    }
+
+    @Test
+    void readsBackSealedBlocks() throws IOException {
+        WhisperLog log = open(true);
+        writeConversations(log);
+        checkConversations(log);
+        log.close();
+
+        WhisperLog reopened = open(true);
+        checkConversations(reopened);
+        reopened.close();
+    }
+
+    @Test
+    void keepsSealedBlocksPrivate() throws IOException {
+        WhisperLog log = open(true);
+        log.append(aliceBob, new HistoryEntry(1, alice, "Alice", "the password is swordfish"));
+        log.close();
+
+        for (Path segment : segments()) {
+            String contents = new String(Files.readAllBytes(segment), StandardCharsets.ISO_8859_1);
+            assertFalse(contents.contains("swordfish"));
+        }
+
+        WhisperLog wrongKey = new WhisperLog(directory, LOGGER, -1, OTHER_KEY, cipherEngine, true);
+        assertEquals(List.of(), wrongKey.read(aliceBob, 10));
+        wrongKey.close();
+    }
+
+    @Test
+    void readsPlainRecordsAfterSealingIsTurnedOn() throws IOException {
+        WhisperLog log = open(false);
+        log.append(aliceBob, entry(1));
+        log.close();
+
+        WhisperLog sealed = open(true);
+        sealed.append(aliceBob, entry(2));
+        sealed.sync();
+        assertEquals(List.of(entry(1), entry(2)), sealed.read(aliceBob, 10));
+        sealed.close();
+    }
+
+    @Test
+    void readsFromSequenceWithOrigins() throws IOException {
+        WhisperLog log = open(true);
+        log.append(aliceBob, entry(0));
+        log.append(aliceBob, entry(1), new WhisperLog.Origin("lobby", 41));
+        log.append(aliceCarol, entry(2));
+        log.sync();
+
+        List<WhisperLog.SequencedEntry> all = log.readFrom(0, 10);
+        assertEquals(3, all.size());
+        assertEquals(0, all.get(0).sequence());
+        assertNull(all.get(0).origin());
+        assertEquals(new WhisperLog.Origin("lobby", 41), all.get(1).origin());
+        assertEquals(aliceCarol, all.get(2).key());
+
+        List<WhisperLog.SequencedEntry> tail = log.readFrom(1, 1);
+        assertEquals(1, tail.size());
+        assertEquals(entry(1), tail.get(0).entry());
+        log.close();
+    }
+
+    @Test
+    void rollsSegmentsAndReadsAcrossThem() throws IOException {
+        WhisperLog log = open(true);
+        String filler = "x".repeat(8 * 1024);
+        int count = 0;
+        while (segments().size() < 2) {
+            for (int i = 0; i < 256; i++, count++) {
+                log.append(count % 2 == 0 ? aliceBob : aliceCarol, new HistoryEntry(count, alice, "Alice", count + filler));
+            }
+            log.sync();
+        }
+        log.append(aliceBob, entry(-1));
+        log.sync();
+
+        List<HistoryEntry> newest = log.read(aliceBob, count);
+        assertEquals(count / 2 + 1, newest.size());
+        assertEquals(0, newest.get(0).timestamp());
+        assertEquals(entry(-1), newest.get(newest.size() - 1));
+
+        List<WhisperLog.SequencedEntry> all = log.readFrom(0, count + 1);
+        assertEquals(count + 1, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i).sequence());
+        }
+        log.close();
+
+        WhisperLog reopened = open(true);
+        assertEquals(count + 1, reopened.getNextSequence());
+        assertTrue(reopened.read(aliceCarol, 1).get(0).message().startsWith(String.valueOf(count - 1)));
+        reopened.close();
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            stream.forEach(paths::add);
+        }
+        return paths;
+    }
+}
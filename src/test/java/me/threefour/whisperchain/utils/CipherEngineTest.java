@@ -0,0 +1,79 @@
+package me.threefour.whisperchain.utils;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CipherEngineTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+    private static final byte[] AAD = {1, 2, 3};
+
+    private final CipherEngine engine = new CipherEngine();
+    private final byte[] plaintext = "meet me at spawn".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void roundTrips() throws GeneralSecurityException {
+        byte[] sealed = engine.seal(KEY, plaintext, AAD);
+        assertEquals(CipherEngine.sealedLength(plaintext.length), sealed.length);
+        assertArrayEquals(plaintext, engine.open(KEY, sealed, AAD));
+    }
+
+    @Test
+    void usesAFreshNonceEachTime() throws GeneralSecurityException {
+        byte[] first = engine.seal(KEY, plaintext, null);
+        byte[] second = engine.seal(KEY, plaintext, null);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    void rejectsTamperingAndTheWrongContext() throws GeneralSecurityException {
+        byte[] sealed = engine.seal(KEY, plaintext, AAD);
+        byte[] tampered = sealed.clone();
+        tampered[CipherEngine.NONCE_LENGTH] ^= 1;
+
+        assertThrows(GeneralSecurityException.class, () -> engine.open(KEY, tampered, AAD));
+        assertThrows(GeneralSecurityException.class, () -> engine.open(KEY, sealed, new byte[]{9}));
+        assertThrows(GeneralSecurityException.class, () -> engine.open(KEY, sealed, null));
+    }
+
+    @Test
+    void opensPartOfAnArray() throws GeneralSecurityException {
+        byte[] sealed = engine.seal(KEY, plaintext, null);
+        byte[] framed = new byte[sealed.length + 8];
+        System.arraycopy(sealed, 0, framed, 4, sealed.length);
+        assertArrayEquals(plaintext, engine.open(KEY, framed, 4, sealed.length, null));
+    }
+
+    @Test
+    void roundTripsBuffers() throws GeneralSecurityException {
+        ByteBuffer sealed = ByteBuffer.allocateDirect(CipherEngine.sealedLength(plaintext.length));
+        engine.seal(KEY, ByteBuffer.wrap(plaintext), sealed);
+        sealed.flip();
+
+        ByteBuffer opened = ByteBuffer.allocate(plaintext.length);
+        assertEquals(plaintext.length, engine.open(KEY, sealed, opened));
+        assertArrayEquals(plaintext, opened.array());
+    }
+
+    @Test
+    void opensBuffersWithAad() throws GeneralSecurityException {
+        ByteBuffer sealed = ByteBuffer.wrap(engine.seal(KEY, plaintext, AAD));
+        ByteBuffer opened = ByteBuffer.allocate(plaintext.length);
+        engine.open(KEY, sealed.duplicate(), opened, AAD);
+        assertArrayEquals(plaintext, opened.array());
+
+        assertThrows(GeneralSecurityException.class,
+            () -> engine.open(KEY, sealed.duplicate(), ByteBuffer.allocate(plaintext.length), null));
+    }
+}